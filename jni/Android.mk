@@ -20,7 +20,8 @@ include $(CLEAR_VARS)
 
 LOCAL_MODULE    := libmp3streamer
 LOCAL_CFLAGS    := -I$(LIBMAD) -Wall
-LOCAL_SRC_FILES := abort.c http.c read.c ringbuffer.c ringbuffer_jni.c streamer.c
+LOCAL_SRC_FILES := abort.c bindings.c http.c mp3decoder.c read.c ringbuffer.c ringbuffer_jni.c \
+                   splicer.c streamer.c
 
 LOCAL_STATIC_LIBRARIES := libmad
 LOCAL_LDLIBS := -llog
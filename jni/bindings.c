@@ -0,0 +1,115 @@
+/* This file is part of Nectroid.
+ *
+ * Nectroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nectroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Nectroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+#include <jni.h>
+
+#include "bindings.h"
+#include "logmacros.h"
+
+
+struct jni_bindings g_jni;
+
+
+/*
+ * Forward declarations
+ */
+
+static jclass find_class(JNIEnv *env, const char *name);
+static jfieldID find_field(JNIEnv *env, jclass cls, const char *name, const char *sig);
+static jmethodID find_method(JNIEnv *env, jclass cls, const char *name, const char *sig);
+
+
+/*
+ * Public interface
+ */
+
+JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved)
+{
+    JNIEnv *env = NULL;
+    struct jni_bindings *b = &g_jni;
+    int error = 0;
+
+    if((*vm)->GetEnv(vm, (void **)&env, JNI_VERSION_1_4) != JNI_OK) {
+        LOGE("Could not get the JNI environment");
+        error = 1;
+    }
+
+    /* MP3Streamer */
+    if(!error) {
+        b->streamer_class = find_class(env, "com/kvance/Nectroid/MP3Streamer");
+        error = (b->streamer_class == NULL);
+    }
+    if(!error) {
+        b->streamer_on_audio_format_changed = find_method(env, b->streamer_class,
+                "onAudioFormatChanged", "(II)Z");
+        error = (b->streamer_on_audio_format_changed == NULL);
+    }
+
+    /* RingBuffer */
+    if(!error) {
+        b->ringbuffer_class = find_class(env, "com/kvance/Nectroid/RingBuffer");
+        error = (b->ringbuffer_class == NULL);
+    }
+    if(!error) {
+        b->ringbuffer_pointer = find_field(env, b->ringbuffer_class, "mRBPointer", "J");
+        error = (b->ringbuffer_pointer == NULL);
+    }
+
+    /* Refuse to load without the bindings (leaving the lookup's exception pending), rather than
+     * crash later. */
+    return error ? JNI_ERR : JNI_VERSION_1_4;
+}
+
+
+/*
+ * Utility functions
+ */
+
+/* Find a class and return a global reference to it, so its IDs stay valid.  Returns NULL on
+ * failure. */
+static jclass find_class(JNIEnv *env, const char *name)
+{
+    jclass result = NULL;
+    jclass cls = (*env)->FindClass(env, name);
+    if(cls == NULL) {
+        LOGE("Could not find class %s", name);
+    } else {
+        result = (*env)->NewGlobalRef(env, cls);
+        (*env)->DeleteLocalRef(env, cls);
+    }
+    return result;
+}
+
+
+/* Return the ID of a field, or NULL on failure. */
+static jfieldID find_field(JNIEnv *env, jclass cls, const char *name, const char *sig)
+{
+    jfieldID fid = (*env)->GetFieldID(env, cls, name, sig);
+    if(fid == NULL) {
+        LOGE("Could not find the %s field", name);
+    }
+    return fid;
+}
+
+
+/* Return the ID of a method, or NULL on failure. */
+static jmethodID find_method(JNIEnv *env, jclass cls, const char *name, const char *sig)
+{
+    jmethodID mid = (*env)->GetMethodID(env, cls, name, sig);
+    if(mid == NULL) {
+        LOGE("Could not find the %s() method", name);
+    }
+    return mid;
+}
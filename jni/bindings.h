@@ -0,0 +1,36 @@
+/* This file is part of Nectroid.
+ *
+ * Nectroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nectroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Nectroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+#ifndef BINDINGS_H
+#define BINDINGS_H
+
+#include <jni.h>
+
+/* Java class, field, and method IDs used by the native code.  These are looked up once when the
+ * library is loaded, so the decoder never has to search for them on its real-time path. */
+struct jni_bindings {
+    /* com.kvance.Nectroid.MP3Streamer */
+    jclass streamer_class;
+    jmethodID streamer_on_audio_format_changed;
+
+    /* com.kvance.Nectroid.RingBuffer */
+    jclass ringbuffer_class;
+    jfieldID ringbuffer_pointer;
+};
+
+/* Global JNI bindings, filled in by JNI_OnLoad() */
+extern struct jni_bindings g_jni;
+
+#endif
@@ -0,0 +1,53 @@
+/* This file is part of Nectroid.
+ *
+ * Nectroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nectroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Nectroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+#ifndef ANDROID_LOG_H
+#define ANDROID_LOG_H
+
+/* Stand-in for the NDK's logging header when building on a host machine.  Warnings and errors go
+ * to stderr; anything quieter is dropped so it doesn't skew the timings. */
+
+#include <stdarg.h>
+#include <stdio.h>
+
+enum {
+    ANDROID_LOG_UNKNOWN = 0,
+    ANDROID_LOG_DEFAULT,
+    ANDROID_LOG_VERBOSE,
+    ANDROID_LOG_DEBUG,
+    ANDROID_LOG_INFO,
+    ANDROID_LOG_WARN,
+    ANDROID_LOG_ERROR,
+    ANDROID_LOG_FATAL,
+    ANDROID_LOG_SILENT
+};
+
+static inline int __android_log_print(int prio, const char *tag, const char *fmt, ...)
+{
+    va_list args;
+    int rc = 0;
+
+    if(prio >= ANDROID_LOG_WARN) {
+        va_start(args, fmt);
+        rc = fprintf(stderr, "%s: ", tag);
+        rc += vfprintf(stderr, fmt, args);
+        rc += fprintf(stderr, "\n");
+        va_end(args);
+    }
+
+    return rc;
+}
+
+#endif
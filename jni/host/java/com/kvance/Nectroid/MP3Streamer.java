@@ -0,0 +1,30 @@
+// This file is part of Nectroid.
+//
+// Nectroid is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Nectroid is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with Nectroid.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.kvance.Nectroid;
+
+
+/** Host stand-in for the app's MP3Streamer.
+ *
+ * libmp3streamer looks up onAudioFormatChanged() when it's loaded, and refuses to load without it,
+ * so the host benchmarks need a class with that method.  Nothing calls it.
+ */
+class MP3Streamer
+{
+    private boolean onAudioFormatChanged(int sampleRate, int channels)
+    {
+        return true;
+    }
+}
@@ -0,0 +1,111 @@
+// This file is part of Nectroid.
+//
+// Nectroid is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Nectroid is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with Nectroid.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.kvance.Nectroid;
+
+
+/** Times a frame of PCM crossing JNI through RingBuffer.read(), on a desktop JVM.
+ *
+ * Each iteration writes one decoded frame (1152 stereo samples) into the buffer natively, then
+ * reads it into a Java array.  The read goes through either the real RingBuffer.read(), with its
+ * cached field ID and pinned array, or readWithLookups(), which finds the field and copies the
+ * array on every call the way the native code used to.  Both include the same native write, so
+ * the difference between them is the saving on each frame.
+ *
+ *     $ make -C jni/host jnibench
+ *
+ * This is HotSpot, not Dalvik, so only the difference between the two is worth reading.
+ */
+class RingBufferBench
+{
+    // Samples in one decoded MPEG-1 Layer III stereo frame
+    private static final int FRAME_SAMPLES = 1152 * 2;
+
+    // Frames before timing starts, frames timed, and timed runs of each
+    private static final int WARMUP = 200000;
+    private static final int ITERATIONS = 1000000;
+    private static final int RUNS = 5;
+
+
+    private interface Read
+    {
+        int run(RingBuffer rb, short[] dest);
+    }
+
+
+    public static void main(String[] args)
+    {
+        RingBuffer rb = new RingBuffer(FRAME_SAMPLES * 2 * 4);
+        short[] dest = new short[FRAME_SAMPLES];
+
+        Read lookups = new Read() {
+            public int run(RingBuffer rb, short[] dest) {
+                return readWithLookups(rb, dest, 0, dest.length);
+            }
+        };
+        Read cached = new Read() {
+            public int run(RingBuffer rb, short[] dest) {
+                return rb.read(dest, 0, dest.length);
+            }
+        };
+
+        long lookupNanos = best(rb, dest, lookups);
+        long cachedNanos = best(rb, dest, cached);
+        System.out.println(String.format("lookups and copy:  %5d ns per frame", lookupNanos));
+        System.out.println(String.format("cached and pinned: %5d ns per frame (%d ns less)",
+                    cachedNanos, lookupNanos - cachedNanos));
+    }
+
+
+    ///
+    /// Utility methods
+    ///
+
+    /** Return the fastest mean nanoseconds per frame over RUNS runs. */
+    private static long best(RingBuffer rb, short[] dest, Read read)
+    {
+        time(rb, dest, read, WARMUP);
+        long best = Long.MAX_VALUE;
+        for(int i = 0; i < RUNS; i++) {
+            best = Math.min(best, time(rb, dest, read, ITERATIONS));
+        }
+        return best;
+    }
+
+
+    private static long time(RingBuffer rb, short[] dest, Read read, int frames)
+    {
+        long start = System.nanoTime();
+        for(int i = 0; i < frames; i++) {
+            fill(rb, dest.length * 2);
+            if(read.run(rb, dest) != dest.length) {
+                throw new IllegalStateException("short read");
+            }
+        }
+        return (System.nanoTime() - start) / frames;
+    }
+
+
+    ///
+    /// Native interface (rbbench_jni.c)
+    ///
+
+    /** Write bytes of silence into rb, and return the number written. */
+    private static native int fill(RingBuffer rb, int bytes);
+
+    /** Like rb.read(), but with the field lookup and array copy the old native code made. */
+    private static native int readWithLookups(RingBuffer rb, short[] dest, int offset,
+            int length);
+}
@@ -0,0 +1,429 @@
+/* This file is part of Nectroid.
+ *
+ * Nectroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nectroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Nectroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/* Benchmark the native decode path on a host machine.
+ *
+ * Each input file is loaded into an MP3 ringbuffer and run through mp3decoder_run() into a null
+ * sink, exactly as the streaming thread would on the device minus the JNI calls.  For each file
+ * this reports decoded frames per second, the time spent on each frame, and how many heap
+ * allocations the decoder made while running.
+ *
+ * usage: mp3bench [-r runs] file.mp3...
+ *        mp3bench -w dir [-n frames] kbps...
+ *
+ * The second form writes synthetic MPEG-1 Layer III streams (44.1 kHz stereo) at the given
+ * bitrates to dir/<kbps>.mp3.  Their frames decode to silence, so they exercise framing,
+ * synthesis and the ringbuffer but not Huffman decoding; pass real recordings for that. */
+
+#include <errno.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+
+#include "abort.h"
+#include "mp3decoder.h"
+#include "ringbuffer.h"
+
+
+/* Default number of frames in a synthetic stream (about 52 seconds) */
+#define DEFAULT_FIXTURE_FRAMES 2000
+
+/* Largest number of frames timed in one run */
+#define MAX_TIMED_FRAMES (1 << 20)
+
+
+/*
+ * Forward declarations
+ */
+
+static int write_fixture(const char *dir, int kbps, int num_frames);
+static int bench_file(const char *path, int runs);
+static unsigned char *load_file(const char *path, int *length);
+static int on_format_changed(void *data, int samplerate, int channels);
+static int on_pcm_output(void *data, const short *samples, int length);
+static long long now_ns(void);
+static int compare_ns(const void *a, const void *b);
+
+
+/*
+ * Data structures
+ */
+
+/* Null sink that timestamps every frame */
+struct null_sink {
+    /* Time each frame finished decoding, relative to the previous one */
+    long long *frame_ns;
+    int num_frames;
+
+    /* When the previous frame finished */
+    long long last_ns;
+
+    /* Samples thrown away */
+    long long num_samples;
+};
+
+/* Heap usage counted by the malloc wrappers */
+struct alloc_stats {
+    long count;
+    long bytes;
+};
+
+static struct alloc_stats g_allocs;
+
+
+/*
+ * Allocation counting (see --wrap in the Makefile)
+ */
+
+void *__real_malloc(size_t size);
+void *__real_calloc(size_t nmemb, size_t size);
+void *__real_realloc(void *ptr, size_t size);
+void __real_free(void *ptr);
+
+void *__wrap_malloc(size_t size)
+{
+    g_allocs.count++;
+    g_allocs.bytes += size;
+    return __real_malloc(size);
+}
+
+void *__wrap_calloc(size_t nmemb, size_t size)
+{
+    g_allocs.count++;
+    g_allocs.bytes += nmemb * size;
+    return __real_calloc(nmemb, size);
+}
+
+void *__wrap_realloc(void *ptr, size_t size)
+{
+    g_allocs.count++;
+    g_allocs.bytes += size;
+    return __real_realloc(ptr, size);
+}
+
+void __wrap_free(void *ptr)
+{
+    __real_free(ptr);
+}
+
+
+/*
+ * Main
+ */
+
+static void usage(void)
+{
+    fprintf(stderr, "usage: mp3bench [-r runs] file.mp3...\n"
+                    "       mp3bench -w dir [-n frames] kbps...\n");
+}
+
+
+int main(int argc, char **argv)
+{
+    const char *fixture_dir = NULL;
+    int num_frames = DEFAULT_FIXTURE_FRAMES;
+    int runs = 3;
+    int opt;
+    int i;
+    int error = 0;
+
+    while((opt = getopt(argc, argv, "n:r:w:")) != -1) {
+        switch(opt) {
+            case 'n': num_frames = atoi(optarg); break;
+            case 'r': runs = atoi(optarg); break;
+            case 'w': fixture_dir = optarg; break;
+            default: usage(); return 2;
+        }
+    }
+    if(optind == argc || num_frames < 1 || runs < 1) {
+        usage();
+        return 2;
+    }
+
+    if(fixture_dir != NULL) {
+        for(i = optind; !error && i < argc; i++) {
+            error = write_fixture(fixture_dir, atoi(argv[i]), num_frames);
+        }
+    } else {
+        printf("%-24s %9s %9s %9s %9s %9s %7s %9s\n", "file", "frames/s", "p50 ns", "p90 ns",
+                "p99 ns", "max ns", "allocs", "bytes");
+        for(i = optind; !error && i < argc; i++) {
+            error = bench_file(argv[i], runs);
+        }
+    }
+
+    return error ? 1 : 0;
+}
+
+
+/*
+ * Synthetic streams
+ */
+
+/* Write num_frames of silent MPEG-1 Layer III at this bitrate to dir/<kbps>.mp3.
+ *
+ * Return 0 on success, 1 on error. */
+static int write_fixture(const char *dir, int kbps, int num_frames)
+{
+    static const int bitrates[] = { 0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256,
+        320 };
+    unsigned char frame[1500];
+    char path[1024];
+    FILE *fp = NULL;
+    int bitrate_index = 0;
+    int remainder = 0;
+    int i;
+    int error = 0;
+
+    /* Look up the header's bitrate index. */
+    for(i = 1; i < (int)(sizeof(bitrates) / sizeof(bitrates[0])); i++) {
+        if(bitrates[i] == kbps) {
+            bitrate_index = i;
+        }
+    }
+    if(bitrate_index == 0) {
+        fprintf(stderr, "Unsupported bitrate %d kbps\n", kbps);
+        error = 1;
+    }
+
+    if(!error) {
+        snprintf(path, sizeof(path), "%s/%d.mp3", dir, kbps);
+        fp = fopen(path, "wb");
+        if(fp == NULL) {
+            fprintf(stderr, "Couldn't open %s: %s\n", path, strerror(errno));
+            error = 1;
+        }
+    }
+
+    /* Frames are 144 * bitrate / samplerate bytes long; the fractional part is made up by
+     * padding some frames with an extra byte, as an encoder would. */
+    for(i = 0; !error && i < num_frames; i++) {
+        int padding;
+        int length;
+
+        remainder += (144 * kbps * 1000) % 44100;
+        padding = (remainder >= 44100);
+        if(padding) {
+            remainder -= 44100;
+        }
+        length = 144 * kbps * 1000 / 44100 + padding;
+
+        /* Sync, MPEG-1, Layer III, no CRC; 44.1 kHz stereo.  Zeroed side info and main data
+         * decode to silence. */
+        memset(frame, 0, length);
+        frame[0] = 0xff;
+        frame[1] = 0xfb;
+        frame[2] = (bitrate_index << 4) | (padding << 1);
+        frame[3] = 0x00;
+
+        if(fwrite(frame, 1, length, fp) != (size_t)length) {
+            fprintf(stderr, "Couldn't write %s: %s\n", path, strerror(errno));
+            error = 1;
+        }
+    }
+
+    if(fp != NULL && fclose(fp) != 0) {
+        fprintf(stderr, "Couldn't close %s: %s\n", path, strerror(errno));
+        error = 1;
+    }
+    if(!error) {
+        printf("Wrote %s (%d frames)\n", path, num_frames);
+    }
+
+    return error;
+}
+
+
+/*
+ * Benchmark
+ */
+
+/* Decode this file runs times and print its timings.  The first run only warms up the caches
+ * when there's more than one.
+ *
+ * Return 0 on success, 1 on error. */
+static int bench_file(const char *path, int runs)
+{
+    struct ringbuffer *mp3_buffer = NULL;
+    struct alloc_stats allocs;
+    struct null_sink sink;
+    unsigned char *data;
+    long long total_ns = 0;
+    long long *all_ns = NULL;
+    int all_frames = 0;
+    int length = 0;
+    int run;
+    int error = 0;
+
+    data = load_file(path, &length);
+    if(data == NULL) {
+        error = 1;
+    }
+
+    /* The ringbuffer holds the whole file, so the decoder never waits on input. */
+    if(!error) {
+        mp3_buffer = ringbuffer_create(length + 1);
+        all_ns = malloc(sizeof(long long) * MAX_TIMED_FRAMES);
+        sink.frame_ns = malloc(sizeof(long long) * MAX_TIMED_FRAMES);
+        if(mp3_buffer == NULL || all_ns == NULL || sink.frame_ns == NULL) {
+            fprintf(stderr, "Out of memory\n");
+            error = 1;
+        }
+    }
+
+    memset(&allocs, 0, sizeof(allocs));
+    for(run = 0; !error && run < runs; run++) {
+        struct decoder_output output;
+        struct alloc_stats before;
+        long long start_ns;
+
+        /* Refill the buffer, and abort it so the decoder stops once it runs dry. */
+        mp3_buffer->read = mp3_buffer->write = 0;
+        mp3_buffer->aborted = 0;
+        ringbuffer_write(mp3_buffer, data, length);
+        ringbuffer_abort(mp3_buffer);
+
+        sink.num_frames = 0;
+        sink.num_samples = 0;
+        output.format_changed = on_format_changed;
+        output.write = on_pcm_output;
+        output.data = &sink;
+
+        before = g_allocs;
+        start_ns = now_ns();
+        sink.last_ns = start_ns;
+        error = mp3decoder_run(mp3_buffer, &output);
+        if(error) {
+            fprintf(stderr, "%s: decoder failed\n", path);
+        } else if(sink.num_frames == 0) {
+            fprintf(stderr, "%s: no frames decoded\n", path);
+            error = 1;
+        }
+
+        /* Keep the timings from every run after the warmup. */
+        if(!error && (run > 0 || runs == 1)) {
+            int n = sink.num_frames;
+            if(all_frames + n > MAX_TIMED_FRAMES) {
+                n = MAX_TIMED_FRAMES - all_frames;
+            }
+            memcpy(all_ns + all_frames, sink.frame_ns, sizeof(long long) * n);
+            all_frames += n;
+            total_ns += sink.last_ns - start_ns;
+            allocs.count = g_allocs.count - before.count;
+            allocs.bytes = g_allocs.bytes - before.bytes;
+        }
+    }
+
+    if(!error && all_frames > 0) {
+        qsort(all_ns, all_frames, sizeof(long long), compare_ns);
+        printf("%-24s %9.0f %9lld %9lld %9lld %9lld %7ld %9ld\n", path,
+                all_frames * 1e9 / total_ns,
+                all_ns[all_frames / 2],
+                all_ns[(int)(all_frames * 0.90)],
+                all_ns[(int)(all_frames * 0.99)],
+                all_ns[all_frames - 1],
+                allocs.count, allocs.bytes);
+    }
+
+    if(mp3_buffer != NULL) {
+        ringbuffer_destroy(mp3_buffer);
+    }
+    free(sink.frame_ns);
+    free(all_ns);
+    free(data);
+    return error;
+}
+
+
+/* Read a whole file into memory.  Return the data, or NULL on error. */
+static unsigned char *load_file(const char *path, int *length)
+{
+    unsigned char *data = NULL;
+    FILE *fp;
+    long size = -1;
+
+    fp = fopen(path, "rb");
+    if(fp == NULL) {
+        fprintf(stderr, "Couldn't open %s: %s\n", path, strerror(errno));
+        return NULL;
+    }
+
+    if(fseek(fp, 0, SEEK_END) == 0) {
+        size = ftell(fp);
+        rewind(fp);
+    }
+    if(size > 0) {
+        data = malloc(size);
+    }
+    if(data != NULL && fread(data, 1, size, fp) != (size_t)size) {
+        free(data);
+        data = NULL;
+    }
+    if(data == NULL) {
+        fprintf(stderr, "Couldn't read %s\n", path);
+    }
+
+    fclose(fp);
+    *length = (int)size;
+    return data;
+}
+
+
+/*
+ * Null sink
+ */
+
+static int on_format_changed(void *data, int samplerate, int channels)
+{
+    return 0;
+}
+
+
+static int on_pcm_output(void *data, const short *samples, int length)
+{
+    struct null_sink *sink = data;
+    long long now = now_ns();
+
+    if(sink->num_frames < MAX_TIMED_FRAMES) {
+        sink->frame_ns[sink->num_frames++] = now - sink->last_ns;
+    }
+    sink->last_ns = now;
+    sink->num_samples += length;
+
+    return 0;
+}
+
+
+/*
+ * Utility functions
+ */
+
+static long long now_ns(void)
+{
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1000000000LL + ts.tv_nsec;
+}
+
+
+static int compare_ns(const void *a, const void *b)
+{
+    long long x = *(const long long *)a;
+    long long y = *(const long long *)b;
+    return (x > y) - (x < y);
+}
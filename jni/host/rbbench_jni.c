@@ -0,0 +1,99 @@
+/* This file is part of Nectroid.
+ *
+ * Nectroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nectroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Nectroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/* Native half of RingBufferBench, linked into the host build of libmp3streamer.
+ *
+ * fill() stands in for the decoder, writing a frame of PCM into a RingBuffer.  readWithLookups()
+ * reads it back the way the native code crossed JNI before the IDs were cached: it looks up the
+ * RingBuffer's class and mRBPointer field on every call, and copies through
+ * GetShortArrayElements() instead of pinning the array.  The benchmark times it against the real
+ * RingBuffer.read(). */
+
+#include <jni.h>
+
+#include <stdint.h>
+
+#include "logmacros.h"
+#include "ringbuffer.h"
+#include "ringbuffer_jni.h"
+
+
+/* min(x,y) macro */
+#define MIN(X,Y) ((X) < (Y) ? (X) : (Y))
+
+
+/* Largest write fill() will make at once */
+#define MAX_FILL 16384
+
+
+/*
+ * Public interface
+ */
+
+JNIEXPORT jint JNICALL Java_com_kvance_Nectroid_RingBufferBench_fill
+    (JNIEnv *env, jclass cls, jobject ringbuffer, jint bytes)
+{
+    static unsigned char pcm[MAX_FILL];
+    int result = 0;
+
+    struct ringbuffer *rb = get_local_ringbuffer(env, ringbuffer);
+    if(rb == NULL) {
+        LOGE("Tried to fill a NULL ringbuffer");
+    } else {
+        result = ringbuffer_write(rb, pcm, MIN(bytes, MAX_FILL));
+    }
+
+    return result;
+}
+
+
+JNIEXPORT jint JNICALL Java_com_kvance_Nectroid_RingBufferBench_readWithLookups
+    (JNIEnv *env, jclass cls, jobject ringbuffer, jshortArray dest, jint offset, jint length)
+{
+    struct ringbuffer *rb = NULL;
+    jclass rb_cls = NULL;
+    jfieldID fid = NULL;
+    jshort *samples = NULL;
+    int result = 0;
+
+    /* Find the native pointer without the cached field ID. */
+    rb_cls = (*env)->GetObjectClass(env, ringbuffer);
+    fid = (*env)->GetFieldID(env, rb_cls, "mRBPointer", "J");
+    if(fid == NULL) {
+        LOGE("Failed to get RingBuffer.mRBPointer's field ID");
+        result = -1;
+    } else {
+        jlong ptr = (*env)->GetLongField(env, ringbuffer, fid);
+        rb = (struct ringbuffer *)(intptr_t)ptr;
+    }
+
+    /* Copy into the elements, then have them written back to the array. */
+    if(result == 0) {
+        samples = (*env)->GetShortArrayElements(env, dest, NULL);
+        if(samples == NULL) {
+            LOGE("Could not get the sample array elements");
+            result = -1;
+        }
+    }
+    if(result == 0) {
+        int bytes = MIN(length * 2, ringbuffer_length(rb) & ~1);
+        result = ringbuffer_copy_out(rb, (unsigned char *)(samples + offset), bytes) / 2;
+        (*env)->ReleaseShortArrayElements(env, dest, samples, 0);
+        ringbuffer_wake_writer(rb);
+    }
+
+    return result;
+}
@@ -17,6 +17,7 @@
 
 #include <errno.h>
 #include <netdb.h>
+#include <stdint.h>
 #include <netinet/in.h>
 #include <sys/select.h>
 #include <sys/socket.h>
@@ -28,6 +29,7 @@
 #include "logmacros.h"
 #include "read.h"
 #include "ringbuffer_jni.h"
+#include "splicer.h"
 
 /*
  * Forward declarations
@@ -143,22 +145,52 @@ JNIEXPORT jboolean JNICALL Java_com_kvance_Nectroid_MP3Streamer_waitForReadable
 }
 
 
-/* Read any amount of data into this MP3 ringbuffer. */
-JNIEXPORT jboolean JNICALL Java_com_kvance_Nectroid_MP3Streamer_readIntoMP3Buffer
-    (JNIEnv *env, jobject streamer, jint sock, jobject ringbuffer_obj)
+/* Interrupt any blocking reads on this socket, without closing it. */
+JNIEXPORT void JNICALL Java_com_kvance_Nectroid_MP3Streamer_interruptSocket
+    (JNIEnv *env, jobject obj, jint sock)
 {
-    int error = 0;
+    shutdown(sock, SHUT_RDWR);
+}
+
+
+/* Create a splicer for the buffering thread, returning a pointer to it. */
+JNIEXPORT jlong JNICALL Java_com_kvance_Nectroid_MP3Streamer_createSplicer
+    (JNIEnv *env, jobject obj)
+{
+    struct splicer *sp = splicer_create();
+    return (jlong)(intptr_t)sp;
+}
+
+
+/* Free this splicer. */
+JNIEXPORT void JNICALL Java_com_kvance_Nectroid_MP3Streamer_destroySplicer
+    (JNIEnv *env, jobject obj, jlong splicer)
+{
+    splicer_destroy((struct splicer *)(intptr_t)splicer);
+}
+
+
+/* Drop this splicer's unfinished frame, and resynchronize on the next connection's data. */
+JNIEXPORT void JNICALL Java_com_kvance_Nectroid_MP3Streamer_resetSplicer
+    (JNIEnv *env, jobject obj, jlong splicer)
+{
+    splicer_reset((struct splicer *)(intptr_t)splicer);
+}
+
+
+/* Read any amount of data through the splicer into this MP3 ringbuffer.  Returns the number of
+ * bytes read, or -1 for error. */
+JNIEXPORT jint JNICALL Java_com_kvance_Nectroid_MP3Streamer_readIntoMP3Buffer
+    (JNIEnv *env, jobject streamer, jint sock, jlong splicer, jobject ringbuffer_obj)
+{
+    int result = -1;
 
     struct ringbuffer *rbuf = get_local_ringbuffer(env, ringbuffer_obj);
-    if(!rbuf) {
-        error = 1;
-    }
-    
-    if(!error) {
-        error = read_into_ringbuffer(sock, rbuf);
+    if(rbuf) {
+        result = read_into_ringbuffer(sock, (struct splicer *)(intptr_t)splicer, rbuf);
     }
 
-    return error ? JNI_TRUE : JNI_FALSE;
+    return result;
 }
 
 
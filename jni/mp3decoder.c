@@ -0,0 +1,243 @@
+/* This file is part of Nectroid.
+ *
+ * Nectroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nectroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Nectroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+#include <string.h>
+
+#include "abort.h"
+#include "logmacros.h"
+#include "mad.h"
+#include "mp3decoder.h"
+
+
+/* How many bytes of MP3 to pass to libmad at a time. */
+#define MAX_MP3_CHUNK 3072
+
+/* Most samples per channel libmad can decode from one frame */
+#define MAX_FRAME_SAMPLES 1152
+
+
+/*
+ * Forward declarations
+ */
+
+static enum mad_flow on_mad_input(void *data, struct mad_stream *stream);
+static enum mad_flow on_mad_output(void *data, struct mad_header const *header,
+        struct mad_pcm *pcm);
+static enum mad_flow on_mad_error(void *data, struct mad_stream *stream, struct mad_frame *frame);
+static inline signed int scale(mad_fixed_t sample);
+
+
+/*
+ * Data structures
+ */
+
+/* Local decoder state */
+struct decoder_state {
+    /* MP3 ringbuffer */
+    struct ringbuffer *buffer;
+
+    /* MP3 data being decoded.  libmad needs each frame in contiguous memory, so data is copied
+     * out of the ringbuffer into here instead of being decoded in place. */
+    unsigned char input[MAX_MP3_CHUNK + MAD_BUFFER_GUARD];
+
+    /* Format of the last PCM chunk decoded */
+    int last_samplerate;
+    int last_channels;
+
+    /* The last frame's samples, scaled and interleaved */
+    short pcm_frame[MAX_FRAME_SAMPLES * 2];
+
+    /* Where the decoded frames go */
+    struct decoder_output *output;
+
+    /* Set if an output callback failed */
+    int failed;
+};
+
+
+/*
+ * Public interface
+ */
+
+/* Decode MP3 data from this ringbuffer until it's aborted or the output fails.
+ *
+ * Return 0 on success, 1 on error. */
+int mp3decoder_run(struct ringbuffer *mp3_buffer, struct decoder_output *output)
+{
+    struct mad_decoder decoder;
+    struct decoder_state state;
+    int rc;
+    int error = 0;
+
+    /* Initialize decoder state. */
+    state.buffer = mp3_buffer;
+    state.last_samplerate = 0;
+    state.last_channels = 0;
+    state.output = output;
+    state.failed = 0;
+    mad_decoder_init(&decoder, &state, on_mad_input, NULL /* header */, NULL /* filter */,
+            on_mad_output, on_mad_error, NULL /* message */);
+
+    /* Run the decoder loop. */
+    rc = mad_decoder_run(&decoder, MAD_DECODER_MODE_SYNC);
+    if(rc != 0) {
+        LOGE("Decoder failed");
+        error = 1;
+    } else if(state.failed) {
+        error = 1;
+    }
+    mad_decoder_finish(&decoder);
+
+    return error;
+}
+
+
+/*
+ * libmad event handlers
+ */
+
+static enum mad_flow on_mad_input(void *data, struct mad_stream *stream)
+{
+    struct decoder_state *dsdata = data;
+    struct ringbuffer *rbuf = dsdata->buffer;
+    int remaining = 0;
+    int length = 0;
+    int error = 0;
+
+    /* Keep the partial frame libmad didn't get to in the last chunk. */
+    if(stream->next_frame != NULL) {
+        remaining = stream->bufend - stream->next_frame;
+        if(remaining >= MAX_MP3_CHUNK) {
+            /* A whole chunk without a complete frame; we've lost sync.  Start over. */
+            LOGW("No frame found in %d bytes; dropping them", remaining);
+            remaining = 0;
+        } else {
+            memmove(dsdata->input, stream->next_frame, remaining);
+        }
+    }
+
+    /* When starved, wait for the buffer to refill to the level the Java side has picked for the
+     * current network conditions, so playback doesn't stutter on every packet. */
+    if(ringbuffer_empty(rbuf)) {
+        LOGI("Buffer is empty; waiting for %d bytes", rbuf->refill_length);
+        error = ringbuffer_wait_for_refill(rbuf);
+    }
+    if(!error && g_abort) {
+        error = 1;
+    }
+    if(error) {
+        LOGI("Aborted while waiting for data");
+    }
+
+    /* Append the next chunk after the partial frame, and stream the data. */
+    if(!error) {
+        length = ringbuffer_read(rbuf, dsdata->input + remaining, MAX_MP3_CHUNK - remaining);
+        mad_stream_buffer(stream, dsdata->input, remaining + length);
+    }
+
+    return error ? MAD_FLOW_STOP : MAD_FLOW_CONTINUE;
+}
+
+
+static enum mad_flow on_mad_output(void *data, struct mad_header const *header,
+        struct mad_pcm *pcm)
+{
+    struct decoder_state *dsdata = data;
+    struct decoder_output *output = dsdata->output;
+    int error = 0;
+
+    /* Check if we should abort. */
+    if(g_abort) {
+        LOGI("Aborting MP3 playback.");
+        return MAD_FLOW_STOP;
+    }
+
+    /* Check for a change in audio format. */
+    if(pcm->samplerate != dsdata->last_samplerate || pcm->channels != dsdata->last_channels) {
+        LOGI("Detected change in audio format");
+        error = output->format_changed(output->data, pcm->samplerate, pcm->channels);
+        dsdata->last_samplerate = pcm->samplerate;
+        dsdata->last_channels = pcm->channels;
+    }
+
+    /* Make sure the samples will fit in the frame buffer. */
+    if(!error && pcm->length > MAX_FRAME_SAMPLES) {
+        LOGE("PCM frame is too long (%d samples)", pcm->length);
+        error = 1;
+    }
+
+    /* Scale the PCM data and pass it on. */
+    if(!error) {
+        short *outp = dsdata->pcm_frame;
+        int nchannels = pcm->channels;
+        int nsamples = pcm->length;
+        mad_fixed_t *left_ch = pcm->samples[0];
+        mad_fixed_t *right_ch = pcm->samples[1];
+
+        while(nsamples--) {
+            *(outp++) = scale(*left_ch++);
+            if(nchannels == 2) {
+                (*outp++) = scale(*right_ch++);
+            }
+        }
+
+        error = output->write(output->data, dsdata->pcm_frame, pcm->length * nchannels);
+    }
+
+    /* Stop decoding on error.  An abort while the output was waiting isn't a failure. */
+    if(error && !g_abort) {
+        dsdata->failed = 1;
+    }
+    return error ? MAD_FLOW_STOP : MAD_FLOW_CONTINUE;
+}
+
+
+static enum mad_flow on_mad_error(void *data, struct mad_stream *stream, struct mad_frame *frame)
+{
+    LOGE("decoding error 0x%04x (%s)", stream->error, mad_stream_errorstr(stream));
+
+    return MAD_FLOW_CONTINUE;
+}
+
+
+/*
+ * Utility functions
+ */
+
+/*
+ * The following utility routine performs simple rounding, clipping, and
+ * scaling of MAD's high-resolution samples down to 16 bits. It does not
+ * perform any dithering or noise shaping, which would be recommended to
+ * obtain any exceptional audio quality. It is therefore not recommended to
+ * use this routine if high-quality output is desired.
+ *
+ * (C) 2000-2004 Underbit Technologies, Inc.  See libmad for license.
+ */
+static inline
+signed int scale(mad_fixed_t sample)
+{
+  /* round */
+  sample += (1L << (MAD_F_FRACBITS - 16));
+
+  /* clip */
+  if (sample >= MAD_F_ONE)
+    sample = MAD_F_ONE - 1;
+  else if (sample < -MAD_F_ONE)
+    sample = -MAD_F_ONE;
+
+  /* quantize */
+  return sample >> (MAD_F_FRACBITS + 1 - 16);
+}
+
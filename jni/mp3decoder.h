@@ -0,0 +1,42 @@
+/* This file is part of Nectroid.
+ *
+ * Nectroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nectroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Nectroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+#ifndef MP3DECODER_H
+#define MP3DECODER_H
+
+#include "ringbuffer.h"
+
+/* Where the decoder sends its output.  The decoder itself knows nothing about Java, so it can be
+ * built and benchmarked on a host machine. */
+struct decoder_output {
+    /* Called before the first frame, and whenever the sample rate or channel count changes.
+     * Return 0 on success, 1 to stop decoding. */
+    int (*format_changed)(void *data, int samplerate, int channels);
+
+    /* Called with each frame's samples, 16-bit and interleaved.  length is the total number of
+     * samples across all channels.  Return 0 on success, 1 to stop decoding. */
+    int (*write)(void *data, const short *samples, int length);
+
+    /* Passed to the callbacks */
+    void *data;
+};
+
+
+/* Decode MP3 data from this ringbuffer until it's aborted or the output fails.
+ *
+ * Return 0 on success, 1 on error. */
+int mp3decoder_run(struct ringbuffer *mp3_buffer, struct decoder_output *output);
+
+#endif
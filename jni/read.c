@@ -19,6 +19,7 @@
 
 #include "logmacros.h"
 #include "read.h"
+#include "splicer.h"
 
 /*
  * Forward declarations
@@ -78,27 +79,35 @@ int read_fully(int fd, unsigned char *buffer, int length, int *abort_flag)
 }
 
 
-/* Read whatever is available into this ringbuffer.
+/* Read whatever is available through this splicer, passing whole frames on to the ringbuffer.
  *
- * Return 0 on success, 1 on error. */
-int read_into_ringbuffer(int fd, struct ringbuffer *rbuf)
+ * Return the number of bytes read, or -1 for error. */
+int read_into_ringbuffer(int fd, struct splicer *sp, struct ringbuffer *rbuf)
 {
     int error = 0;
+    int num_bytes_read = 0;
 
-    /* Read into a contiguous buffer. */
-    int length = ringbuffer_available_contiguous_write(rbuf);
-    int num_bytes_read = read(fd, rbuf->write, length);
-    error = check_read_error(num_bytes_read);
+    /* Make room by passing on any frames that are already complete. */
+    splicer_flush(sp, rbuf);
+    if(splicer_read_space(sp) == 0) {
+        /* The splicer is full of frames that don't fit; wait for the decoder to catch up. */
+        error = ringbuffer_wait_for_space(rbuf, MAX_MP3_FRAME_SIZE);
+        if(!error) {
+            splicer_flush(sp, rbuf);
+        }
+    }
 
-    /* Advance the write pointer. */
+    /* Read into the splicer, and hand the new frames to the reader. */
     if(!error) {
-        rbuf->write += num_bytes_read;
-        if(rbuf->write == rbuf->end) {
-            rbuf->write = rbuf->buffer;
-        }
+        num_bytes_read = read(fd, splicer_read_pointer(sp), splicer_read_space(sp));
+        error = check_read_error(num_bytes_read);
+    }
+    if(!error) {
+        splicer_commit_read(sp, num_bytes_read);
+        splicer_flush(sp, rbuf);
     }
 
-    return error;
+    return error ? -1 : num_bytes_read;
 }
 
 
@@ -17,6 +17,7 @@
 #define READ_H
 
 #include "ringbuffer.h"
+#include "splicer.h"
 
 
 /* Read in a loop until at_least bytes have been read or at_most have been read. 
@@ -28,9 +29,9 @@ int read_loop(int fd, unsigned char *buffer, int at_least, int at_most, int *abo
 int read_fully(int fd, unsigned char *buffer, int length, int *abort_flag);
 
 
-/* Read whatever is available into this ringbuffer.
+/* Read whatever is available through this splicer, passing whole frames on to the ringbuffer.
  *
- * Return 0 on success, 1 on error. */
-int read_into_ringbuffer(int fd, struct ringbuffer *rb);
+ * Return the number of bytes read, or -1 for error. */
+int read_into_ringbuffer(int fd, struct splicer *sp, struct ringbuffer *rb);
 
 #endif
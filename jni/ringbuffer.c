@@ -20,6 +20,20 @@
 #include "ringbuffer.h"
 
 
+/* Full memory barrier.  Orders data accesses against the index stores the other side sees. */
+#define MEMORY_BARRIER() __sync_synchronize()
+
+/* min(x,y) macro */
+#define MIN(X,Y) ((X) < (Y) ? (X) : (Y))
+
+
+/*
+ * Forward declarations
+ */
+
+static void wake_waiters(struct ringbuffer *rb);
+
+
 /* Create a new ringbuffer.  Returns NULL on failure. */
 struct ringbuffer *ringbuffer_create(int size)
 {
@@ -44,9 +58,16 @@ struct ringbuffer *ringbuffer_create(int size)
 
     /* Fill in the rest of the fields. */
     if(!error) {
-        rb->end = rb->buffer + size;
-        rb->read = rb->buffer;
-        rb->write = rb->buffer;
+        rb->size = size;
+        rb->read = 0;
+        rb->write = 0;
+        rb->wait_length = 0;
+        rb->wait_space = 0;
+        rb->aborted = 0;
+        rb->refill_length = 1;
+        rb->underruns = 0;
+        pthread_mutex_init(&rb->wait_lock, NULL);
+        pthread_cond_init(&rb->wait_cond, NULL);
     }
 
     /* Clean up on failure. */
@@ -60,6 +81,8 @@ struct ringbuffer *ringbuffer_create(int size)
 /* Free the ringbuffer data and its structure. */
 void ringbuffer_destroy(struct ringbuffer *rb)
 {
+    pthread_cond_destroy(&rb->wait_cond);
+    pthread_mutex_destroy(&rb->wait_lock);
     free(rb->buffer);
     free(rb);
 }
@@ -68,166 +91,273 @@ void ringbuffer_destroy(struct ringbuffer *rb)
 /* Return 1 if the buffer is empty, or 0 if not empty. */
 int ringbuffer_empty(struct ringbuffer *rb)
 {
-    /* It's empty when the read and write pointers are the same. */
-    if(rb->read == rb->write) {
-        return 1;
-    } else {
-        return 0;
-    }
+    return (ringbuffer_length(rb) == 0) ? 1 : 0;
 }
 
 
 /* Return 1 if the buffer is full, or 0 if not full. */
 int ringbuffer_full(struct ringbuffer *rb)
 {
-    /* It's full when the write pointer is 1 element before the read pointer, equivalently if the
-     * write pointer is at the end and the read pointer is at the beginning (since the buffer is
-     * circular). */
-    if(rb->write == (rb->read - 1)) {
-        return 1;
-    } else if((rb->write == (rb->end - 1) && (rb->read == rb->buffer))) {
-        return 1;
-    } else {
-        return 0;
-    }
+    /* One byte is always left unused, so that a full buffer doesn't look empty. */
+    return (ringbuffer_length(rb) == (rb->size - 1)) ? 1 : 0;
 }
 
 
-/* Return the number of bytes of data written to this ring buffer. */
+/* Return the number of bytes of data written to this ring buffer.
+ *
+ * This is a snapshot; the other side may change it as soon as it's returned. */
 int ringbuffer_length(struct ringbuffer *rb)
 {
-    if(rb->read == rb->write) {
-        return 0;
-    } else if(rb->read < rb->write) {
-        return rb->write - rb->read;
+    int read = rb->read;
+    int write = rb->write;
+
+    if(write >= read) {
+        return write - read;
     } else {
-        return (rb->end - rb->read) + (rb->write - rb->buffer);
+        return (rb->size - read) + write;
     }
 }
 
 
-/* Make sure there is a contiguous buffer of at least n bytes after the read pointer.  The buffer
- * may be reorganized to make this true.
+/* Return the number of bytes that can be written to this ring buffer. */
+int ringbuffer_space(struct ringbuffer *rb)
+{
+    return (rb->size - 1) - ringbuffer_length(rb);
+}
+
+
+/*
+ * Waiting
+ */
+
+/* Block until at least length bytes are in the buffer.
  *
- * Return 1 on error, 0 on success. */
-int ringbuffer_require_contiguous_read(struct ringbuffer *rb, int n)
+ * Return 0 on success, 1 if the buffer was aborted. */
+int ringbuffer_wait_for_length(struct ringbuffer *rb, int length)
 {
-    int error = 0;
+    int aborted;
+
+    /* Never wait for more than the buffer can hold. */
+    length = MIN(length, rb->size - 1);
 
-    /* If the region exceeds the end of the buffer, shift the read pointer back to the start. */
-    if((rb->read + n) >= rb->end) {
-        error = ringbuffer_realign(rb);
+    pthread_mutex_lock(&rb->wait_lock);
+
+    /* Announce the threshold before checking the length, so the writer either sees it or we see
+     * the writer's data. */
+    rb->wait_length = length;
+    MEMORY_BARRIER();
+    while(!rb->aborted && (ringbuffer_length(rb) < length)) {
+        pthread_cond_wait(&rb->wait_cond, &rb->wait_lock);
     }
+    rb->wait_length = 0;
+    aborted = rb->aborted;
 
-    return error;
+    pthread_mutex_unlock(&rb->wait_lock);
+    return aborted;
 }
 
 
-/* Reorganize the ring buffer such that the read pointer is at the start of memory.
+/* Block until at least space bytes can be written to the buffer.
  *
- * Return 1 on error, 0 on success. */
-int ringbuffer_realign(struct ringbuffer *rb)
+ * Return 0 on success, 1 if the buffer was aborted. */
+int ringbuffer_wait_for_space(struct ringbuffer *rb, int space)
 {
-    int error = 0;
-    if(rb->read == rb->buffer) {
-        /* Already aligned; do nothing. */
-
-    } else if(rb->write > rb->read) {
-        /* The buffer does not wrap; simply move it back to the beginning.
-         *
-         * 1. [.......xxxxx...] 
-         *     b      r    w  e    (b=buffer, w=write, r=read, e=end)
-         *
-         * 2. [xxxxx..........]
-         *     b    w         e
-         *     r
-         */
-        int length = rb->write - rb->read;
-        memmove(rb->buffer, rb->read, length);
-
-        /* Update the pointers. */
-        rb->read = rb->buffer;
-        rb->write = rb->buffer + length;
+    int aborted;
 
-    } else {
-        /* The buffer wraps around.
-         *
-         * Copy suffix to a temporary buffer, move prefix to the beginning, and append suffix:
-         *
-         *    suffix      prefix
-         * 1. [ooooo.......xxx] 
-         *     b    w      r  e    (b=buffer, w=write, r=read, e=end)
-         *
-         *  prefix suffix
-         * 2. [xxxooooo.......]
-         *     b       w      e
-         *     r
-         */
-
-        /* Copy the suffix to a temporary buffer. */
-        int suffix_length = rb->write - rb->buffer;
-        void *suffix = malloc(suffix_length);
-        if(suffix == NULL) {
-            LOGE("Out of memory allocating temporary suffix buffer");
-            error = 1;
-
-        } else {
-            memcpy(suffix, rb->buffer, suffix_length);
-        }
-
-        /* Copy the prefix to the beginning, and append the suffix. */
-        if(!error) {
-            int prefix_length = rb->end - rb->read;
-            unsigned char *suffix_dest = rb->buffer + prefix_length;
-            memmove(rb->buffer, rb->read, prefix_length);
-            memcpy(suffix_dest, suffix, suffix_length);
+    /* Never wait for more than the buffer can hold. */
+    space = MIN(space, rb->size - 1);
 
-            /* Update the pointers. */
-            rb->read = rb->buffer;
-            rb->write = suffix_dest + suffix_length;
+    pthread_mutex_lock(&rb->wait_lock);
 
-            /* Clean up. */
-            free(suffix);
-        }
+    /* Announce the threshold before checking the space, so the reader either sees it or we see
+     * the space it freed. */
+    rb->wait_space = space;
+    MEMORY_BARRIER();
+    while(!rb->aborted && (ringbuffer_space(rb) < space)) {
+        pthread_cond_wait(&rb->wait_cond, &rb->wait_lock);
     }
+    rb->wait_space = 0;
+    aborted = rb->aborted;
 
-    return error;
+    pthread_mutex_unlock(&rb->wait_lock);
+    return aborted;
 }
 
 
-/* Return the number of contiguous bytes available to read from. */
-int ringbuffer_available_contiguous_read(struct ringbuffer *rb)
+/* Wake everyone waiting on this buffer, and make all future waits return immediately. */
+void ringbuffer_abort(struct ringbuffer *rb)
 {
-    int result = 0;
-    if(rb->write > rb->read) {
-        /* Write pointer is after the read pointer; the region extends to the write pointer. */
-        result = rb->write - rb->read;
-    } else {
-        /* Write pointer is before the read pointer; the region extends to the buffer end. */
-        result = rb->end - rb->read;
-    }
+    rb->aborted = 1;
+    wake_waiters(rb);
+}
 
-    return result;
+
+/* Count an underrun, and block until the buffer has refilled to its refill length.
+ *
+ * Return 0 on success, 1 if the buffer was aborted. */
+int ringbuffer_wait_for_refill(struct ringbuffer *rb)
+{
+    rb->underruns++;
+    return ringbuffer_wait_for_length(rb, rb->refill_length);
 }
 
 
+/*
+ * Writer interface
+ */
+
 /* Return the number of contiguous bytes available to write to. */
 int ringbuffer_available_contiguous_write(struct ringbuffer *rb)
 {
+    int read = rb->read;
+    int write = rb->write;
     int result = 0;
-    if(rb->write >= rb->read) {
-        /* Write pointer is after the read pointer; the region extends to the end of the buffer.
-         * If the read pointer is still at the beginning, the region extends 1 byte less to prevent
+
+    if(write >= read) {
+        /* Write index is after the read index; the region extends to the end of the buffer.
+         * If the read index is still at the beginning, the region extends 1 byte less to prevent
          * overflow. */
-        result = rb->end - rb->write;
-        if(rb->read == rb->buffer) {
+        result = rb->size - write;
+        if(read == 0) {
             result--;
         }
     } else {
-        /* Write pointer is before the read pointer; the region extends to 1 byte before the read
-         * pointer. */
-        result = rb->read - rb->buffer - 1;
+        /* Write index is before the read index; the region extends to 1 byte before the read
+         * index. */
+        result = read - write - 1;
     }
 
+    /* Don't let the writer touch bytes the reader may still be copying out. */
+    MEMORY_BARRIER();
+
     return result;
 }
+
+
+/* Return the pointer to the start of the contiguous region available to write to. */
+unsigned char *ringbuffer_write_pointer(struct ringbuffer *rb)
+{
+    return rb->buffer + rb->write;
+}
+
+
+/* Publish n bytes written at ringbuffer_write_pointer() to the reader. */
+void ringbuffer_commit_write(struct ringbuffer *rb, int n)
+{
+    int write = rb->write + n;
+    if(write >= rb->size) {
+        write -= rb->size;
+    }
+
+    /* The data must be visible before the new write index is. */
+    MEMORY_BARRIER();
+    rb->write = write;
+
+    /* Wake a sleeping reader once there's as much data as it wants. */
+    MEMORY_BARRIER();
+    if(rb->wait_length > 0 && ringbuffer_length(rb) >= rb->wait_length) {
+        wake_waiters(rb);
+    }
+}
+
+
+
+/* Copy up to n bytes from src into the ring buffer, and publish them to the reader.
+ *
+ * Return the number of bytes copied. */
+int ringbuffer_write(struct ringbuffer *rb, const unsigned char *src, int n)
+{
+    int write = rb->write;
+    int total = 0;
+
+    /* Don't let the writer touch bytes the reader may still be copying out. */
+    n = MIN(n, ringbuffer_space(rb));
+    MEMORY_BARRIER();
+
+    /* Copy the part up to the end of the buffer, then the part that wraps around.  Everything is
+     * published with a single commit. */
+    while(total < n) {
+        int length = MIN(rb->size - write, n - total);
+        memcpy(rb->buffer + write, src + total, length);
+        total += length;
+        write += length;
+        if(write == rb->size) {
+            write = 0;
+        }
+    }
+
+    if(total > 0) {
+        ringbuffer_commit_write(rb, total);
+    }
+    return total;
+}
+
+
+/*
+ * Reader interface
+ */
+
+/* Copy up to n bytes out of the ring buffer into dest, and release that space to the writer.
+ *
+ * Return the number of bytes copied. */
+int ringbuffer_read(struct ringbuffer *rb, unsigned char *dest, int n)
+{
+    int total = ringbuffer_copy_out(rb, dest, n);
+    ringbuffer_wake_writer(rb);
+    return total;
+}
+
+
+/* Like ringbuffer_read(), but without waking the writer.  This never blocks.
+ *
+ * Return the number of bytes copied. */
+int ringbuffer_copy_out(struct ringbuffer *rb, unsigned char *dest, int n)
+{
+    int read = rb->read;
+    int write = rb->write;
+    int total = 0;
+
+    /* Don't read data older than the write index we just loaded. */
+    MEMORY_BARRIER();
+
+    /* Copy the part up to the end of the buffer, then the part that wrapped around. */
+    while(total < n && read != write) {
+        int contiguous = (write > read) ? (write - read) : (rb->size - read);
+        int length = MIN(contiguous, n - total);
+        memcpy(dest + total, rb->buffer + read, length);
+        total += length;
+        read += length;
+        if(read == rb->size) {
+            read = 0;
+        }
+    }
+
+    /* Finish copying before handing the space back to the writer. */
+    MEMORY_BARRIER();
+    rb->read = read;
+
+    return total;
+}
+
+
+/* Wake a sleeping writer if there's now as much space as it wants.  This may take the lock. */
+void ringbuffer_wake_writer(struct ringbuffer *rb)
+{
+    MEMORY_BARRIER();
+    if(rb->wait_space > 0 && ringbuffer_space(rb) >= rb->wait_space) {
+        wake_waiters(rb);
+    }
+}
+
+
+/*
+ * Utility functions
+ */
+
+/* Wake all threads sleeping on this buffer so they can recheck their conditions. */
+static void wake_waiters(struct ringbuffer *rb)
+{
+    pthread_mutex_lock(&rb->wait_lock);
+    pthread_cond_broadcast(&rb->wait_cond);
+    pthread_mutex_unlock(&rb->wait_lock);
+}
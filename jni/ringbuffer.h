@@ -16,18 +16,50 @@
 #ifndef RINGBUFFER_H
 #define RINGBUFFER_H
 
+#include <pthread.h>
+
+/* Single-producer, single-consumer ring buffer.
+ *
+ * One thread writes (advancing the write index) and one thread reads (advancing the read index).
+ * Each index is only ever stored by its owner, so the two sides never need a lock; memory barriers
+ * order the data accesses against the index updates.
+ *
+ * The buffer holds at most size - 1 bytes, so read == write always means empty.
+ *
+ * Either side can sleep until the fill level crosses a threshold with ringbuffer_wait_for_length()
+ * or ringbuffer_wait_for_space().  The lock is only taken to go to sleep or to wake a sleeper, and
+ * the other side only wakes it once its threshold has actually been crossed. */
 struct ringbuffer {
     /* Data buffer */
     unsigned char *buffer;
 
-    /* Buffer end (i.e. *(end - 1) is okay but *end is invalid) */
-    unsigned char *end;
+    /* Size of the data buffer in bytes */
+    int size;
+
+    /* Read index (only stored by the reader) */
+    volatile int read;
+
+    /* Write index (only stored by the writer) */
+    volatile int write;
+
+    /* Lock and condition for sleeping on the fill level */
+    pthread_mutex_t wait_lock;
+    pthread_cond_t wait_cond;
+
+    /* Length a sleeping reader is waiting for, or 0 if no one is waiting */
+    volatile int wait_length;
 
-    /* Read pointer */
-    unsigned char *read;
+    /* Free space a sleeping writer is waiting for, or 0 if no one is waiting */
+    volatile int wait_space;
 
-    /* Write pointer */
-    unsigned char *write;
+    /* Set once ringbuffer_abort() is called */
+    volatile int aborted;
+
+    /* After running dry, the reader waits until this many bytes are buffered again */
+    volatile int refill_length;
+
+    /* Number of times the reader has run dry (only stored by the reader) */
+    volatile int underruns;
 };
 
 
@@ -46,21 +78,68 @@ int ringbuffer_full(struct ringbuffer *rb);
 /* Return the number of bytes of data written to this ring buffer. */
 int ringbuffer_length(struct ringbuffer *rb);
 
-/* Make sure there is a contiguous buffer of at least n bytes after the read pointer.  The buffer
- * may be reorganized to make this true.
+/* Return the number of bytes that can be written to this ring buffer. */
+int ringbuffer_space(struct ringbuffer *rb);
+
+
+/*
+ * Waiting
+ */
+
+/* Block until at least length bytes are in the buffer.
  *
- * Return 1 on error, 0 on success. */
-int ringbuffer_require_contiguous_read(struct ringbuffer *rb, int n);
+ * Return 0 on success, 1 if the buffer was aborted. */
+int ringbuffer_wait_for_length(struct ringbuffer *rb, int length);
 
-/* Reorganize the ring buffer such that the read pointer is at the start of memory.
+/* Block until at least space bytes can be written to the buffer.
  *
- * Return 1 on error, 0 on success. */
-int ringbuffer_realign(struct ringbuffer *rb);
+ * Return 0 on success, 1 if the buffer was aborted. */
+int ringbuffer_wait_for_space(struct ringbuffer *rb, int space);
 
-/* Return the number of contiguous bytes available to write to. */
-int ringbuffer_available_contiguous_read(struct ringbuffer *rb);
+/* Wake everyone waiting on this buffer, and make all future waits return immediately. */
+void ringbuffer_abort(struct ringbuffer *rb);
+
+/* Count an underrun, and block until the buffer has refilled to its refill length.
+ *
+ * Return 0 on success, 1 if the buffer was aborted. */
+int ringbuffer_wait_for_refill(struct ringbuffer *rb);
+
+
+/*
+ * Writer interface
+ */
 
 /* Return the number of contiguous bytes available to write to. */
 int ringbuffer_available_contiguous_write(struct ringbuffer *rb);
 
+/* Return the pointer to the start of the contiguous region available to write to. */
+unsigned char *ringbuffer_write_pointer(struct ringbuffer *rb);
+
+/* Publish n bytes written at ringbuffer_write_pointer() to the reader. */
+void ringbuffer_commit_write(struct ringbuffer *rb, int n);
+
+/* Copy up to n bytes from src into the ring buffer, and publish them to the reader.
+ *
+ * Return the number of bytes copied. */
+int ringbuffer_write(struct ringbuffer *rb, const unsigned char *src, int n);
+
+
+/*
+ * Reader interface
+ */
+
+/* Copy up to n bytes out of the ring buffer into dest, and release that space to the writer.
+ *
+ * Return the number of bytes copied. */
+int ringbuffer_read(struct ringbuffer *rb, unsigned char *dest, int n);
+
+/* Like ringbuffer_read(), but without waking the writer.  This never blocks, so it's safe where
+ * the caller can't sleep; call ringbuffer_wake_writer() afterwards.
+ *
+ * Return the number of bytes copied. */
+int ringbuffer_copy_out(struct ringbuffer *rb, unsigned char *dest, int n);
+
+/* Wake a sleeping writer if there's now as much space as it wants.  This may take the lock. */
+void ringbuffer_wake_writer(struct ringbuffer *rb);
+
 #endif
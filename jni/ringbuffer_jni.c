@@ -15,13 +15,26 @@
  */
 #include <jni.h>
 
+#include <stdint.h>
 #include <stdlib.h>
 
+#include "bindings.h"
 #include "logmacros.h"
 #include "ringbuffer.h"
 #include "ringbuffer_jni.h"
 
 
+/* min(x,y) macro */
+#define MIN(X,Y) ((X) < (Y) ? (X) : (Y))
+
+
+/*
+ * Forward declarations
+ */
+
+static void throw_exception(JNIEnv *env, const char *class_name, const char *message);
+
+
 /*
  * Public interface
  */
@@ -30,15 +43,14 @@ JNIEXPORT jlong JNICALL Java_com_kvance_Nectroid_RingBuffer_initRB
     (JNIEnv *env, jobject obj, jint size)
 {
     struct ringbuffer *rb = ringbuffer_create(size);
-    return (long)rb;
+    return (jlong)(intptr_t)rb;
 }
 
 
 JNIEXPORT void JNICALL Java_com_kvance_Nectroid_RingBuffer_cleanupRB
     (JNIEnv *env, jobject obj, jlong pointer)
 {
-    unsigned int uptr = (unsigned int)pointer;
-    struct ringbuffer *rb = (struct ringbuffer *)uptr;
+    struct ringbuffer *rb = (struct ringbuffer *)(intptr_t)pointer;
     ringbuffer_destroy(rb);
 }
 
@@ -74,20 +86,144 @@ JNIEXPORT jint JNICALL Java_com_kvance_Nectroid_RingBuffer_length
 }
 
 
+JNIEXPORT jint JNICALL Java_com_kvance_Nectroid_RingBuffer_read
+    (JNIEnv *env, jobject obj, jshortArray dest, jint offset, jint length)
+{
+    int result = 0;
+    jshort *samples = NULL;
+
+    struct ringbuffer *rb = get_local_ringbuffer(env, obj);
+    if(rb == NULL) {
+        LOGE("Tried to call read() on NULL ringbuffer");
+        result = -1;
+    }
+
+    /* Check the range like System.arraycopy() does, before writing anything. */
+    if(result == 0) {
+        if(dest == NULL) {
+            throw_exception(env, "java/lang/NullPointerException", "dest is null");
+            result = -1;
+        } else if(offset < 0 || length < 0 ||
+                offset > (*env)->GetArrayLength(env, dest) - length) {
+            throw_exception(env, "java/lang/ArrayIndexOutOfBoundsException",
+                    "offset or length out of range");
+            result = -1;
+        }
+    }
+
+    /* Copy whole samples straight into the pinned array.  Nothing in the critical region may
+     * block, so the writer is only woken after it's released. */
+    if(result == 0) {
+        samples = (*env)->GetPrimitiveArrayCritical(env, dest, NULL);
+        if(samples == NULL) {
+            LOGE("Could not get the sample array pointer");
+            result = -1;
+        }
+    }
+    if(result == 0) {
+        int bytes = MIN(length * 2, ringbuffer_length(rb) & ~1);
+        result = ringbuffer_copy_out(rb, (unsigned char *)(samples + offset), bytes) / 2;
+        (*env)->ReleasePrimitiveArrayCritical(env, dest, samples, 0);
+        ringbuffer_wake_writer(rb);
+    }
+
+    return result;
+}
+
+
+JNIEXPORT void JNICALL Java_com_kvance_Nectroid_RingBuffer_setRefillLength
+    (JNIEnv *env, jobject obj, jint length)
+{
+    struct ringbuffer *rb = get_local_ringbuffer(env, obj);
+    if(rb == NULL) {
+        LOGE("Tried to call setRefillLength() on NULL ringbuffer");
+    } else {
+        /* The reader always has to wait for something. */
+        if(length < 1) {
+            length = 1;
+        }
+        rb->refill_length = MIN(length, rb->size - 1);
+    }
+}
+
+
+JNIEXPORT jint JNICALL Java_com_kvance_Nectroid_RingBuffer_getUnderruns
+    (JNIEnv *env, jobject obj)
+{
+    int result = 0;
+
+    struct ringbuffer *rb = get_local_ringbuffer(env, obj);
+    if(rb == NULL) {
+        LOGE("Tried to call getUnderruns() on NULL ringbuffer");
+    } else {
+        result = rb->underruns;
+    }
+
+    return result;
+}
+
+
+JNIEXPORT jboolean JNICALL Java_com_kvance_Nectroid_RingBuffer_waitForLength
+    (JNIEnv *env, jobject obj, jint length)
+{
+    int error = 1;
+
+    struct ringbuffer *rb = get_local_ringbuffer(env, obj);
+    if(rb == NULL) {
+        LOGE("Tried to call waitForLength() on NULL ringbuffer");
+    } else {
+        error = ringbuffer_wait_for_length(rb, length);
+    }
+
+    return error ? JNI_TRUE : JNI_FALSE;
+}
+
+
+JNIEXPORT jboolean JNICALL Java_com_kvance_Nectroid_RingBuffer_waitForSpace
+    (JNIEnv *env, jobject obj, jint space)
+{
+    int error = 1;
+
+    struct ringbuffer *rb = get_local_ringbuffer(env, obj);
+    if(rb == NULL) {
+        LOGE("Tried to call waitForSpace() on NULL ringbuffer");
+    } else {
+        error = ringbuffer_wait_for_space(rb, space);
+    }
+
+    return error ? JNI_TRUE : JNI_FALSE;
+}
+
+
+JNIEXPORT void JNICALL Java_com_kvance_Nectroid_RingBuffer_abort
+    (JNIEnv *env, jobject obj)
+{
+    struct ringbuffer *rb = get_local_ringbuffer(env, obj);
+    if(rb == NULL) {
+        LOGE("Tried to call abort() on NULL ringbuffer");
+    } else {
+        ringbuffer_abort(rb);
+    }
+}
+
+
 /*
  * Utility functions
  */
 
 struct ringbuffer *get_local_ringbuffer(JNIEnv *env, jobject obj)
 {
-    struct ringbuffer *result = NULL;
-    jclass cls = (*env)->GetObjectClass(env, obj);
-    jfieldID fid = (*env)->GetFieldID(env, cls, "mRBPointer", "J");
-    if(fid == NULL) {
-        LOGE("Failed to get RingBuffer.mRBPointer's field ID");
-    } else {
-        unsigned int ptr = (unsigned int)(*env)->GetLongField(env, obj, fid);
-        result = (struct ringbuffer *)ptr;
+    jlong ptr = (*env)->GetLongField(env, obj, g_jni.ringbuffer_pointer);
+    return (struct ringbuffer *)(intptr_t)ptr;
+}
+
+
+/* Throw a new exception of this class.  It's only for errors, so the class isn't cached. */
+static void throw_exception(JNIEnv *env, const char *class_name, const char *message)
+{
+    jclass cls = (*env)->FindClass(env, class_name);
+    if(cls != NULL) {
+        (*env)->ThrowNew(env, cls, message);
+        (*env)->DeleteLocalRef(env, cls);
     }
-    return result;
 }
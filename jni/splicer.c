@@ -0,0 +1,236 @@
+/* This file is part of Nectroid.
+ *
+ * Nectroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nectroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Nectroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+#include <stdlib.h>
+#include <string.h>
+
+#include "logmacros.h"
+#include "splicer.h"
+
+
+/* Bits of the header that stay the same from frame to frame: version, layer, and sample rate */
+#define SAME_STREAM(A,B) ((((A)[1] & 0xfe) == ((B)[1] & 0xfe)) && \
+        (((A)[2] & 0x0c) == ((B)[2] & 0x0c)))
+
+
+/*
+ * Forward declarations
+ */
+
+static int find_sync(struct splicer *sp, int start);
+
+
+/*
+ * Lookup tables
+ */
+
+/* Bitrates in kbps, by [MPEG-1 ? 0 : 1][layer - 1][bitrate index] */
+static const int g_bitrates[2][3][16] = {
+    {
+        { 0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448, 0 },
+        { 0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384, 0 },
+        { 0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 0 },
+    },
+    {
+        { 0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256, 0 },
+        { 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160, 0 },
+        { 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160, 0 },
+    },
+};
+
+/* MPEG-1 sample rates in Hz, by sample rate index.  MPEG-2 halves them; MPEG-2.5 quarters them. */
+static const int g_samplerates[4] = { 44100, 48000, 32000, 0 };
+
+
+/*
+ * Public interface
+ */
+
+/* Create a new splicer.  Returns NULL on failure. */
+struct splicer *splicer_create(void)
+{
+    struct splicer *sp = malloc(sizeof(struct splicer));
+    if(sp == NULL) {
+        LOGE("Out of memory allocating splicer");
+    } else {
+        sp->pending_length = 0;
+        splicer_reset(sp);
+    }
+    return sp;
+}
+
+
+/* Free the splicer. */
+void splicer_destroy(struct splicer *sp)
+{
+    free(sp);
+}
+
+
+/* Drop any unfinished frame, and look for a new frame header in the data that follows. */
+void splicer_reset(struct splicer *sp)
+{
+    if(sp->pending_length > 0) {
+        LOGI("Dropping %d bytes of unfinished frame", sp->pending_length);
+    }
+    sp->pending_length = 0;
+    sp->synced = 0;
+}
+
+
+/* Return a pointer to the free space after the pending data. */
+unsigned char *splicer_read_pointer(struct splicer *sp)
+{
+    return sp->pending + sp->pending_length;
+}
+
+
+/* Return the number of bytes that can be read into splicer_read_pointer(). */
+int splicer_read_space(struct splicer *sp)
+{
+    return sizeof(sp->pending) - sp->pending_length;
+}
+
+
+/* Add n bytes read into splicer_read_pointer() to the pending data. */
+void splicer_commit_read(struct splicer *sp, int n)
+{
+    sp->pending_length += n;
+}
+
+
+/* Move as many whole frames from the pending data into the ringbuffer as will fit. */
+void splicer_flush(struct splicer *sp, struct ringbuffer *rb)
+{
+    int start = 0;
+    int end = 0;
+    int space = ringbuffer_space(rb);
+
+    /* Find the first frame, if we haven't already. */
+    if(!sp->synced) {
+        start = find_sync(sp, 0);
+        end = start;
+    }
+
+    /* Collect the run of whole frames that fits in the ringbuffer. */
+    while(sp->synced && (sp->pending_length - end >= 4)) {
+        int length = mp3_frame_length(sp->pending + end);
+        if(length == 0) {
+            /* Not a frame header after all.  Pass on what we have, and search again. */
+            LOGW("Lost sync with the MP3 stream; searching for a frame header");
+            sp->synced = 0;
+            if(end > start) {
+                ringbuffer_write(rb, sp->pending + start, end - start);
+                space -= end - start;
+            }
+            start = find_sync(sp, end);
+            end = start;
+        } else if(end + length > sp->pending_length || end + length - start > space) {
+            /* Unfinished frame, or no room for it. */
+            break;
+        } else {
+            end += length;
+        }
+    }
+
+    /* Pass the frames on in one write, and keep the rest for later. */
+    if(end > start) {
+        ringbuffer_write(rb, sp->pending + start, end - start);
+    }
+    if(end > 0) {
+        memmove(sp->pending, sp->pending + end, sp->pending_length - end);
+        sp->pending_length -= end;
+    }
+}
+
+
+/* Return the length of the MP3 frame starting with this 4-byte header, or 0 if it's not a valid
+ * frame header. */
+int mp3_frame_length(const unsigned char *header)
+{
+    int version, layer, bitrate, samplerate, padding;
+
+    /* Frame sync: 11 bits set */
+    if(header[0] != 0xff || (header[1] & 0xe0) != 0xe0) {
+        return 0;
+    }
+
+    /* Version: 0 = MPEG-2.5, 1 = reserved, 2 = MPEG-2, 3 = MPEG-1 */
+    version = (header[1] >> 3) & 0x03;
+    /* Layer: 0 = reserved, 1 = III, 2 = II, 3 = I */
+    layer = 4 - ((header[1] >> 1) & 0x03);
+    if(version == 1 || layer == 4) {
+        return 0;
+    }
+
+    /* Free-format (0) and invalid (15) bitrates can't be framed. */
+    bitrate = g_bitrates[version == 3 ? 0 : 1][layer - 1][header[2] >> 4] * 1000;
+    samplerate = g_samplerates[(header[2] >> 2) & 0x03];
+    if(bitrate == 0 || samplerate == 0) {
+        return 0;
+    }
+    if(version == 2) {
+        samplerate /= 2;
+    } else if(version == 0) {
+        samplerate /= 4;
+    }
+    padding = (header[2] >> 1) & 0x01;
+
+    if(layer == 1) {
+        return (12 * bitrate / samplerate + padding) * 4;
+    } else if(layer == 3 && version != 3) {
+        /* MPEG-2 and 2.5 layer III frames have half as many samples. */
+        return 72 * bitrate / samplerate + padding;
+    } else {
+        return 144 * bitrate / samplerate + padding;
+    }
+}
+
+
+/*
+ * Utility functions
+ */
+
+/* Search the pending data from start for a frame header that's followed by another one from the
+ * same stream.  Drops the data before it, and sets synced if it's found.
+ *
+ * Return the offset of the frame header, or the offset to keep searching from once more data
+ * arrives. */
+static int find_sync(struct splicer *sp, int start)
+{
+    int pos;
+
+    for(pos = start; sp->pending_length - pos >= 4; pos++) {
+        int length = mp3_frame_length(sp->pending + pos);
+        if(length == 0) {
+            continue;
+        }
+
+        /* Wait for the next header before deciding. */
+        if(pos + length + 4 > sp->pending_length) {
+            break;
+        }
+        if(mp3_frame_length(sp->pending + pos + length) != 0 &&
+                SAME_STREAM(sp->pending + pos, sp->pending + pos + length)) {
+            sp->synced = 1;
+            break;
+        }
+    }
+
+    if(pos > start) {
+        LOGI("Skipped %d bytes looking for a frame header", pos - start);
+    }
+    return pos;
+}
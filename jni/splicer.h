@@ -0,0 +1,65 @@
+/* This file is part of Nectroid.
+ *
+ * Nectroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nectroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Nectroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+#ifndef SPLICER_H
+#define SPLICER_H
+
+#include "ringbuffer.h"
+
+/* Largest possible MP3 frame: 160 kbps MPEG-2.5 layer II at 8 kHz, plus padding */
+#define MAX_MP3_FRAME_SIZE 2881
+
+/* Passes only whole MP3 frames from the network into the MP3 ringbuffer.
+ *
+ * A new connection can start in the middle of a frame, and a dropped one usually ends in the
+ * middle of one.  The splicer drops the unfinished frame when the connection is reset, and skips
+ * ahead to a frame header (confirmed by the next frame's header) on the new connection, so the
+ * decoder sees one continuous stream of frames. */
+struct splicer {
+    /* Data read from the network that hasn't been passed on yet */
+    unsigned char pending[MAX_MP3_FRAME_SIZE * 3];
+    int pending_length;
+
+    /* 1 once a frame header has been found on this connection */
+    int synced;
+};
+
+
+/* Create a new splicer.  Returns NULL on failure. */
+struct splicer *splicer_create(void);
+
+/* Free the splicer. */
+void splicer_destroy(struct splicer *sp);
+
+/* Drop any unfinished frame, and look for a new frame header in the data that follows. */
+void splicer_reset(struct splicer *sp);
+
+/* Return a pointer to the free space after the pending data. */
+unsigned char *splicer_read_pointer(struct splicer *sp);
+
+/* Return the number of bytes that can be read into splicer_read_pointer(). */
+int splicer_read_space(struct splicer *sp);
+
+/* Add n bytes read into splicer_read_pointer() to the pending data. */
+void splicer_commit_read(struct splicer *sp, int n);
+
+/* Move as many whole frames from the pending data into the ringbuffer as will fit. */
+void splicer_flush(struct splicer *sp, struct ringbuffer *rb);
+
+/* Return the length of the MP3 frame starting with this 4-byte header, or 0 if it's not a valid
+ * frame header. */
+int mp3_frame_length(const unsigned char *header);
+
+#endif
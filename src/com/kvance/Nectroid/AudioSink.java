@@ -0,0 +1,35 @@
+// This file is part of Nectroid.
+//
+// Nectroid is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Nectroid is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with Nectroid.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.kvance.Nectroid;
+
+/** Destination for decoded PCM audio, fed by MP3Streamer's sink thread. */
+interface AudioSink
+{
+    /** Prepare to receive 16-bit audio in this format, replacing any previous format.
+     *
+     * Return false if an error occurs.
+     */
+    abstract boolean open(int sampleRate, int channels);
+
+    /** Write interleaved samples, blocking while the sink is full.
+     *
+     * Return the number of samples written, or a negative number on error.
+     */
+    abstract int write(short[] samples, int offset, int length);
+
+    /** Stop playback and release any resources. */
+    abstract void close();
+}
@@ -0,0 +1,113 @@
+// This file is part of Nectroid.
+//
+// Nectroid is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Nectroid is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with Nectroid.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.kvance.Nectroid;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.util.Log;
+
+
+/** AudioSink that plays through an AudioTrack. */
+class AudioTrackSink implements AudioSink
+{
+    private AudioTrack mAudioTrack;
+
+    // Bytes written to the track before it started playing, or -1 if it's playing.
+    private int mBytesBeforePlaying;
+
+    private static final int PCM_BUFFER_SIZE = 44100 * 2 * 2 * 8/10; // bytes
+
+    private static final String TAG = "AudioTrackSink";
+
+
+    ///
+    /// AudioSink
+    ///
+
+    public boolean open(int sampleRate, int channels)
+    {
+        // Close the old track first.
+        if(mAudioTrack != null) {
+            Log.i(TAG, "Stopping old track.");
+            mAudioTrack.flush();
+            close();
+        }
+
+        // Select the proper format constants.
+        int streamType = AudioManager.STREAM_MUSIC;
+        int channelConfig;
+        if(channels == 2) {
+            channelConfig = AudioFormat.CHANNEL_CONFIGURATION_STEREO;
+        } else {
+            channelConfig = AudioFormat.CHANNEL_CONFIGURATION_MONO;
+        }
+        int audioFormat = AudioFormat.ENCODING_PCM_16BIT;
+        int mode = AudioTrack.MODE_STREAM;
+
+        // Create the new AudioTrack.
+        Log.i(TAG, String.format("Creating new audio track: rate=%d, channels=%d", sampleRate,
+                    channels));
+        try {
+            mAudioTrack = new AudioTrack(streamType, sampleRate, channelConfig, audioFormat,
+                    PCM_BUFFER_SIZE, mode);
+        } catch(IllegalArgumentException e) {
+            Log.e(TAG, "Failed to create new audio track.", e);
+            return false;
+        }
+        mBytesBeforePlaying = 0;
+        return true;
+    }
+
+
+    public int write(short[] samples, int offset, int length)
+    {
+        if(mAudioTrack == null) {
+            Log.e(TAG, "Tried to write to a null AudioTrack");
+            return -1;
+        }
+
+        // Start playing once this write fills the track's buffer to at least 85%.  The track has
+        // to be playing before the write, or a write past the end of the buffer would never
+        // return.
+        if(mBytesBeforePlaying >= 0) {
+            mBytesBeforePlaying += length * 2;
+            if(mBytesBeforePlaying >= PCM_BUFFER_SIZE * 85/100) {
+                Log.i(TAG, "Starting audio track.");
+                mAudioTrack.play();
+                mBytesBeforePlaying = -1;
+            }
+        }
+
+        int written = mAudioTrack.write(samples, offset, length);
+        if(written < 0) {
+            Log.e(TAG, String.format("Error %d writing to audio buffer", written));
+        } else if(written != length) {
+            Log.w(TAG, String.format("Only wrote %d / %d samples", written, length));
+        }
+        return written;
+    }
+
+
+    public void close()
+    {
+        if(mAudioTrack != null) {
+            mAudioTrack.stop();
+            mAudioTrack.release();
+            mAudioTrack = null;
+        }
+    }
+}
@@ -15,6 +15,7 @@
 
 package com.kvance.Nectroid;
 
+import java.util.Random;
 import java.util.TreeSet;
 
 import android.content.Context;
@@ -33,12 +34,21 @@ abstract class AutoRefreshDocManager<Result> extends CachedDocManager<Result>
     protected Context mContext;
     protected Handler mHandler;
 
+    // Failed updates in a row while connected
+    private int mFailures;
+    private Random mRandom;
+
+    // Retry delays after failed updates, in milliseconds.  The delay doubles with each failure.
+    private static final long MIN_RETRY_DELAY = 15000;
+    private static final long MAX_RETRY_DELAY = 15 * 60 * 1000;
+
     public AutoRefreshDocManager(Context applicationContext)
     {
         super();
         mContext = applicationContext;
         mAutoRefreshRequesters = new TreeSet<Integer>();
         mHandler = new Handler();
+        mRandom = new Random();
     }
 
 
@@ -95,7 +105,50 @@ abstract class AutoRefreshDocManager<Result> extends CachedDocManager<Result>
     {
         super.onParserSuccess(result, context);
 
-        // A new document has been loaded.  If we're doing auto-refresh, schedule the next one.
+        // A new document has been loaded.
+        mFailures = 0;
+        scheduleAfterUpdate();
+    }
+
+    @Override
+    public void onDocumentUnchanged(Result result, Context context)
+    {
+        super.onDocumentUnchanged(result, context);
+
+        // The document was checked, so the next check is due later.
+        mFailures = 0;
+        scheduleAfterUpdate();
+    }
+
+    @Override
+    public void onUpdateFailed(Context context)
+    {
+        super.onUpdateFailed(context);
+        if(mAutoRefreshRequesters.isEmpty()) {
+            return;
+        }
+
+        // Back off exponentially while the server is failing.  Offline failures don't count;
+        // the RefreshPlanner holds the retry until the network comes back.
+        long delay = 0;
+        if(ConnectivityMonitor.isConnected()) {
+            delay = Math.min(MIN_RETRY_DELAY << Math.min(mFailures, 16), MAX_RETRY_DELAY);
+            mFailures++;
+
+            // Jitter the delay by up to half, so retries don't line up with a server hiccup.
+            delay -= (long)(mRandom.nextDouble() * delay / 2);
+        }
+        RefreshPlanner.schedule(this, delay, delay, false, retryUpdate);
+    }
+
+
+    ///
+    /// Utility methods
+    ///
+
+    /** If we're doing auto-refresh, schedule the next one after this update. */
+    private void scheduleAfterUpdate()
+    {
         if(mAutoRefreshRequesters.size() > 0) {
             // Start auto-updates once this task finishes.  If we didn't, then a possible
             // request to refresh would be ignored since the task is still technically
@@ -108,16 +161,18 @@ abstract class AutoRefreshDocManager<Result> extends CachedDocManager<Result>
         }
     }
 
-
-    ///
-    /// Utility methods
-    ///
+    private Runnable retryUpdate = new Runnable() {
+        public void run() {
+            update(mContext,
+                    hasDocument() ? UpdateMode.NETWORK : UpdateMode.STALE_WHILE_REVALIDATE);
+        }
+    };
 
     private void startAutoRefresh()
     {
         if(!hasDocument()) {
-            // No playlist to update!  Fetch one; cached is fine.
-            update(mContext, true);
+            // No playlist to update!  Show the cached one while fetching a new one.
+            update(mContext, UpdateMode.STALE_WHILE_REVALIDATE);
 
         } else {
             // Playlist is still current.  Schedule the update for later.
@@ -18,7 +18,20 @@ package com.kvance.Nectroid;
 public interface BackgroundTaskListener
 {
     abstract void onTaskStarted(Object manager);
-    abstract void onTaskFinished(Object manager, Object result);
+
+    /** Called with the task's result.
+     *
+     * If isStale is true, the result came from the cache and the task is still checking for a
+     * newer one.  Either onTaskFinished() is called again with the new result, or
+     * onTaskRevalidated() is called if the stale result was current after all.
+     */
+    abstract void onTaskFinished(Object manager, Object result, boolean isStale);
+
+    /** Called instead of onTaskFinished() when the document hasn't changed since the last result,
+     * stale or not, that was passed to onTaskFinished().
+     */
+    abstract void onTaskRevalidated(Object manager);
+
     abstract void onTaskCancelled(Object manager);
     abstract void onTaskFailed(Object manager);
 }
@@ -16,18 +16,36 @@
 package com.kvance.Nectroid;
 
 import java.util.HashSet;
+import java.util.concurrent.Future;
 
 import android.content.Context;
-import android.os.AsyncTask;
 
 
 public abstract class BaseDocManager
 {
+    /** Where an update gets the document from. */
+    public enum UpdateMode {
+        /** Download the document. */
+        NETWORK,
+
+        /** Use the cached copy if there is one, otherwise download it. */
+        CACHE,
+
+        /** Deliver the cached copy (if any) as a stale result, then download the document and
+         * deliver it too if it changed.
+         */
+        STALE_WHILE_REVALIDATE,
+    }
+
+
     protected HashSet<BackgroundTaskListener> mListeners;
-    protected AsyncTask<Void, Void, Void> mUpdateTask;
+    protected Future<?> mUpdateTask;
 
-    /** Override this to return a new task to do the document retrieval work */
-    protected abstract AsyncTask<Void, Void, Void> newUpdateTask(Context context, boolean useCache);
+    /** Override this to start the document retrieval work in the background.
+     *
+     * Return null if no update was started.
+     */
+    protected abstract Future<?> startUpdateTask(Context context, UpdateMode mode);
 
 
     public BaseDocManager()
@@ -44,14 +62,19 @@ public abstract class BaseDocManager
      *
      * If an update is already in progess, this call will be ignored.
      */
-    public void update(Context context, boolean useCache)
+    public void update(Context context, UpdateMode mode)
     {
         if(!isUpdating()) {
-            mUpdateTask = newUpdateTask(context, useCache);
-            mUpdateTask.execute();
+            mUpdateTask = startUpdateTask(context, mode);
         }
     }
 
+    /** Update the document, from the cache if useCache is true. */
+    public void update(Context context, boolean useCache)
+    {
+        update(context, useCache ? UpdateMode.CACHE : UpdateMode.NETWORK);
+    }
+
     /** Cancel an ongoing update.
      *
      * If no update is in progress, this call will be ignored.
@@ -98,10 +121,17 @@ public abstract class BaseDocManager
         }
     }
 
-    protected void notifyFinished(Object result)
+    protected void notifyFinished(Object result, boolean isStale)
+    {
+        for(BackgroundTaskListener listener : mListeners) {
+            listener.onTaskFinished(this, result, isStale);
+        }
+    }
+
+    protected void notifyRevalidated()
     {
         for(BackgroundTaskListener listener : mListeners) {
-            listener.onTaskFinished(this, result);
+            listener.onTaskRevalidated(this);
         }
     }
 
@@ -0,0 +1,168 @@
+// This file is part of Nectroid.
+//
+// Nectroid is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Nectroid is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with Nectroid.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.kvance.Nectroid;
+
+
+/** Decides how much of an MP3 stream to buffer, from the measured network behavior.
+ *
+ * The buffering thread reports every read and every underrun.  From those, the controller keeps
+ * two estimates:
+ *
+ *  - the arrival rate, averaged over short windows, which says whether the network can keep up
+ *    with the stream's bitrate at all;
+ *  - the longest recent gap between arrivals, decaying over a minute or so, which says how long a
+ *    stall the buffer has to ride out.
+ *
+ * The target buffer covers the expected stall plus any shortfall in throughput over the next
+ * half minute, plus a margin that grows with every underrun and shrinks again while playback is
+ * stable.  Playback starts as soon as the buffer reaches the target, which is well under a second
+ * on a fast, steady connection.
+ */
+class BufferController
+{
+    private int mBytesPerSecond;
+    private int mMaxTargetMillis;
+
+    // Arrival rate estimate, in bytes per second, or -1 before the first window closes
+    private float mRate;
+    private long mWindowStart;
+    private int mWindowBytes;
+
+    // Longest recent gap between arrivals, in milliseconds
+    private float mStallMillis;
+    private long mLastArrival;
+
+    // Extra margin added after underruns, in milliseconds
+    private int mMarginMillis;
+    private long mLastMarginChange;
+
+    private static final int MIN_TARGET_MILLIS = 500;
+    private static final int RATE_WINDOW_MILLIS = 250;
+    private static final float STALL_DECAY_MILLIS = 60000f;
+    private static final float STALL_FACTOR = 1.5f;
+    private static final int DEFICIT_HORIZON_MILLIS = 30000;
+    private static final int UNDERRUN_MARGIN_MILLIS = 2000;
+    private static final int MARGIN_SHRINK_MILLIS = 60000;
+
+
+    /** Create a controller for a stream at this bitrate (in kbps), buffering into this many
+     * bytes. */
+    BufferController(int bitrate, int capacity)
+    {
+        mBytesPerSecond = Math.max(bitrate, 8) * 1000 / 8;
+        mMaxTargetMillis = (int)((long)capacity * 1000 / mBytesPerSecond * 9/10);
+        mRate = -1;
+        mWindowStart = -1;
+        mLastArrival = -1;
+        mLastMarginChange = -1;
+    }
+
+
+    ///
+    /// Measurements
+    ///
+
+    /** Record that this many bytes arrived at this time (in milliseconds). */
+    public void onBytesArrived(int bytes, long now)
+    {
+        // Track the longest gap, letting old stalls fade away.
+        if(mLastArrival != -1) {
+            long gap = now - mLastArrival;
+            mStallMillis *= (float)Math.exp(-gap / STALL_DECAY_MILLIS);
+            if(gap > mStallMillis) {
+                mStallMillis = gap;
+            }
+        }
+        mLastArrival = now;
+
+        // Average the rate over whole windows, so single reads don't make it jump around.
+        if(mWindowStart == -1) {
+            mWindowStart = now;
+            mWindowBytes = 0;
+        }
+        mWindowBytes += bytes;
+        long elapsed = now - mWindowStart;
+        if(elapsed >= RATE_WINDOW_MILLIS) {
+            float sample = mWindowBytes * 1000f / elapsed;
+            if(mRate < 0) {
+                mRate = sample;
+            } else {
+                mRate += (sample - mRate) / 4;
+            }
+            mWindowStart = now;
+            mWindowBytes = 0;
+        }
+
+        // Shrink the underrun margin while things are going well.
+        if(mMarginMillis > 0 && now - mLastMarginChange >= MARGIN_SHRINK_MILLIS) {
+            mMarginMillis /= 2;
+            mLastMarginChange = now;
+        }
+    }
+
+
+    /** Record that the buffering thread stopped reading at this time, for a reason that had
+     * nothing to do with the network (like a full buffer). */
+    public void onReadingPaused(long now)
+    {
+        mLastArrival = -1;
+        mWindowStart = -1;
+    }
+
+
+    /** Record that the decoder ran out of data at this time. */
+    public void onUnderrun(long now)
+    {
+        mMarginMillis = Math.min(mMarginMillis + UNDERRUN_MARGIN_MILLIS, mMaxTargetMillis);
+        mLastMarginChange = now;
+    }
+
+
+    ///
+    /// Decisions
+    ///
+
+    /** Return the amount of audio to buffer before playing, in milliseconds. */
+    public int getTargetMillis()
+    {
+        float target = STALL_FACTOR * mStallMillis + mMarginMillis;
+
+        // Cover the time the network would fall behind over the horizon.
+        if(mRate >= 0 && mRate < mBytesPerSecond) {
+            target += DEFICIT_HORIZON_MILLIS * (1 - mRate / mBytesPerSecond);
+        }
+
+        return Math.max(MIN_TARGET_MILLIS, Math.min((int)target, mMaxTargetMillis));
+    }
+
+    /** Return the amount of data to buffer before playing, in bytes. */
+    public int getTargetLength()
+    {
+        return (int)((long)getTargetMillis() * mBytesPerSecond / 1000);
+    }
+
+    /** Return true if playback can start with this many bytes buffered. */
+    public boolean isReadyToPlay(int bufferedLength)
+    {
+        // A full buffer can't get any fuller, so play whatever the estimates say.
+        if(bufferedLength >= (long)mMaxTargetMillis * mBytesPerSecond / 1000) {
+            return true;
+        }
+
+        // Otherwise, wait until there's been enough data to measure the rate.
+        return mRate >= 0 && bufferedLength >= getTargetLength();
+    }
+}
@@ -15,18 +15,42 @@
 
 package com.kvance.Nectroid;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.EnumSet;
 
 import android.content.Context;
 import android.util.Log;
 
 
+/** Cached copies of the documents from each site.
+ *
+ * Every site has its own directory, so switching back to a site can show its documents straight
+ * away.  Each document is kept with a few files describing it: the validators for revalidating
+ * it, a snapshot of the parsed document, a hash of its contents, and the time it was
+ * downloaded.
+ *
+ * All sites share one disk quota.  When it's exceeded, the least recently used documents from
+ * other sites are removed.
+ */
 class Cache
 {
     public enum DocId {
@@ -35,84 +59,356 @@ class Cache
         ONELINER,
     }
 
-    private static Site mSite;
+    private static volatile Site mSite;
+
+    // The site a background thread is working on, if it's bound to one with bindSite()
+    private static final ThreadLocal<Site> mBoundSite = new ThreadLocal<Site>();
+
+    // Appended to a document's filename to get the files kept with it
+    private static final String VALIDATORS_SUFFIX = ".validators";
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+    private static final String TIMESTAMP_SUFFIX = ".timestamp";
+    private static final String HASH_SUFFIX = ".hash";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String[] SUFFIXES = {
+        "", VALIDATORS_SUFFIX, SNAPSHOT_SUFFIX, TIMESTAMP_SUFFIX, HASH_SUFFIX, TEMP_SUFFIX };
+
+    // Algorithm for the hash of each document's contents
+    private static final String HASH_ALGORITHM = "SHA-1";
+
+    // Each site's documents are in a subdirectory of this one, named after the site ID.
+    private static final String SITES_DIR = "sites";
+
+    // Total size of all sites' cached documents, in bytes
+    private static final long QUOTA = 1024*1024;
 
     private static final String TAG = "NectroidCache";
 
 
     /** Change to another site.
      *
-     * This will also clear the cache if changing to a new site.
+     * The other site's cached documents are kept.
      */
     public static void setSite(Site site, Context ctx)
     {
         Log.d(TAG, String.format("Changing site to %s (id %d)", site.getName(), site.getId()));
-        if(site.getId() != Prefs.getCachedSiteId(ctx)) {
-            Log.d(TAG, String.format("Clearing cache (old id was %d)", Prefs.getCachedSiteId(ctx)));
-            Prefs.setCachedSiteId(ctx, site.getId());
-            clear(ctx);
-        }
         mSite = site;
+        getSiteDir(site.getId(), ctx).mkdirs();
+
+        // Older versions kept one site's documents directly in the cache directory.
+        for(DocId id : EnumSet.allOf(DocId.class)) {
+            removeFiles(ctx.getCacheDir(), getFilenameForDocId(id, ctx));
+        }
     }
 
 
-    /** Return the data from this document's cache or null if not cached */
-    public static String read(DocId id, Context ctx)
+    /** Return the current site. */
+    public static Site getSite()
     {
-        String result = null;
-        File cacheDir = ctx.getCacheDir();
-        File fullPath = new File(cacheDir, getFilenameForDocId(id, ctx));
+        return mSite;
+    }
+
+
+    /** Make this thread use a site's documents, even if the current site changes.
+     *
+     * An update started for one site finishes with that site's files and URLs, instead of
+     * mixing in the next site's.  Call unbindSite() when it's done.
+     */
+    public static void bindSite(Site site)
+    {
+        mBoundSite.set(site);
+    }
+
+
+    /** Go back to using the current site in this thread. */
+    public static void unbindSite()
+    {
+        mBoundSite.set(null);
+    }
+
+
+    /** Open this document's cached copy for reading, or return null if it's not cached. */
+    public static InputStream openRead(DocId id, Context ctx)
+    {
+        File fullPath = getPath(id, ctx);
+        try {
+            InputStream result = new BufferedInputStream(new FileInputStream(fullPath), 8*1024);
+            touch(fullPath);
+            return result;
+        } catch(IOException e) {
+            return null;
+        }
+    }
+
+
+    /** Start writing a new copy of this document to the cache.
+     *
+     * The data goes to a temporary file, which replaces the cached copy when commitWrite() is
+     * called.  Until then, readers still see the old copy.  Return null if the file couldn't be
+     * created.
+     */
+    public static OutputStream openWrite(DocId id, Context ctx)
+    {
+        try {
+            return new BufferedOutputStream(new FileOutputStream(getTempPath(id, ctx)), 8*1024);
+        } catch(IOException e) {
+            Log.w(TAG, String.format("Can't write to the cache: %s", e));
+            return null;
+        }
+    }
+
+
+    /** Replace the cached copy with the document written since openWrite().
+     *
+     * The stream from openWrite() must be closed first.
+     */
+    public static boolean commitWrite(DocId id, Context ctx)
+    {
+        File fullPath = getPath(id, ctx);
+
+        // The snapshot and hash were made from the old copy.
+        getSnapshotPath(id, ctx).delete();
+        getHashPath(id, ctx).delete();
+
+        boolean success = getTempPath(id, ctx).renameTo(fullPath);
+        if(success) {
+            touch(fullPath);
+            trim(ctx);
+        } else {
+            abortWrite(id, ctx);
+        }
+        return success;
+    }
+
+
+    /** Throw away the document written since openWrite(), keeping the old cached copy. */
+    public static void abortWrite(DocId id, Context ctx)
+    {
+        getTempPath(id, ctx).delete();
+    }
+
+
+    /** Map the snapshot of this document's cached copy.
+     *
+     * Return null if there's no snapshot, or it's from a different version of the app.
+     */
+    public static Snapshot.Reader readSnapshot(DocId id, Context ctx)
+    {
+        Snapshot.Reader result = null;
+        File fullPath = getSnapshotPath(id, ctx);
         try {
             FileInputStream fis = new FileInputStream(fullPath);
-            byte[] data = new byte[(int)fullPath.length()];
-            fis.read(data);
-            result = new String(data);
+            try {
+                FileChannel channel = fis.getChannel();
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                        channel.size());
+                result = Snapshot.Reader.open(buffer, id);
+                touch(getPath(id, ctx));
+            } finally {
+                // The mapping stays valid after the file is closed.
+                fis.close();
+            }
+        } catch(IOException e) {
+            // No usable snapshot; the XML will be parsed instead.
+        }
+        return result;
+    }
+
+
+    /** Save a snapshot of the document parsed from the current cached copy. */
+    public static boolean writeSnapshot(DocId id, Snapshot.Writer snapshot, Context ctx)
+    {
+        boolean success = true;
+        File fullPath = getSnapshotPath(id, ctx);
+        File tempPath = new File(fullPath.getPath() + TEMP_SUFFIX);
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(tempPath), 8*1024);
+            try {
+                snapshot.writeTo(out, id);
+            } finally {
+                out.close();
+            }
+            success = tempPath.renameTo(fullPath);
+        } catch(IOException e) {
+            success = false;
+        }
+        if(!success) {
+            tempPath.delete();
+        }
+        return success;
+    }
+
+
+    /** Return the validators saved with the cached copy of a document, or null if there are none.
+     */
+    public static FetchUrl.Validators readValidators(DocId id, Context ctx)
+    {
+        FetchUrl.Validators result = null;
+        File fullPath = getValidatorsPath(id, ctx);
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(fullPath));
+            try {
+                String eTag = reader.readLine();
+                String lastModified = reader.readLine();
+                result = new FetchUrl.Validators(emptyToNull(eTag), emptyToNull(lastModified));
+            } finally {
+                reader.close();
+            }
+        } catch(IOException e) {
+            // No validators; the document will be downloaded unconditionally.
+        }
+        if(result != null && result.isEmpty()) {
+            result = null;
+        }
+        return result;
+    }
+
+
+    /** Save the validators for the copy of a document that was just written.
+     *
+     * A null validators argument removes any old ones, since they describe a different copy.
+     */
+    public static boolean writeValidators(DocId id, FetchUrl.Validators validators, Context ctx)
+    {
+        boolean success = true;
+        File fullPath = getValidatorsPath(id, ctx);
+        if(validators == null) {
+            fullPath.delete();
+        } else {
+            try {
+                FileWriter writer = new FileWriter(fullPath);
+                try {
+                    writer.write(nullToEmpty(validators.getETag()) + "\n" +
+                            nullToEmpty(validators.getLastModified()) + "\n");
+                } finally {
+                    writer.close();
+                }
+            } catch(IOException e) {
+                fullPath.delete();
+                success = false;
+            }
+        }
+        return success;
+    }
+
+
+    /** Return the time the cached copy of a document was downloaded, or null if it's unknown. */
+    public static Date readTimestamp(DocId id, Context ctx)
+    {
+        Date result = null;
+        File fullPath = getTimestampPath(id, ctx);
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(fullPath));
+            try {
+                result = new Date(Long.parseLong(reader.readLine()));
+            } finally {
+                reader.close();
+            }
         } catch(IOException e) {
-            // result is already set to null, so we will return null
+            // No timestamp saved.
+        } catch(NumberFormatException e) {
+            Log.w(TAG, String.format("Invalid timestamp in %s", fullPath));
         }
         return result;
     }
 
 
-    /** Write data for this document to the cache */
-    public static boolean write(DocId id, byte[] data, Context ctx)
+    /** Save the time the cached copy of a document was downloaded. */
+    public static boolean writeTimestamp(DocId id, Date timestamp, Context ctx)
     {
         boolean success = true;
-        File cacheDir = ctx.getCacheDir();
-        File fullPath = new File(cacheDir, getFilenameForDocId(id, ctx));
+        File fullPath = getTimestampPath(id, ctx);
         try {
-            FileOutputStream fos = new FileOutputStream(fullPath);
-            fos.write(data);
+            FileWriter writer = new FileWriter(fullPath);
+            try {
+                writer.write(String.valueOf(timestamp.getTime()) + "\n");
+            } finally {
+                writer.close();
+            }
         } catch(IOException e) {
+            fullPath.delete();
             success = false;
         }
         return success;
     }
 
-    public static boolean write(DocId id, String data, Context ctx)
+
+    /** Return a new digest for hashing a document's contents. */
+    public static MessageDigest newContentDigest()
+    {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch(NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    /** Finish a digest from newContentDigest(), and return the hash as a hex string. */
+    public static String hashToString(MessageDigest digest)
+    {
+        StringBuilder sb = new StringBuilder();
+        for(byte b : digest.digest()) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+
+
+    /** Return the hash of the cached copy of a document, or null if it's unknown. */
+    public static String readHash(DocId id, Context ctx)
+    {
+        String result = null;
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(getHashPath(id, ctx)));
+            try {
+                result = emptyToNull(reader.readLine());
+            } finally {
+                reader.close();
+            }
+        } catch(IOException e) {
+            // No hash saved.
+        }
+        return result;
+    }
+
+
+    /** Save the hash of the copy of a document that was just written. */
+    public static boolean writeHash(DocId id, String hash, Context ctx)
     {
-        return write(id, data.getBytes(), ctx);
+        boolean success = true;
+        File fullPath = getHashPath(id, ctx);
+        try {
+            FileWriter writer = new FileWriter(fullPath);
+            try {
+                writer.write(hash + "\n");
+            } finally {
+                writer.close();
+            }
+        } catch(IOException e) {
+            fullPath.delete();
+            success = false;
+        }
+        return success;
     }
 
 
     /** Return true if a cached version of this doc is available */
     public static boolean available(DocId id, Context ctx)
     {
-        String result = null;
-        File cacheDir = ctx.getCacheDir();
-        File fullPath = new File(cacheDir, getFilenameForDocId(id, ctx));
-        return fullPath.canRead();
+        return getPath(id, ctx).canRead();
     }
 
 
     /** Return the URL for this document */
     public static URL getUrlForDocId(DocId id, Context ctx)
     {
-        if(mSite == null) {
+        Site site = getThreadSite();
+        if(site == null) {
             throw new RuntimeException("Tried to call getUrlForDocId() without calling setSite()");
         }
         URL result = null;
-        String baseUrl = mSite.getBaseUrl();
+        String baseUrl = site.getBaseUrl();
         String urlSuffix;
 
         switch(id) {
@@ -166,19 +462,207 @@ class Cache
     }
 
 
-    /** Clear all files from the cache. */
-    public static void clear(Context context)
+    /** Return the site this thread is using: the one it's bound to, or the current one. */
+    private static Site getThreadSite()
     {
-        File cacheDir = context.getCacheDir();
-        for(DocId id : EnumSet.allOf(DocId.class)) {
-            String filename = getFilenameForDocId(id, context);
-            File fullPath = new File(cacheDir, getFilenameForDocId(id, context));
-            if(fullPath.exists()) {
-                // Found a cached document.  Delete it.
-                if(!fullPath.delete()) {
-                    throw new RuntimeException("Can't delete cached file " + fullPath.toString());
+        Site bound = mBoundSite.get();
+        return (bound != null) ? bound : mSite;
+    }
+
+
+    /** Return the path of this thread's site's cached copy of a document. */
+    private static File getPath(DocId id, Context ctx)
+    {
+        Site site = getThreadSite();
+        if(site == null) {
+            throw new RuntimeException("Tried to use the cache without calling setSite()");
+        }
+        return new File(getSiteDir(site.getId(), ctx), getFilenameForDocId(id, ctx));
+    }
+
+
+    /** Return the path a new copy of a document is written to before it's committed. */
+    private static File getTempPath(DocId id, Context ctx)
+    {
+        return new File(getPath(id, ctx).getPath() + TEMP_SUFFIX);
+    }
+
+
+    /** Return the path of the snapshot kept next to a cached document. */
+    private static File getSnapshotPath(DocId id, Context ctx)
+    {
+        return new File(getPath(id, ctx).getPath() + SNAPSHOT_SUFFIX);
+    }
+
+
+    /** Return the path of the validators file kept next to a cached document. */
+    private static File getValidatorsPath(DocId id, Context ctx)
+    {
+        return new File(getPath(id, ctx).getPath() + VALIDATORS_SUFFIX);
+    }
+
+
+    /** Return the path of the timestamp file kept next to a cached document. */
+    private static File getTimestampPath(DocId id, Context ctx)
+    {
+        return new File(getPath(id, ctx).getPath() + TIMESTAMP_SUFFIX);
+    }
+
+
+    /** Return the path of the content hash kept next to a cached document. */
+    private static File getHashPath(DocId id, Context ctx)
+    {
+        return new File(getPath(id, ctx).getPath() + HASH_SUFFIX);
+    }
+
+
+    /** Return the directory holding a site's cached documents. */
+    private static File getSiteDir(int siteId, Context ctx)
+    {
+        File sitesDir = new File(ctx.getCacheDir(), SITES_DIR);
+        return new File(sitesDir, String.valueOf(siteId));
+    }
+
+
+    /** Delete this document's cached copy and everything kept with it. */
+    public static void remove(DocId id, Context ctx)
+    {
+        File fullPath = getPath(id, ctx);
+        if(fullPath.exists()) {
+            // Found a cached document.  Delete it.
+            if(!fullPath.delete()) {
+                throw new RuntimeException("Can't delete cached file " + fullPath.toString());
+            }
+        }
+        removeFiles(fullPath.getParentFile(), fullPath.getName());
+    }
+
+
+    /** Clear all of a site's documents from the cache.
+     *
+     * Use this when a site is edited or deleted, since its documents may no longer apply.
+     */
+    public static void clearSite(int siteId, Context ctx)
+    {
+        File siteDir = getSiteDir(siteId, ctx);
+        File[] files = siteDir.listFiles();
+        if(files != null) {
+            for(File file : files) {
+                file.delete();
+            }
+        }
+        if(mSite == null || mSite.getId() != siteId) {
+            siteDir.delete();
+        }
+    }
+
+
+    ///
+    /// Disk quota
+    ///
+
+    /** A cached document from any site, along with the files kept with it. */
+    private static class Entry implements Comparable<Entry>
+    {
+        public File mPath;
+        public long mLastUsed;
+        public long mSize;
+
+        public Entry(File path)
+        {
+            mPath = path;
+            mLastUsed = path.lastModified();
+            for(String suffix : SUFFIXES) {
+                mSize += new File(path.getPath() + suffix).length();
+            }
+        }
+
+        public int compareTo(Entry other)
+        {
+            if(mLastUsed < other.mLastUsed) {
+                return -1;
+            } else if(mLastUsed > other.mLastUsed) {
+                return 1;
+            } else {
+                return 0;
+            }
+        }
+    }
+
+
+    /** Remove the least recently used documents until the cache fits in its quota.
+     *
+     * The documents of this thread's site, and of the current site if that's another one, are
+     * never removed.
+     */
+    private static void trim(Context ctx)
+    {
+        File[] siteDirs = new File(ctx.getCacheDir(), SITES_DIR).listFiles();
+        if(siteDirs == null) {
+            return;
+        }
+
+        ArrayList<Entry> entries = new ArrayList<Entry>();
+        long totalSize = 0;
+        for(File siteDir : siteDirs) {
+            for(DocId id : EnumSet.allOf(DocId.class)) {
+                File path = new File(siteDir, getFilenameForDocId(id, ctx));
+                if(path.exists()) {
+                    Entry entry = new Entry(path);
+                    entries.add(entry);
+                    totalSize += entry.mSize;
                 }
             }
         }
+
+        Collections.sort(entries);
+        Site threadSite = getThreadSite();
+        Site currentSite = mSite;
+        File threadSiteDir = (threadSite == null) ? null : getSiteDir(threadSite.getId(), ctx);
+        File currentSiteDir = (currentSite == null) ? null : getSiteDir(currentSite.getId(), ctx);
+        for(Entry entry : entries) {
+            if(totalSize <= QUOTA) {
+                break;
+            }
+            File siteDir = entry.mPath.getParentFile();
+            if(!siteDir.equals(threadSiteDir) && !siteDir.equals(currentSiteDir)) {
+                Log.d(TAG, String.format("Evicting %s from the cache", entry.mPath));
+                entry.mPath.delete();
+                removeFiles(siteDir, entry.mPath.getName());
+                totalSize -= entry.mSize;
+
+                // Remove the site's directory once it's empty.
+                siteDir.delete();
+            }
+        }
+    }
+
+
+    ///
+    /// Utility methods
+    ///
+
+    /** Delete a document and the files kept with it from a directory. */
+    private static void removeFiles(File dir, String filename)
+    {
+        for(String suffix : SUFFIXES) {
+            new File(dir, filename + suffix).delete();
+        }
+    }
+
+    /** Mark a cached document as recently used. */
+    private static void touch(File path)
+    {
+        path.setLastModified(System.currentTimeMillis());
+    }
+
+    private static String emptyToNull(String s)
+    {
+        return (s == null || s.length() == 0) ? null : s;
+    }
+
+    private static String nullToEmpty(String s)
+    {
+        return (s == null) ? "" : s;
     }
 }
@@ -15,10 +15,16 @@
 
 package com.kvance.Nectroid;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URL;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.Future;
 
 import android.content.Context;
-import android.os.AsyncTask;
+import android.os.Handler;
 import android.util.Log;
 
 
@@ -41,11 +47,24 @@ abstract class CachedDocManager<Result> extends BaseDocManager
 
     /** Parse the document into its result object.
      *
-     * If the parser fails, return null instead.
+     * If the parser fails, return null instead.  The result isn't the manager's document yet; a
+     * new copy may turn out to be the same as the old one, and be thrown away.  It becomes
+     * current when it's passed to installDocument().
      *
      * This method runs in the background thread.
      */
-    public abstract Result parseDocument(String xmlData, Context context);
+    public abstract Result parseDocument(InputStream xmlStream, Context context) throws IOException;
+
+
+    /** Make this parsed document the manager's current one, and return it.
+     *
+     * It's called with each document that will be delivered, whether it came from a snapshot, the
+     * cached copy, or a new copy that was kept.  Return a different object to deliver that
+     * instead.
+     *
+     * This method runs in the background thread.
+     */
+    public abstract Result installDocument(Result result, Context context);
 
 
     ///
@@ -59,13 +78,71 @@ abstract class CachedDocManager<Result> extends BaseDocManager
     public void onCachedCopyRetrieved(Context context) {}
 
 
-    /** Called when a new copy of the document was downloaded.
+    /** Called when a new copy of the document starts downloading, before it's parsed.
+     *
+     * The download can still fail, so nothing should be written to the cache here.  Do that in
+     * onNewCopyCommitted().
      *
      * This method runs in the background thread.
      */
     public void onNewCopyRetrieved(FetchUrl.Result fetchResult, Context context) {}
 
 
+    /** Called when the new copy has been downloaded completely and is now the cached copy.
+     *
+     * This is where to save anything kept with it, like the time it was downloaded.
+     *
+     * This method runs in the background thread.
+     */
+    public void onNewCopyCommitted(FetchUrl.Result fetchResult, Context context) {}
+
+
+    /** Called when the server confirmed that the cached copy is still current.
+     *
+     * That's either a "not modified" response, or a new copy identical to the cached one, which
+     * is thrown away.  Nothing new is kept, so this is where to refresh any timestamps.  It's
+     * called before the cached copy is parsed, if it needs to be.
+     *
+     * This method runs in the background thread.
+     */
+    public void onCachedCopyRevalidated(FetchUrl.Result fetchResult, Context context) {}
+
+
+    /** Return the document parsed from the current cached copy, or null if it's not in memory.
+     *
+     * When the server says the cached copy is still current, this is reused instead of parsing
+     * the cached copy again.
+     *
+     * This method runs in the background thread.
+     */
+    public Result getParsedDocument() { return null; }
+
+
+    /** Read the parsed document from a snapshot written by writeSnapshot().
+     *
+     * Return null if this manager doesn't use snapshots.  The cached copy is parsed instead.
+     * Like parseDocument(), this doesn't make the result current.
+     *
+     * This method runs in the background thread.
+     */
+    public Result readSnapshot(Snapshot.Reader reader, Context context) throws IOException
+    {
+        return null;
+    }
+
+
+    /** Write the parsed document to a snapshot, so it can be loaded quickly next time.
+     *
+     * Return false if this manager doesn't use snapshots.
+     *
+     * This method runs in the background thread.
+     */
+    public boolean writeSnapshot(Result result, Snapshot.Writer writer) throws IOException
+    {
+        return false;
+    }
+
+
     /** Called when the parser successfully parsed the document.
      *
      * This method runs in the UI thread.
@@ -73,74 +150,356 @@ abstract class CachedDocManager<Result> extends BaseDocManager
     public void onParserSuccess(Result result, Context context) {}
 
 
+    /** Called when the cached document is shown while a new copy is being fetched.
+     *
+     * The listeners have already been sent the result.  It isn't a new document, so unlike
+     * onParserSuccess(), nothing should be saved or rescheduled here.
+     *
+     * This method runs in the UI thread.
+     */
+    public void onStaleResult(Result result, Context context) {}
+
+
+    /** Called instead of onParserSuccess() when the document hasn't changed since it was last
+     * parsed.
+     *
+     * This method runs in the UI thread.
+     */
+    public void onDocumentUnchanged(Result result, Context context) {}
+
+
+    /** Called when no document could be loaded.
+     *
+     * This method runs in the UI thread.
+     */
+    public void onUpdateFailed(Context context) {}
+
+
+    /** Return the priority of this manager's fetches.
+     *
+     * This method runs in the UI thread.
+     */
+    public FetchScheduler.Priority getPriority() { return FetchScheduler.Priority.NORMAL; }
+
+
     ///
-    /// Base AsyncTask
+    /// Update task
     ///
 
-    protected class UpdateTask extends AsyncTask<Void, Void, Void>
+    /** Loads the document on one of the FetchScheduler's threads.
+     *
+     * Results are delivered in the UI thread, unless the update was cancelled or replaced by then.
+     */
+    protected class UpdateTask implements FetchScheduler.Job
     {
         private Context mContext;
-        private boolean mShouldUseCache;
+        private UpdateMode mMode;
+        private Handler mHandler;
+        private FetchScheduler.Fetch mFetch;
         private Result mResult;
 
+        // The site this update was started for
+        private Site mSite;
 
-        public UpdateTask(Context context, boolean useCache)
+        // The cached result delivered before downloading, in STALE_WHILE_REVALIDATE mode
+        private Result mStaleResult;
+
+        // True if mResult is the document that was already in memory, because the server said
+        // the cached copy was still current or sent it again byte for byte
+        private boolean mUnchanged;
+
+
+        public UpdateTask(Context context, UpdateMode mode)
         {
             mContext = context;
-            mShouldUseCache = useCache;
+            mMode = mode;
+            mHandler = new Handler();
+            mSite = Cache.getSite();
         }
 
-        
-        @Override
-        protected Void doInBackground(Void... args)
+
+        public void run(FetchScheduler.Fetch fetch)
+        {
+            mFetch = fetch;
+            Cache.bindSite(mSite);
+            try {
+                load();
+            } finally {
+                Cache.unbindSite();
+
+                // Even if the load threw, the manager has to hear that this update is over.
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        if(isCurrent()) {
+                            onFinished();
+                        }
+                    }
+                });
+            }
+        }
+
+
+        /** Load the document into mResult, from the cache or the network. */
+        private void load()
         {
             Cache.DocId docId = getDocId();
-            String response = null;
+            boolean haveCachedCopy = false;
 
             // If requested, try using the cache first.
-            if(mShouldUseCache) {
-                response = Cache.read(docId, mContext);
+            if(mMode != UpdateMode.NETWORK) {
                 onCachedCopyRetrieved(mContext);
+                haveCachedCopy = loadCachedCopy(docId);
+            }
+
+            // Show the cached copy while checking for a new one.
+            if(mMode == UpdateMode.STALE_WHILE_REVALIDATE && mResult != null) {
+                mStaleResult = mResult;
+                mResult = null;
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        if(isCurrent()) {
+                            deliverStaleResult();
+                        }
+                    }
+                });
+                haveCachedCopy = false;
             }
 
             // If there's no cached copy, or we don't want it, fetch it.
-            if(response == null) {
+            if(!haveCachedCopy && !mFetch.isCancelled()) {
                 URL url = Cache.getUrlForDocId(docId, mContext);
-                if(url != null) {
+                if(!ConnectivityMonitor.isConnected()) {
+                    Log.d(TAG, String.format("Offline; not fetching %s", url));
+                } else if(url != null) {
                     // In issue #7, a user got a null URL here.  How?!
-                    FetchUrl.Result fetchResult = FetchUrl.get(url);
-                    response = fetchResult.getResponse();
-                    if(response != null && response.length() > 0) {
-                        // Cache this version.
-                        Cache.write(docId, response, mContext);
-                        onNewCopyRetrieved(fetchResult, mContext);
+
+                    // Only download the document if it changed since the cached copy.
+                    FetchUrl.Validators validators = null;
+                    if(Cache.available(docId, mContext)) {
+                        validators = Cache.readValidators(docId, mContext);
+                    }
+                    FetchUrl.Result fetchResult = FetchUrl.get(url, validators,
+                            new DownloadHandler(docId), mFetch.getAbort());
+                    if(fetchResult.isNotModified()) {
+                        // Still current.  Reuse the last parse if we have it.
+                        onCachedCopyRevalidated(fetchResult, mContext);
+                        mResult = getLastResult();
+                        mUnchanged = (mResult != null);
+                        if(mResult == null) {
+                            loadCachedCopy(docId);
+                        }
                     }
                 }
             }
+        }
+
+
+        /** Load the cached copy of the document.  Return false if there isn't one.
+         *
+         * The snapshot is used if there is one.  Otherwise the XML is parsed, and a snapshot is
+         * saved for next time.
+         */
+        private boolean loadCachedCopy(Cache.DocId docId)
+        {
+            if(!Cache.available(docId, mContext)) {
+                return false;
+            }
+
+            Snapshot.Reader reader = Cache.readSnapshot(docId, mContext);
+            if(reader != null) {
+                Result result = null;
+                try {
+                    result = readSnapshot(reader, mContext);
+                } catch(IOException e) {
+                    Log.w(TAG, "Ignoring bad snapshot", e);
+                }
+                if(result != null) {
+                    mResult = installDocument(result, mContext);
+                    return true;
+                }
+            }
 
-            // Parse the result.
-            if(response != null) {
-                mResult = parseDocument(response, mContext);
+            if(parseCachedCopy(docId)) {
+                saveSnapshot(docId);
+                return true;
+            } else {
+                return false;
             }
-            return null;
         }
 
 
-        @Override
-        protected void onPreExecute()
+        /** Parse the cached copy of the document.  Return false if there isn't one. */
+        private boolean parseCachedCopy(Cache.DocId docId)
+        {
+            InputStream cached = Cache.openRead(docId, mContext);
+            if(cached == null) {
+                return false;
+            }
+
+            try {
+                Result result = parseDocument(cached, mContext);
+                if(result != null) {
+                    mResult = installDocument(result, mContext);
+                }
+            } catch(IOException e) {
+                Log.w(TAG, "Failed to read cached document", e);
+            } finally {
+                try {
+                    cached.close();
+                } catch(IOException e) {
+                    // Nothing left to do with it anyway.
+                }
+            }
+            return true;
+        }
+
+
+        /** Save a snapshot of the document just parsed from the cached copy. */
+        private void saveSnapshot(Cache.DocId docId)
+        {
+            if(mResult == null) {
+                return;
+            }
+
+            Snapshot.Writer writer = new Snapshot.Writer();
+            try {
+                if(writeSnapshot(mResult, writer)) {
+                    Cache.writeSnapshot(docId, writer, mContext);
+                }
+            } catch(IOException e) {
+                Log.w(TAG, "Failed to write snapshot", e);
+            }
+        }
+
+
+        /** Caches and parses a new copy of the document as it downloads.
+         *
+         * The bytes go to a temporary file, which only replaces the cached copy once the whole
+         * document has arrived and parsed successfully.  They're hashed on the way, so a document
+         * identical to the one already parsed can be recognized.  Its new parse is thrown away
+         * without ever being installed, and the listeners keep the one they have.
+         */
+        private class DownloadHandler implements FetchUrl.BodyHandler
+        {
+            private Cache.DocId mDocId;
+
+            public DownloadHandler(Cache.DocId docId)
+            {
+                mDocId = docId;
+            }
+
+            public void onBody(InputStream body, FetchUrl.Result fetchResult) throws IOException
+            {
+                MessageDigest digest = Cache.newContentDigest();
+                DigestInputStream hashedBody = new DigestInputStream(body, digest);
+
+                OutputStream cacheStream = Cache.openWrite(mDocId, mContext);
+                if(cacheStream == null) {
+                    // Can't cache it, but it can still be parsed.
+                    onNewCopyRetrieved(fetchResult, mContext);
+                    Result result = parseDocument(body, mContext);
+                    if(result != null) {
+                        mResult = installDocument(result, mContext);
+                    }
+                    return;
+                }
+
+                // Remember the last parse, in case the new copy turns out to be the same.
+                Result oldResult = getLastResult();
+                String oldHash = Cache.readHash(mDocId, mContext);
+                onNewCopyRetrieved(fetchResult, mContext);
+
+                Result result = null;
+                boolean complete = false;
+                try {
+                    TeeInputStream tee = new TeeInputStream(hashedBody, cacheStream);
+                    result = parseDocument(tee, mContext);
+
+                    // The parser can stop short of the end; cache the whole document anyway.
+                    tee.drain();
+                    complete = (tee.getLength() > 0);
+                } finally {
+                    try {
+                        cacheStream.close();
+                    } catch(IOException e) {
+                        complete = false;
+                    }
+
+                    if(!complete) {
+                        // Nothing has been saved about the new copy, so the old cached copy is
+                        // still good.
+                        Cache.abortWrite(mDocId, mContext);
+                    }
+                }
+                if(!complete) {
+                    return;
+                }
+                if(result == null) {
+                    // Don't replace a good cached copy with one that can't be parsed.
+                    Log.w(TAG, String.format("Not caching %s; it failed to parse", mDocId));
+                    Cache.abortWrite(mDocId, mContext);
+                    return;
+                }
+
+                String hash = Cache.hashToString(digest);
+                if(oldResult != null && hash.equals(oldHash)) {
+                    // Same as before.  Keep the old copy, with its hash and snapshot, and drop
+                    // the new parse so the listeners aren't sent the same document again.
+                    Cache.abortWrite(mDocId, mContext);
+                    Cache.writeValidators(mDocId, fetchResult.getValidators(), mContext);
+                    onCachedCopyRevalidated(fetchResult, mContext);
+                    mResult = oldResult;
+                    mUnchanged = true;
+                    return;
+                }
+
+                mResult = installDocument(result, mContext);
+                if(Cache.commitWrite(mDocId, mContext)) {
+                    Cache.writeValidators(mDocId, fetchResult.getValidators(), mContext);
+                    Cache.writeHash(mDocId, hash, mContext);
+                    onNewCopyCommitted(fetchResult, mContext);
+                    saveSnapshot(mDocId);
+                }
+            }
+        }
+
+
+        /** Return the document the listeners were last sent, or null if it's not known. */
+        private Result getLastResult()
+        {
+            Result result = getParsedDocument();
+            return (result != null) ? result : mStaleResult;
+        }
+
+
+        /** Return true if this is still the manager's update task. */
+        private boolean isCurrent()
         {
-            notifyStarted();
+            return mUpdateTask == mFetch && !mFetch.isCancelled();
         }
 
-        
-        @Override
-        protected void onPostExecute(Void result)
+
+        private void deliverStaleResult()
+        {
+            notifyFinished(mStaleResult, true);
+            onStaleResult(mStaleResult, mContext);
+        }
+
+
+        private void onFinished()
         {
             if(mResult != null) {
-                notifyFinished(mResult);
-                onParserSuccess(mResult, mContext);
+                if(mUnchanged) {
+                    // The listeners already have this result.
+                    notifyRevalidated();
+                    onDocumentUnchanged(mResult, mContext);
+                } else {
+                    notifyFinished(mResult, false);
+                    onParserSuccess(mResult, mContext);
+                }
             } else {
                 notifyFailed();
+                onUpdateFailed(mContext);
             }
             mUpdateTask = null;
         }
@@ -149,8 +508,21 @@ abstract class CachedDocManager<Result> extends BaseDocManager
     protected static final String TAG = "Nectroid";
 
     @Override
-    protected AsyncTask<Void, Void, Void> newUpdateTask(Context context, boolean useCache)
+    protected Future<?> startUpdateTask(Context context, UpdateMode mode)
     {
-        return new UpdateTask(context, useCache);
+        // All of a manager's fetches go to the current site.
+        URL url = Cache.getUrlForDocId(getDocId(), context);
+        String host = (url == null) ? "" : url.getHost();
+        UpdateTask task = new UpdateTask(context, mode);
+        FetchScheduler.Fetch fetch = FetchScheduler.submit(getDocId(), host, getPriority(), task);
+        if(!fetch.hasJob(task)) {
+            // Another update of this document is queued, and it won't report to us.
+            Log.w(TAG, String.format("Not updating %s; another update is already queued",
+                        getDocId()));
+            return null;
+        }
+
+        notifyStarted();
+        return fetch;
     }
 }
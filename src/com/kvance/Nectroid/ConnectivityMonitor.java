@@ -0,0 +1,112 @@
+// This file is part of Nectroid.
+//
+// Nectroid is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Nectroid is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with Nectroid.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.kvance.Nectroid;
+
+import java.util.HashSet;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.util.Log;
+
+
+/** Keeps track of whether the device has a network connection.
+ *
+ * Document fetches are skipped while there's no connection, and the RefreshPlanner holds its
+ * refreshes until one comes back.
+ */
+class ConnectivityMonitor
+{
+    public interface Listener
+    {
+        /** Called in the UI thread when the device connects to or disconnects from a network. */
+        public abstract void onConnectivityChanged(boolean connected);
+    }
+
+    private static HashSet<Listener> mListeners = new HashSet<Listener>();
+    private static volatile boolean mConnected = true;
+
+    private static final String TAG = "NectroidConnectivity";
+
+
+    ///
+    /// Public interface
+    ///
+
+    /** Start following the connection state. */
+    public static void start(Context appContext)
+    {
+        mConnected = isActiveNetworkConnected(appContext);
+        appContext.registerReceiver(mConnectivityReceiver,
+                new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    /** Stop following the connection state. */
+    public static void stop(Context appContext)
+    {
+        appContext.unregisterReceiver(mConnectivityReceiver);
+    }
+
+
+    /** Return true if there's a network connection.  This can be called from any thread. */
+    public static boolean isConnected()
+    {
+        return mConnected;
+    }
+
+
+    public static void addListener(Listener listener)
+    {
+        mListeners.add(listener);
+    }
+
+    public static void removeListener(Listener listener)
+    {
+        mListeners.remove(listener);
+    }
+
+
+    ///
+    /// Utility methods
+    ///
+
+    private static boolean isActiveNetworkConnected(Context context)
+    {
+        ConnectivityManager conman = (ConnectivityManager)context.getSystemService(
+                Context.CONNECTIVITY_SERVICE);
+        NetworkInfo netInfo = conman.getActiveNetworkInfo();
+        return (netInfo != null && netInfo.isConnected());
+    }
+
+
+    private static BroadcastReceiver mConnectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent)
+        {
+            boolean connected = isActiveNetworkConnected(context);
+            if(connected != mConnected) {
+                Log.i(TAG, connected ? "Network connected" : "Network disconnected");
+                mConnected = connected;
+                for(Listener listener : mListeners) {
+                    listener.onConnectivityChanged(connected);
+                }
+            }
+        }
+    };
+}
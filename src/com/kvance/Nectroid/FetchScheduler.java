@@ -0,0 +1,379 @@
+// This file is part of Nectroid.
+//
+// Nectroid is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Nectroid is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with Nectroid.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.kvance.Nectroid;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import android.os.Process;
+import android.util.Log;
+
+
+/** Runs all document fetches on a small pool of background threads.
+ *
+ * Fetches run in priority order, and only a few at a time go to the same host.  Submitting a
+ * fetch with the same key as one that's still queued returns the queued fetch instead of adding
+ * another; the caller can tell with Fetch.hasJob().  Cancelling a running fetch aborts its
+ * connection, so it doesn't wait for a stalled server.
+ *
+ * Fetches with the same key never run at the same time.  A fetch submitted while another with its
+ * key is running (or returning after being cancelled) waits in the queue until that job has
+ * returned, since both would be writing the same cache files.
+ */
+class FetchScheduler
+{
+    /** Priority classes, highest first. */
+    public enum Priority {
+        /** A document the user is looking at, like the queue. */
+        USER_VISIBLE,
+        NORMAL,
+        /** A document that's only refreshed in the background, like the oneliners. */
+        BACKGROUND,
+    }
+
+
+    /** The work done for a fetch.  It runs on one of the scheduler's threads. */
+    public interface Job
+    {
+        /** Do the fetch.
+         *
+         * Pass fetch.getAbort() to FetchUrl.get() so the fetch can be cancelled, and check
+         * fetch.isCancelled() before doing anything slow.
+         */
+        void run(Fetch fetch);
+    }
+
+
+    /** A submitted fetch. */
+    public static class Fetch implements Future<Void>
+    {
+        private static final int QUEUED = 0;
+        private static final int RUNNING = 1;
+        private static final int DONE = 2;
+        private static final int CANCELLED = 3;
+
+        private Object mKey;
+        private String mHost;
+        private Priority mPriority;
+        private long mSequence;
+        private Job mJob;
+        private FetchUrl.Abort mAbort;
+        private int mState;
+        private RuntimeException mError;
+
+        private Fetch(Object key, String host, Priority priority, long sequence, Job job)
+        {
+            mKey = key;
+            mHost = host;
+            mPriority = priority;
+            mSequence = sequence;
+            mJob = job;
+            mAbort = new FetchUrl.Abort();
+            mState = QUEUED;
+        }
+
+        /** Return the handle that aborts this fetch's connection when it's cancelled. */
+        public FetchUrl.Abort getAbort() { return mAbort; }
+
+        public Priority getPriority() { return mPriority; }
+
+        /** Return true if this fetch runs the given job.
+         *
+         * If it doesn't, the job was submitted while this fetch was queued for the same key, and
+         * it will never run.
+         */
+        public boolean hasJob(Job job) { return mJob == job; }
+
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            synchronized(this) {
+                if(mState == DONE || mState == CANCELLED) {
+                    return false;
+                } else if(mState == RUNNING && !mayInterruptIfRunning) {
+                    return false;
+                }
+                mState = CANCELLED;
+                notifyAll();
+            }
+
+            // Closing the connection makes the running job fail quickly.
+            mAbort.abort();
+            onCancelled(this);
+            return true;
+        }
+
+        public synchronized boolean isCancelled()
+        {
+            return mState == CANCELLED;
+        }
+
+        public synchronized boolean isDone()
+        {
+            return mState == DONE || mState == CANCELLED;
+        }
+
+        private synchronized boolean isQueued()
+        {
+            return mState == QUEUED;
+        }
+
+        public synchronized Void get() throws InterruptedException, ExecutionException
+        {
+            while(!isDone()) {
+                wait();
+            }
+            return getResult();
+        }
+
+        public synchronized Void get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException
+        {
+            long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+            while(!isDone()) {
+                long remaining = deadline - System.currentTimeMillis();
+                if(remaining <= 0) {
+                    throw new TimeoutException();
+                }
+                wait(remaining);
+            }
+            return getResult();
+        }
+
+        private Void getResult() throws ExecutionException
+        {
+            if(mState == CANCELLED) {
+                throw new CancellationException();
+            } else if(mError != null) {
+                throw new ExecutionException(mError);
+            }
+            return null;
+        }
+
+        /** Run the job, unless the fetch was cancelled first. */
+        private void run()
+        {
+            synchronized(this) {
+                if(mState != QUEUED) {
+                    return;
+                }
+                mState = RUNNING;
+            }
+
+            try {
+                mJob.run(this);
+            } catch(RuntimeException e) {
+                Log.e(TAG, "Fetch failed", e);
+                mError = e;
+            } finally {
+                synchronized(this) {
+                    if(mState == RUNNING) {
+                        mState = DONE;
+                    }
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+
+    // Worker threads, and fetches per host
+    private static final int MAX_THREADS = 3;
+    private static final int MAX_FETCHES_PER_HOST = 2;
+
+    // Idle threads exit after this long, in milliseconds
+    private static final long IDLE_TIMEOUT = 30000;
+
+    // All of the following are guarded by mLock.
+    private static final Object mLock = new Object();
+    private static ArrayList<Fetch> mQueue = new ArrayList<Fetch>();
+    private static HashMap<Object, Fetch> mFetchesByKey = new HashMap<Object, Fetch>();
+    private static HashMap<Object, Fetch> mRunningByKey = new HashMap<Object, Fetch>();
+    private static HashMap<String, Integer> mFetchesPerHost = new HashMap<String, Integer>();
+    private static int mNumThreads;
+    private static int mNumIdleThreads;
+    private static long mNextSequence;
+
+    private static final String TAG = "NectroidFetchScheduler";
+
+
+    ///
+    /// Public interface
+    ///
+
+    /** Queue a fetch.
+     *
+     * @param key identifies the document; a fetch with the same key that hasn't started yet is
+     *            returned instead of queueing a new one, and job is dropped
+     * @param host the host the document comes from
+     * @return the fetch that will run; check hasJob(job) to see if it's a new one
+     */
+    public static Fetch submit(Object key, String host, Priority priority, Job job)
+    {
+        synchronized(mLock) {
+            Fetch existing = mFetchesByKey.get(key);
+            if(existing != null && existing.isQueued()) {
+                // Coalesce with the queued fetch, raising its priority if need be.  One that has
+                // started may already have read what this job wants, so it isn't reused.
+                if(priority.compareTo(existing.mPriority) < 0) {
+                    existing.mPriority = priority;
+                }
+                return existing;
+            }
+
+            Fetch fetch = new Fetch(key, host, priority, mNextSequence++, job);
+            mQueue.add(fetch);
+            mFetchesByKey.put(key, fetch);
+            if(mNumIdleThreads == 0 && mNumThreads < MAX_THREADS) {
+                startWorker();
+            }
+            mLock.notifyAll();
+            return fetch;
+        }
+    }
+
+
+    ///
+    /// Utility methods
+    ///
+
+    /** Forget a cancelled fetch, so its key can be submitted again.
+     *
+     * If it's running, its key stays in mRunningByKey until the job returns.
+     */
+    private static void onCancelled(Fetch fetch)
+    {
+        synchronized(mLock) {
+            mQueue.remove(fetch);
+            if(mFetchesByKey.get(fetch.mKey) == fetch) {
+                mFetchesByKey.remove(fetch.mKey);
+            }
+        }
+    }
+
+
+    /** Remove and return the next fetch that can run, or null if there isn't one.
+     *
+     * mLock must be held.
+     */
+    private static Fetch takeNext()
+    {
+        Fetch best = null;
+        for(Fetch fetch : mQueue) {
+            if(mRunningByKey.containsKey(fetch.mKey)) {
+                // Wait for the cancelled fetch of this document to return.
+                continue;
+            }
+            Integer running = mFetchesPerHost.get(fetch.mHost);
+            if(running != null && running >= MAX_FETCHES_PER_HOST) {
+                continue;
+            }
+            if(best == null || fetch.mPriority.compareTo(best.mPriority) < 0 ||
+                    (fetch.mPriority == best.mPriority && fetch.mSequence < best.mSequence)) {
+                best = fetch;
+            }
+        }
+
+        if(best != null) {
+            mQueue.remove(best);
+            mRunningByKey.put(best.mKey, best);
+            Integer running = mFetchesPerHost.get(best.mHost);
+            mFetchesPerHost.put(best.mHost, (running == null) ? 1 : running + 1);
+        }
+        return best;
+    }
+
+
+    /** Mark a fetch as finished, freeing its host slot and its key.
+     *
+     * mLock must be held.
+     */
+    private static void finish(Fetch fetch)
+    {
+        int running = mFetchesPerHost.get(fetch.mHost) - 1;
+        if(running > 0) {
+            mFetchesPerHost.put(fetch.mHost, running);
+        } else {
+            mFetchesPerHost.remove(fetch.mHost);
+        }
+        if(mFetchesByKey.get(fetch.mKey) == fetch) {
+            mFetchesByKey.remove(fetch.mKey);
+        }
+        mRunningByKey.remove(fetch.mKey);
+        mLock.notifyAll();
+    }
+
+
+    /** Start another worker thread.  mLock must be held. */
+    private static void startWorker()
+    {
+        mNumThreads++;
+        Thread thread = new Thread(new Worker(), "FetchScheduler-" + mNumThreads);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    private static class Worker implements Runnable
+    {
+        public void run()
+        {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            Fetch fetch;
+            while((fetch = waitForFetch()) != null) {
+                try {
+                    fetch.run();
+                } finally {
+                    synchronized(mLock) {
+                        finish(fetch);
+                    }
+                }
+            }
+        }
+
+        /** Return the next fetch to run, or null if this thread has been idle too long. */
+        private Fetch waitForFetch()
+        {
+            synchronized(mLock) {
+                long idleSince = System.currentTimeMillis();
+                while(true) {
+                    Fetch fetch = takeNext();
+                    if(fetch != null) {
+                        return fetch;
+                    }
+
+                    long idleTime = System.currentTimeMillis() - idleSince;
+                    if(idleTime >= IDLE_TIMEOUT) {
+                        mNumThreads--;
+                        return null;
+                    }
+                    mNumIdleThreads++;
+                    try {
+                        mLock.wait(IDLE_TIMEOUT - idleTime);
+                    } catch(InterruptedException e) {
+                        // Check the queue again.
+                    } finally {
+                        mNumIdleThreads--;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -15,52 +15,236 @@
 
 package com.kvance.Nectroid;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.net.URL;
 import java.util.Date;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+
+import android.os.SystemClock;
+import android.util.Log;
 
 
 /** Retrieve data from a URL. */
 class FetchUrl
 {
+    /** Cache validators sent back by the server with a document. */
+    public static class Validators
+    {
+        private String mETag;
+        private String mLastModified;
+
+        public Validators(String eTag, String lastModified)
+        {
+            mETag = eTag;
+            mLastModified = lastModified;
+        }
+
+        public String getETag() { return mETag; }
+        public String getLastModified() { return mLastModified; }
+
+        public boolean isEmpty()
+        {
+            return mETag == null && mLastModified == null;
+        }
+    }
+
+
+    /** How long each phase of a fetch took.
+     *
+     * The DNS and connect times are only set when the fetch had to open a new connection instead
+     * of reusing a pooled one.
+     */
+    public static class Timings
+    {
+        boolean mNewConnection;
+        long mDnsMillis;
+        long mConnectMillis;
+        long mFirstByteMillis;
+        long mBodyMillis;
+
+        public boolean isNewConnection() { return mNewConnection; }
+        public long getDnsMillis() { return mDnsMillis; }
+        public long getConnectMillis() { return mConnectMillis; }
+        public long getFirstByteMillis() { return mFirstByteMillis; }
+        public long getBodyMillis() { return mBodyMillis; }
+
+        @Override
+        public String toString()
+        {
+            return String.format("dns=%d connect=%d ttfb=%d body=%d ms (%s connection)",
+                    mDnsMillis, mConnectMillis, mFirstByteMillis, mBodyMillis,
+                    mNewConnection ? "new" : "pooled");
+        }
+    }
+
+
+    /** Receives a document's body as it's downloaded. */
+    public interface BodyHandler
+    {
+        /** Read the document from body.
+         *
+         * The result already has the timestamp and validators.  Throw an IOException if the
+         * download fails partway through.  This method runs in the fetching thread.
+         */
+        void onBody(InputStream body, Result result) throws IOException;
+    }
+
+
+    /** Lets another thread abort a fetch in progress.
+     *
+     * Aborting closes the connection, so a fetch blocked on the network fails right away.
+     */
+    public static class Abort
+    {
+        private HttpUriRequest mRequest;
+        private boolean mAborted;
+
+        public synchronized void abort()
+        {
+            mAborted = true;
+            if(mRequest != null) {
+                mRequest.abort();
+            }
+        }
+
+        public synchronized boolean isAborted() { return mAborted; }
+
+        private synchronized void setRequest(HttpUriRequest request)
+        {
+            mRequest = request;
+            if(mAborted) {
+                request.abort();
+            }
+        }
+    }
+
+
     public static class Result
     {
-        private String mResponse;
+        private boolean mComplete;
         private Date mTimestamp;
+        private boolean mNotModified;
+        private Validators mValidators;
+        private Timings mTimings;
 
-        public String getResponse() { return mResponse; }
         public Date getTimestamp() { return mTimestamp; }
+
+        /** Return true if the whole body was downloaded and handled. */
+        public boolean isComplete() { return mComplete; }
+
+        /** Return true if the server said our copy is still current. */
+        public boolean isNotModified() { return mNotModified; }
+
+        /** Return the validators for the downloaded document, or null if it had none. */
+        public Validators getValidators() { return mValidators; }
+
+        public Timings getTimings() { return mTimings; }
     }
 
-    public static Result get(URL url)
+    private static final String TAG = "NectroidFetch";
+
+
+    /** Fetch the document at url through the shared HTTP client.
+     *
+     * The body is passed to the handler as it arrives, already decompressed.
+     *
+     * If validators are given, the request is conditional on the document having changed since
+     * they were sent.  If it hasn't, the handler isn't called and isNotModified() is true.
+     *
+     * If abort is given, it can be used to abort the fetch from another thread.
+     */
+    public static Result get(URL url, Validators validators, BodyHandler handler, Abort abort)
     {
         Result result = new Result();
-        StringBuilder sb = new StringBuilder();
-        boolean failed;
+        Timings timings = new Timings();
+        HttpGet request = null;
 
+        result.mTimings = timings;
         try {
-            InputStream inputStream = url.openStream();
-            InputStreamReader instReader = new InputStreamReader(inputStream);
-            BufferedReader reader = new BufferedReader(instReader, 8*1024);
-            String line;
+            request = new HttpGet(url.toString());
+            if(abort != null) {
+                abort.setRequest(request);
+            }
+            request.addHeader("Accept-Encoding", "gzip");
+            if(validators != null) {
+                if(validators.getETag() != null) {
+                    request.addHeader("If-None-Match", validators.getETag());
+                }
+                if(validators.getLastModified() != null) {
+                    request.addHeader("If-Modified-Since", validators.getLastModified());
+                }
+            }
 
+            long start = SystemClock.elapsedRealtime();
+            HttpResponse response = SiteHttpClient.execute(request, timings);
+            long headersArrived = SystemClock.elapsedRealtime();
+            timings.mFirstByteMillis = headersArrived - start - timings.mDnsMillis -
+                timings.mConnectMillis;
             result.mTimestamp = new Date();
 
-            while((line = reader.readLine()) != null) {
-                sb.append(line);
+            HttpEntity entity = response.getEntity();
+            int status = response.getStatusLine().getStatusCode();
+            if(status == HttpStatus.SC_NOT_MODIFIED) {
+                // Nothing to download.
+                if(entity != null) {
+                    entity.consumeContent();
+                }
+                result.mNotModified = true;
+                Log.d(TAG, String.format("%s not modified: %s", url, timings));
+                return result;
+            } else if(status != HttpStatus.SC_OK || entity == null) {
+                if(entity != null) {
+                    entity.consumeContent();
+                }
+                throw new IOException(String.format("HTTP status %d", status));
+            }
+
+            Validators newValidators = new Validators(getHeader(response, "ETag"),
+                    getHeader(response, "Last-Modified"));
+            if(!newValidators.isEmpty()) {
+                result.mValidators = newValidators;
             }
-            failed = false;
-        } catch(IOException e) {
-            failed = true;
-        }
 
-        if(failed == false) {
-            result.mResponse = sb.toString();
+            InputStream inputStream = entity.getContent();
+            Header encoding = entity.getContentEncoding();
+            if(encoding != null && encoding.getValue().equalsIgnoreCase("gzip")) {
+                inputStream = new GZIPInputStream(inputStream);
+            }
+            try {
+                handler.onBody(inputStream, result);
+            } finally {
+                inputStream.close();
+            }
+            timings.mBodyMillis = SystemClock.elapsedRealtime() - headersArrived;
+            Log.d(TAG, String.format("Fetched %s: %s", url, timings));
+            result.mComplete = true;
+        } catch(IOException e) {
+            Log.w(TAG, String.format("Failed to fetch %s: %s", url, e));
+            if(request != null) {
+                // Don't return a half-read connection to the pool.
+                request.abort();
+            }
         }
 
         return result;
     }
+
+
+    ///
+    /// Utility methods
+    ///
+
+    private static String getHeader(HttpResponse response, String name)
+    {
+        Header header = response.getFirstHeader(name);
+        return (header != null) ? header.getValue() : null;
+    }
 }
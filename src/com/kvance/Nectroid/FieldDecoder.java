@@ -0,0 +1,195 @@
+// This file is part of Nectroid.
+//
+// Nectroid is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Nectroid is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with Nectroid.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.kvance.Nectroid;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+
+/** Decodes the numbers, durations and timestamps in the demovibes documents.
+ *
+ * Values are decoded straight from their characters, without the substrings, regular expressions
+ * and ParsePositions that Integer.parseInt(), String.split() and SimpleDateFormat use.
+ *
+ * Timestamps are in local time.  Converting a date and hour to epoch millis is the only slow
+ * part, so the last few hours seen are remembered; a history full of songs requested in the same
+ * hour converts it once.  Decoders outlive the documents they decode, so call
+ * checkTimeZone() before each one; it starts over if the user has changed time zones.
+ *
+ * The static methods can be called from any thread.  An instance is only for one thread.
+ */
+class FieldDecoder
+{
+    /** Returned when a value can't be decoded. */
+    public static final long INVALID = Long.MIN_VALUE;
+
+    private Calendar mCalendar;
+    private long[] mMemoHours;
+    private long[] mMemoMillis;
+
+    // Number of hours remembered; must be a power of 2
+    private static final int MEMO_SIZE = 8;
+
+    // Length of "yyyy-MM-dd HH:mm:ss"
+    private static final int TIMESTAMP_LENGTH = 19;
+
+
+    public FieldDecoder()
+    {
+        mCalendar = Calendar.getInstance();
+        mMemoHours = new long[MEMO_SIZE];
+        mMemoMillis = new long[MEMO_SIZE];
+        for(int i = 0; i < MEMO_SIZE; i++) {
+            mMemoHours[i] = -1;
+        }
+    }
+
+
+    ///
+    /// Public interface
+    ///
+
+    /** Switch to the default time zone if it has changed, forgetting the hours remembered. */
+    public void checkTimeZone()
+    {
+        TimeZone zone = TimeZone.getDefault();
+        TimeZone current = mCalendar.getTimeZone();
+        if(!zone.getID().equals(current.getID()) || !zone.hasSameRules(current)) {
+            mCalendar.setTimeZone(zone);
+            for(int i = 0; i < MEMO_SIZE; i++) {
+                mMemoHours[i] = -1;
+            }
+        }
+    }
+
+
+    /** Decode a base 10 int, with an optional minus sign, or return INVALID. */
+    public static long decodeInt(CharSequence value)
+    {
+        return decodeInt(value, 0, value.length());
+    }
+
+    /** Decode the base 10 int in value[start:end], or return INVALID. */
+    public static long decodeInt(CharSequence value, int start, int end)
+    {
+        boolean negative = (start < end && value.charAt(start) == '-');
+        if(negative) {
+            start++;
+        }
+        if(start == end) {
+            return INVALID;
+        }
+
+        long result = 0;
+        for(int i = start; i < end; i++) {
+            int digit = value.charAt(i) - '0';
+            if(digit < 0 || digit > 9) {
+                return INVALID;
+            }
+            result = 10 * result + digit;
+            if(result > (long)Integer.MAX_VALUE + 1) {
+                return INVALID;
+            }
+        }
+
+        result = negative ? -result : result;
+        return (result > Integer.MAX_VALUE) ? INVALID : result;
+    }
+
+
+    /** Decode an "m:ss" duration into seconds, or return INVALID. */
+    public static long decodeDuration(CharSequence value)
+    {
+        int length = value.length();
+        int colon = -1;
+        for(int i = 0; i < length; i++) {
+            if(value.charAt(i) == ':') {
+                colon = i;
+                break;
+            }
+        }
+        if(colon == -1) {
+            return INVALID;
+        }
+
+        long minutes = decodeInt(value, 0, colon);
+        long seconds = decodeInt(value, colon + 1, length);
+        if(minutes < 0 || seconds < 0) {
+            return INVALID;
+        }
+        return 60 * minutes + seconds;
+    }
+
+
+    /** Decode a "yyyy-MM-dd HH:mm:ss" local time into epoch millis, or return INVALID.
+     *
+     * Out of range fields roll over into the next one, like a lenient SimpleDateFormat.
+     */
+    public long decodeTimestamp(CharSequence value)
+    {
+        if(value.length() != TIMESTAMP_LENGTH || value.charAt(4) != '-' ||
+                value.charAt(7) != '-' || value.charAt(10) != ' ' || value.charAt(13) != ':' ||
+                value.charAt(16) != ':') {
+            return INVALID;
+        }
+
+        int year = digits(value, 0, 4);
+        int month = digits(value, 5, 7);
+        int day = digits(value, 8, 10);
+        int hour = digits(value, 11, 13);
+        int minute = digits(value, 14, 16);
+        int second = digits(value, 17, 19);
+        if(year < 0 || month < 0 || day < 0 || hour < 0 || minute < 0 || second < 0) {
+            return INVALID;
+        }
+
+        return hourMillis(year, month, day, hour) + 60000L * minute + 1000L * second;
+    }
+
+
+    ///
+    /// Utility methods
+    ///
+
+    /** Return the digits in value[start:end] as an int, or -1 if they aren't all digits. */
+    private static int digits(CharSequence value, int start, int end)
+    {
+        int result = 0;
+        for(int i = start; i < end; i++) {
+            int digit = value.charAt(i) - '0';
+            if(digit < 0 || digit > 9) {
+                return -1;
+            }
+            result = 10 * result + digit;
+        }
+        return result;
+    }
+
+
+    /** Return the epoch millis at the start of a local hour. */
+    private long hourMillis(int year, int month, int day, int hour)
+    {
+        long key = ((year * 100L + month) * 100 + day) * 100 + hour;
+        int slot = (int)key & (MEMO_SIZE - 1);
+        if(mMemoHours[slot] != key) {
+            mCalendar.clear();
+            mCalendar.set(year, month - 1, day, hour, 0, 0);
+            mMemoMillis[slot] = mCalendar.getTimeInMillis();
+            mMemoHours[slot] = key;
+        }
+        return mMemoMillis[slot];
+    }
+}
@@ -0,0 +1,116 @@
+// This file is part of Nectroid.
+//
+// Nectroid is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Nectroid is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with Nectroid.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.kvance.Nectroid;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/** Remembers the artists, requesters and song titles seen in recent playlists.
+ *
+ * The same names come back in every refresh of the queue and history.  The playlist parser looks
+ * them up here by id, and only allocates a new String (and IdString) when the id is new or its
+ * name has changed.  The least recently used names are forgotten once there are MAX_SIZE.
+ *
+ * The pool is filled in the fetch thread and cleared from the UI thread, so it's synchronized.
+ */
+class InternPool
+{
+    // What each id is for, kept in the top bits of the key
+    private static final long ARTIST = 1L << 32;
+    private static final long REQUESTER = 2L << 32;
+    private static final long SONG_TITLE = 3L << 32;
+
+    // Most names to remember
+    private static final int MAX_SIZE = 512;
+
+    private LinkedHashMap<Long, Object> mPool;
+
+
+    public InternPool()
+    {
+        mPool = new LinkedHashMap<Long, Object>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Object> eldest)
+            {
+                return size() > MAX_SIZE;
+            }
+        };
+    }
+
+
+    ///
+    /// Public interface
+    ///
+
+    /** Return an artist with this id and name. */
+    public synchronized Playlist.IdString getArtist(int id, CharSequence name)
+    {
+        return getIdString(ARTIST, id, name);
+    }
+
+
+    /** Return a requester with this id and name. */
+    public synchronized Playlist.IdString getRequester(int id, CharSequence name)
+    {
+        return getIdString(REQUESTER, id, name);
+    }
+
+
+    /** Return the title of the song with this id. */
+    public synchronized String getSongTitle(int id, CharSequence title)
+    {
+        if(id < 0) {
+            return title.toString();
+        }
+
+        Long key = SONG_TITLE | id;
+        String result = (String)mPool.get(key);
+        if(result == null || !result.contentEquals(title)) {
+            result = title.toString();
+            mPool.put(key, result);
+        }
+        return result;
+    }
+
+
+    /** Forget everything. */
+    public synchronized void clear()
+    {
+        mPool.clear();
+    }
+
+
+    ///
+    /// Utility methods
+    ///
+
+    private Playlist.IdString getIdString(long kind, int id, CharSequence name)
+    {
+        if(id < 0) {
+            // Without a real id, there's nothing to look it up by.
+            return new Playlist.IdString(id, name.toString());
+        }
+
+        Long key = kind | id;
+        Playlist.IdString result = (Playlist.IdString)mPool.get(key);
+        if(result == null || !result.getString().contentEquals(name)) {
+            result = new Playlist.IdString(id, name.toString());
+            mPool.put(key, result);
+        }
+        return result;
+    }
+}
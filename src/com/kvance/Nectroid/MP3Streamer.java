@@ -16,13 +16,13 @@
 package com.kvance.Nectroid;
 
 import java.net.URL;
+import java.util.concurrent.CountDownLatch;
 
 import android.content.Context;
-import android.media.AudioFormat;
-import android.media.AudioManager;
-import android.media.AudioTrack;
+import android.os.ConditionVariable;
 import android.os.Handler;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.util.Log;
 
 
@@ -40,10 +40,19 @@ class MP3Streamer
     private String mRemotePath;
     private boolean mCancelled;
 
-    private AudioTrack mAudioTrack;
-    private short[] mPcmBuffer;
     private RingBuffer mMP3Buffer;
     private int mMP3BufferSize;
+    private BufferController mController;
+    private CountDownLatch mPlaybackLatch;
+    private int mRefillLength;
+    private int mUnderruns;
+    private boolean mRebuffering;
+    private RingBuffer mPcmBuffer;
+
+    private AudioSink mSink;
+    private Object mSinkLock;
+    private short[] mSinkSamples;
+    private int mSinkBatchLength;
 
     private Handler mHandler;
 
@@ -52,17 +61,54 @@ class MP3Streamer
 
     private Thread mBufferingThread;
     private Thread mStreamingThread;
+    private Thread mSinkThread;
 
     private Context mContext;
     private PowerManager.WakeLock mWakeLock;
 
+    // Only the buffering thread opens and closes the socket, and it can read mSocket freely.
+    // Other threads interrupt it under mSocketLock, so they never touch a closed (or reused) fd.
     private int mSocket;
+    private Object mSocketLock;
+    private volatile boolean mReconnectRequested;
+    private ConditionVariable mReconnectSignal;
+    private int mConnectionBytes; // read since the last connect, by the buffering thread
+
+    // The decoder works up to a second ahead of the sink (at 44.1 kHz stereo), so a CPU spike
+    // can stall it for that long without an underrun.
+    private static final int PCM_BUFFER_SIZE = 44100 * 2 * 2; // bytes
+
+    // The sink writes decoded audio in batches of up to this much audio.
+    private static final int PCM_BATCH_MILLIS = 250;
+    private static final int MAX_SAMPLE_RATE = 48000;
+
+    // The MP3 buffer has room for this much audio.  BufferController decides how much of it to
+    // fill before playing.
+    private static final int MAX_BUFFER_SECONDS = 8;
+
+    // Once the MP3 buffer fills up, wait for 1/REFILL_DIVISOR of it to drain before reading more.
+    private static final int REFILL_DIVISOR = 8;
+
+    // After losing the stream, try to reconnect this many times, waiting twice as long (up to the
+    // maximum) after each failure.  Playback continues from the buffer in the meantime.
+    private static final int MAX_RECONNECT_ATTEMPTS = 8;
+    private static final int MIN_RECONNECT_DELAY = 500; // ms
+    private static final int MAX_RECONNECT_DELAY = 16000; // ms
+
+    // A connection only counts as working, and resets the reconnect attempts, once it has
+    // delivered this much of the stream.  Servers that accept and then drop us at once are
+    // still backed off from.
+    private static final int MIN_CONNECTION_BYTES = 16384;
 
-    private static final int PCM_BUFFER_SIZE = 44100 * 2 * 2 * 8/10; // bytes
     private static final String TAG = "MP3Streamer";
 
 
     MP3Streamer(Context context, URL streamUrl, int bitrate)
+    {
+        this(context, streamUrl, bitrate, new AudioTrackSink());
+    }
+
+    MP3Streamer(Context context, URL streamUrl, int bitrate, AudioSink sink)
     {
         // Take apart the URL now.
         mRemoteHost = streamUrl.getHost();
@@ -77,14 +123,25 @@ class MP3Streamer
         Log.d(TAG, String.format("Set %d byte buffer for %d kbps stream", mMP3BufferSize, bitrate));
         mMP3Buffer = new RingBuffer(mMP3BufferSize);
 
-        // Allocate the PCM buffer; PCM_BUFFER_SIZE is in bytes, so divide by 2 to get shorts.
-        mPcmBuffer = new short[PCM_BUFFER_SIZE / 2];
+        // Start out with the controller's initial guess at how much to buffer.
+        mController = new BufferController(bitrate, mMP3BufferSize);
+        mPlaybackLatch = new CountDownLatch(1);
+        mRefillLength = mController.getTargetLength();
+        mMP3Buffer.setRefillLength(mRefillLength);
+
+        // Allocate the PCM buffer, and enough room for the sink to read a batch of stereo samples
+        // at any sample rate.
+        mPcmBuffer = new RingBuffer(PCM_BUFFER_SIZE);
+        mSinkSamples = new short[MAX_SAMPLE_RATE * 2 * PCM_BATCH_MILLIS / 1000];
 
         // Initialize other fields.
         mCancelled = false;
-        mAudioTrack = null;
+        mSink = sink;
+        mSinkLock = new Object();
         mHandler = new Handler();
         mSocket = -1;
+        mSocketLock = new Object();
+        mReconnectSignal = new ConditionVariable();
         mContext = context;
     }
 
@@ -101,11 +158,28 @@ class MP3Streamer
         mErrorListener = null;
         setAbortFlag(true);
 
-        // Shut down the socket now, in case the buffering thread is blocking on a read.
-        if(mSocket != -1) {
-            closeSocket(mSocket);
-            mSocket = -1;
-        }
+        // Wake up any threads waiting on the buffers.
+        mMP3Buffer.abort();
+        mPcmBuffer.abort();
+        mPlaybackLatch.countDown();
+
+        // Shut down the socket now, in case the buffering thread is blocking on a read, and wake
+        // it up if it's waiting to reconnect.
+        interruptStreamSocket();
+        mReconnectSignal.open();
+    }
+
+
+    /** Drop the current connection and reconnect right away.
+     *
+     * Call this when the device switches networks, since the old connection is probably dead.
+     * Playback continues from the buffer while reconnecting.
+     */
+    public void reconnect()
+    {
+        mReconnectRequested = true;
+        interruptStreamSocket();
+        mReconnectSignal.open();
     }
 
 
@@ -133,6 +207,10 @@ class MP3Streamer
         // Start a thread to decode the MP3.
         mStreamingThread = new Thread(streamingLogic, "StreamingThread");
         mStreamingThread.start();
+
+        // Start a thread to play the decoded audio.
+        mSinkThread = new Thread(sinkLogic, "SinkThread");
+        mSinkThread.start();
     }
 
 
@@ -144,62 +222,67 @@ class MP3Streamer
         public void run() {
             final String TAG = "MP3-Buffer";
             boolean error = false;
+            boolean connectedOnce = false;
+            int failures = 0;
 
             // Notify the start of buffering.
             notifyBuffering(true);
 
-            // Connect to the stream.
-            // Synchronize this to mMP3Buffer to keep the streaming thread asleep.
-            synchronized(mMP3Buffer) {
-                // Open the socket.
-                mSocket = openSocket(mRemoteHost, mRemotePort);
-                if(mSocket == -1) {
-                    error = true;
-                }
+            long splicer = createSplicer();
+            if(splicer == 0) {
+                error = true;
             }
 
             try {
-                // Still acquiring mMP3Buffer to keep the streaming thread asleep.
-                synchronized(mMP3Buffer) {
-                    // Send the HTTP request.
-                    if(!error && !mCancelled) {
-                        Log.i(TAG, "Sending HTTP request");
-                        error = sendHttpRequest(mRemotePath, mSocket);
-                    }
-                }
-
-                // Read into the buffer until there's an error or it's quitting time.
-                boolean bufferIsFull = false;
                 while(!error && !mCancelled) {
-                    if(bufferIsFull) {
-                        // The buffer is full; let the streaming thread run.
-                        Log.d(TAG, "Buffer is full; waiting");
-                        try {
-                            Thread.sleep(200, 0);
-                        } catch(InterruptedException e) {
-                            // Doesn't matter.
+                    // Connect to the stream.  The splicer drops the old connection's unfinished
+                    // frame and skips to the first whole frame of the new one, so the decoder
+                    // just sees more frames.
+                    resetSplicer(splicer);
+                    mReconnectRequested = false;
+                    mReconnectSignal.close();
+                    error = connectToStream();
+                    if(!error) {
+                        connectedOnce = true;
+                        mConnectionBytes = 0;
+                        error = readUntilDisconnected(splicer);
+                        if(mConnectionBytes >= MIN_CONNECTION_BYTES) {
+                            failures = 0;
                         }
-                        bufferIsFull = false;
-                    } else {
-                        error = waitForReadable(mSocket);
                     }
+                    closeStreamSocket();
 
-                    if(!error) {
-                        // Wait until there's room in the buffer.
-                        synchronized(mMP3Buffer) {
-                            if(mMP3Buffer.isFull()) {
-                                bufferIsFull = true;
-                            } else {
-                                error = readIntoMP3Buffer(mSocket, mMP3Buffer);
-                            }
-                        }
+                    // Give up if we never got the stream at all, or quit if it's quitting time.
+                    if(!connectedOnce || mCancelled) {
+                        break;
+                    }
+
+                    // Reconnect right away after a network change.
+                    if(mReconnectRequested) {
+                        Log.i(TAG, "Reconnecting on the new network");
+                        error = false;
+                        continue;
+                    }
+
+                    // Otherwise back off before reconnecting, in case the network is down.
+                    failures++;
+                    if(failures > MAX_RECONNECT_ATTEMPTS) {
+                        Log.e(TAG, "Giving up on reconnecting");
+                        break;
                     }
+                    int delay = Math.min(MIN_RECONNECT_DELAY << (failures - 1),
+                            MAX_RECONNECT_DELAY);
+                    Log.w(TAG, String.format("Lost the stream; reconnect %d in %d ms", failures,
+                                delay));
+                    mReconnectSignal.block(delay);
+                    mReconnectSignal.close();
+                    error = false;
                 }
             } finally {
                 // Clean up.
-                if(mSocket != -1) {
-                    closeSocket(mSocket);
-                    mSocket = -1;
+                closeStreamSocket();
+                if(splicer != 0) {
+                    destroySplicer(splicer);
                 }
                 if(error && !mCancelled) {
                     notifyError();
@@ -210,6 +293,127 @@ class MP3Streamer
     };
 
 
+    /** Update the buffer controller after a read, and start playback once it says to. */
+    private void onMP3DataArrived(int length)
+    {
+        long now = SystemClock.elapsedRealtime();
+        mController.onBytesArrived(length, now);
+
+        // Check if the decoder ran dry since the last read.
+        int underruns = mMP3Buffer.getUnderruns();
+        if(underruns != mUnderruns) {
+            Log.w(TAG, String.format("MP3 buffer underrun #%d", underruns));
+            mUnderruns = underruns;
+            mController.onUnderrun(now);
+            mRebuffering = true;
+            notifyBuffering(true);
+        }
+
+        // Keep the decoder's refill level in line with the target.  It changes a little with
+        // every read, so only pass on the significant changes.
+        int target = mController.getTargetLength();
+        if(Math.abs(target - mRefillLength) > mRefillLength / 16) {
+            mRefillLength = target;
+            mMP3Buffer.setRefillLength(target);
+        }
+
+        // Start playing, or announce the end of rebuffering.
+        int buffered = mMP3Buffer.length();
+        if(mPlaybackLatch.getCount() > 0) {
+            if(mController.isReadyToPlay(buffered)) {
+                Log.i(TAG, String.format("Starting playback with %d bytes buffered (%d ms target)",
+                            buffered, mController.getTargetMillis()));
+                mPlaybackLatch.countDown();
+            }
+        } else if(mRebuffering && buffered >= mRefillLength) {
+            mRebuffering = false;
+            notifyBuffering(false);
+        }
+    }
+
+
+    /** Open the socket and request the stream.  Return true on error. */
+    private boolean connectToStream()
+    {
+        int socket = openSocket(mRemoteHost, mRemotePort);
+        synchronized(mSocketLock) {
+            mSocket = socket;
+        }
+        if(mSocket == -1) {
+            return true;
+        }
+
+        // Send the HTTP request.
+        if(mCancelled) {
+            return true;
+        }
+        Log.i(TAG, "Sending HTTP request");
+        return sendHttpRequest(mRemotePath, mSocket);
+    }
+
+
+    /** Close the stream's socket, if it's open.  Only the buffering thread calls this. */
+    private void closeStreamSocket()
+    {
+        synchronized(mSocketLock) {
+            if(mSocket != -1) {
+                closeSocket(mSocket);
+                mSocket = -1;
+            }
+        }
+    }
+
+
+    /** Shut down the stream's socket from another thread, so a blocked read returns. */
+    private void interruptStreamSocket()
+    {
+        synchronized(mSocketLock) {
+            if(mSocket != -1) {
+                interruptSocket(mSocket);
+            }
+        }
+    }
+
+
+    /** Read into the MP3 buffer until the connection fails or it's quitting time.
+     *
+     * Return true on error.
+     */
+    private boolean readUntilDisconnected(long splicer)
+    {
+        boolean error = false;
+
+        while(!error && !mCancelled && !mReconnectRequested) {
+            if(mMP3Buffer.isFull()) {
+                // The buffer is full; sleep until the decoder has drained a useful amount of it,
+                // instead of waking up for every frame.
+                Log.d(TAG, "Buffer is full; waiting");
+                if(mMP3Buffer.waitForSpace(mMP3BufferSize / REFILL_DIVISOR)) {
+                    break;
+                }
+
+                // Time spent waiting here says nothing about the network.
+                mController.onReadingPaused(SystemClock.elapsedRealtime());
+            }
+
+            // The decoder only ever frees space, so the buffer can't fill up again before the
+            // read.
+            error = waitForReadable(mSocket);
+            if(!error) {
+                int length = readIntoMP3Buffer(mSocket, splicer, mMP3Buffer);
+                if(length < 0) {
+                    error = true;
+                } else {
+                    mConnectionBytes += length;
+                    onMP3DataArrived(length);
+                }
+            }
+        }
+
+        return error || mReconnectRequested;
+    }
+
+
     ///
     /// Streaming logic
     ///
@@ -219,19 +423,12 @@ class MP3Streamer
             final String TAG = "MP3-Stream";
             boolean error = false;
 
-            // Wait for the MP3 buffer to fill up to 75%.
-            int targetLength = mMP3BufferSize * 75/100;
-            while(!mCancelled) {
-                try {
-                    Thread.sleep(200, 0);
-                } catch(InterruptedException e) {
-                    // Doesn't matter...
-                }
-                synchronized(mMP3Buffer) {
-                    if(mMP3Buffer.length() >= targetLength) {
-                        break;
-                    }
-                }
+            // Wait until the buffering thread decides there's enough data to play without
+            // stuttering.  cancel() releases us if we're stopped first.
+            try {
+                mPlaybackLatch.await();
+            } catch(InterruptedException e) {
+                // Nothing interrupts this thread.
             }
 
             // Notify that buffering is complete.
@@ -248,18 +445,13 @@ class MP3Streamer
             Log.i(TAG, "Starting MP3 decoding");
             try {
                 if(!mCancelled) {
-                    error = runStreamingLoop(mMP3Buffer);
+                    error = runStreamingLoop(mMP3Buffer, mPcmBuffer);
                 }
             } finally {
                 // Clean up.
                 if(error && !mCancelled) {
                     notifyError();
                 }
-                if(mAudioTrack != null) {
-                    mAudioTrack.stop();
-                    mAudioTrack.release();
-                    mAudioTrack = null;
-                }
                 mWakeLock.release();
                 Log.i(TAG, "Streaming thread is terminating");
             }
@@ -267,6 +459,45 @@ class MP3Streamer
     };
 
 
+    ///
+    /// Sink logic
+    ///
+
+    private Runnable sinkLogic = new Runnable() {
+        public void run() {
+            final String TAG = "MP3-Sink";
+            boolean error = false;
+
+            try {
+                // Play decoded audio until there's an error or it's quitting time.
+                while(!error && !mCancelled) {
+                    // Sleep until the decoder has produced at least one sample.
+                    if(mPcmBuffer.waitForLength(2)) {
+                        break;
+                    }
+
+                    // Hold the sink while writing, so the format can't change underneath us.
+                    synchronized(mSinkLock) {
+                        int length = mPcmBuffer.read(mSinkSamples, 0, mSinkBatchLength);
+                        if(length > 0) {
+                            error = (mSink.write(mSinkSamples, 0, length) < 0);
+                        }
+                    }
+                }
+            } finally {
+                // Clean up.
+                synchronized(mSinkLock) {
+                    mSink.close();
+                }
+                if(error && !mCancelled) {
+                    notifyError();
+                }
+                Log.i(TAG, "Sink thread is terminating");
+            }
+        }
+    };
+
+
     ///
     /// Utility methods
     ///
@@ -312,12 +543,14 @@ class MP3Streamer
             bitrate = 320;
         }
 
-        // Determined experimentally
-        return bitrate * 1024 * 1/2;
+        // Room for MAX_BUFFER_SECONDS of audio
+        return bitrate * 1000 / 8 * MAX_BUFFER_SECONDS;
     }
 
 
-    /** The audio format has changed.  Update the AudioTrack.
+    /** The audio format has changed.  Reopen the sink.
+     *
+     * This is called by the decoder once the sink has read everything in the old format.
      *
      * Return false if an error occurs.
      */
@@ -325,52 +558,19 @@ class MP3Streamer
     {
         Log.i(TAG, "Audio format changed.");
 
-        // Close the old track first.
-        if(mAudioTrack != null) {
-            Log.i(TAG, "Stopping old track.");
-            mAudioTrack.flush();
-            mAudioTrack.stop();
-            mAudioTrack.release();
-        }
+        synchronized(mSinkLock) {
+            // Don't reopen a sink the sink thread has already closed.
+            if(mCancelled) {
+                return false;
+            }
 
-        // Select the proper format constants.
-        int streamType = AudioManager.STREAM_MUSIC;
-        int channelConfig;
-        if(channels == 2) {
-            channelConfig = AudioFormat.CHANNEL_CONFIGURATION_STEREO;
-        } else {
-            channelConfig = AudioFormat.CHANNEL_CONFIGURATION_MONO;
+            mSinkBatchLength = Math.min(sampleRate * channels * PCM_BATCH_MILLIS / 1000,
+                    mSinkSamples.length);
+            return mSink.open(sampleRate, channels);
         }
-        int audioFormat = AudioFormat.ENCODING_PCM_16BIT;
-        int mode = AudioTrack.MODE_STREAM;
-
-        // Create the new AudioTrack.
-        Log.i(TAG, String.format("Creating new audio track: rate=%d, channels=%d", sampleRate,
-                    channels));
-        try {
-            mAudioTrack = new AudioTrack(streamType, sampleRate, channelConfig, audioFormat,
-                    PCM_BUFFER_SIZE, mode);
-        } catch(IllegalArgumentException e) {
-            Log.e(TAG, "Failed to create new audio track.", e);
-            return false;
-        }
-        return true;
     }
 
 
-    /** Start our AudioTrack playing.  Return 0 on success, 1 on error. */
-    private int startPlaying()
-    {
-        if(mAudioTrack != null) {
-            mAudioTrack.play();
-            return 0;
-        } else {
-            Log.e(TAG, "Tried to play a null AudioTrack");
-            return 1;
-        }
-    }
-
-   
     ///
     /// Native interface
     ///
@@ -387,11 +587,26 @@ class MP3Streamer
     /** Send the HTTP request to GET this path. */
     private native boolean sendHttpRequest(String path, int socket);
 
-    /** Read any amount of data into this MP3 ringbuffer. */
-    private native boolean readIntoMP3Buffer(int socket, RingBuffer mp3Buffer);
+    /** Interrupt any blocking reads on this socket fd, without closing it. */
+    private native void interruptSocket(int socket);
+
+    /** Create a native MP3 frame splicer, and return a pointer to it. */
+    private native long createSplicer();
+
+    /** Free this splicer. */
+    private native void destroySplicer(long splicer);
+
+    /** Drop the splicer's unfinished frame, and look for a frame header in the next data. */
+    private native void resetSplicer(long splicer);
+
+    /** Read any amount of data through this splicer into this MP3 ringbuffer.
+     *
+     * Return the number of bytes read, or -1 on error.
+     */
+    private native int readIntoMP3Buffer(int socket, long splicer, RingBuffer mp3Buffer);
 
-    /** Run the streaming loop. */
-    private native boolean runStreamingLoop(RingBuffer mp3Buffer);
+    /** Run the streaming loop, decoding from the MP3 buffer into the PCM buffer. */
+    private native boolean runStreamingLoop(RingBuffer mp3Buffer, RingBuffer pcmBuffer);
 
     /** Set the global abort flag. */
     private native void setAbortFlag(boolean abort);
@@ -63,6 +63,7 @@ public class NectroidActivity extends Activity
     private boolean mPaused;
     private Handler mHandler;
     private int mTimeLeft;
+    private Playlist.Entry mShownEntry;
 
     // When a new stream is selected, store the choice here until we verify it works.
     private class StreamChoice { URL stream; int id; }
@@ -260,8 +261,9 @@ public class NectroidActivity extends Activity
     }
 
     @Override
-    public void onTaskFinished(Object manager, Object result)
+    public void onTaskFinished(Object manager, Object result, boolean isStale)
     {
+        // The throbber keeps going for stale results, since the task is still running.
         // Determine what task was finished, and call the appropriate event handler.
         Class managerClass = manager.getClass();
         if(managerClass == PlaylistManager.class) {
@@ -276,6 +278,16 @@ public class NectroidActivity extends Activity
         }
     }
 
+    @Override
+    public void onTaskRevalidated(Object manager)
+    {
+        mHandler.post(new Runnable() {
+            public void run() {
+                setProgressBarIndeterminateVisibility(getNectroidApp().isLoadingAnything());
+            }
+        });
+    }
+
     @Override
     public void onTaskCancelled(Object manager)
     {
@@ -470,14 +482,21 @@ public class NectroidActivity extends Activity
     {
         mTimeLeft = ent.getTimeLeft();
         updateTimeLeft();
-        updateCurrentlyPlaying(ent.getEntry());
-        updateRequestedBy(ent.getEntry());
+
+        // Unchanged entries are reused across playlist refreshes, so only rebuild the links when
+        // the song really changed.
+        if(ent.getEntry() != mShownEntry) {
+            mShownEntry = ent.getEntry();
+            updateCurrentlyPlaying(mShownEntry);
+            updateRequestedBy(mShownEntry);
+        }
     }
 
     /** Clear the playlist views. */
     private void clearPlaylistUI()
     {
         mTimeLeft = -1;
+        mShownEntry = null;
         mTimeLeftView.setText("");
         mCurrentlyPlayingView.setText("");
         mRequestedByView.setText("");
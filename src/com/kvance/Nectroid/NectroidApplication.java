@@ -63,6 +63,10 @@ public class NectroidApplication extends Application
         mStreamsManager = new StreamsManager();
         mPlayerManager = new PlayerManager();
 
+        // Let the auto-refreshing managers share wakeups, and hold them while offline.
+        ConnectivityMonitor.start(appContext);
+        RefreshPlanner.start(appContext);
+
         mOneLinerManager = new OneLinerManager(appContext);
         mOneLinerManager.listenForPreferences();
 
@@ -103,6 +107,8 @@ public class NectroidApplication extends Application
             mScrobbler.stop();
         }
         mSiteManager.stop();
+        RefreshPlanner.stop(getApplicationContext());
+        ConnectivityMonitor.stop(getApplicationContext());
         SharedPreferences p = getSharedPreferences(Prefs.PREFS_NAME, Context.MODE_PRIVATE);
         p.registerOnSharedPreferenceChangeListener(this);
     }
@@ -205,14 +211,17 @@ public class NectroidApplication extends Application
             stopService(intent);
         }
 
-        // Notify the cache (this will clear all cached documents).
-        Cache.setSite(newSite, appContext);
-
-        // Reset all document managers.
+        // Reset all document managers, cancelling their updates from the old site.  Any that are
+        // still running keep using the old site's files until they return.
         mPlaylistManager.reset();
         mOneLinerManager.reset();
         mStreamsManager.reset();
-        Prefs.clearOneLinerUpdateTime(appContext);
+
+        // Switch to the new site's cached documents.
+        Cache.setSite(newSite, appContext);
+
+        // Drop the pooled connections to the old site.
+        SiteHttpClient.shutdown();
 
         // Update the prefs with the selected stream for this site.
         Stream stream = getSelectedStreamForSite(newSite);
@@ -0,0 +1,54 @@
+// This file is part of Nectroid.
+//
+// Nectroid is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Nectroid is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with Nectroid.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.kvance.Nectroid;
+
+
+/** AudioSink that throws its audio away, for running the pipeline without audio hardware. */
+class NullSink implements AudioSink
+{
+    private long mSamplesWritten;
+
+
+    ///
+    /// AudioSink
+    ///
+
+    public boolean open(int sampleRate, int channels)
+    {
+        return true;
+    }
+
+    public int write(short[] samples, int offset, int length)
+    {
+        mSamplesWritten += length;
+        return length;
+    }
+
+    public void close()
+    {
+    }
+
+
+    ///
+    /// Accessors
+    ///
+
+    /** Return the total number of samples written to this sink. */
+    public long getSamplesWritten()
+    {
+        return mSamplesWritten;
+    }
+}
@@ -15,21 +15,13 @@
 
 package com.kvance.Nectroid;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Date;
 
-import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
-
-import android.sax.Element;
-import android.sax.ElementListener;
-import android.sax.EndTextElementListener;
-import android.sax.RootElement;
-import android.sax.TextElementListener;
-import android.util.Log;
-import android.util.Xml;
+import org.xmlpull.v1.XmlPullParserException;
 
 
 /** A stream descriptor */
@@ -60,9 +52,41 @@ class OneLiner
     }
 
 
-    public static OneLiner.List listFromXml(String xmlData) throws SAXException
+    public static OneLiner.List listFromXml(InputStream xmlStream)
+        throws IOException, SAXException
+    {
+        return (new Parser()).parse(xmlStream);
+    }
+
+
+    /** Read a list written by writeSnapshot().  Its timestamp isn't saved. */
+    public static OneLiner.List listFromSnapshot(Snapshot.Reader reader) throws IOException
     {
-        return (new Parser()).parse(xmlData);
+        int count = reader.readCount();
+        OneLiner.List result = new OneLiner.List();
+        result.ensureCapacity(count);
+        for(int i = 0; i < count; i++) {
+            OneLiner oneLiner = new OneLiner();
+            oneLiner.mTime = new Date(reader.readLong());
+            oneLiner.mAuthor = reader.readString();
+            oneLiner.mFlag = reader.readString();
+            oneLiner.mMessage = reader.readString();
+            result.add(oneLiner);
+        }
+        return result;
+    }
+
+
+    public static void writeSnapshot(OneLiner.List oneLiners, Snapshot.Writer writer)
+        throws IOException
+    {
+        writer.writeInt(oneLiners.size());
+        for(OneLiner oneLiner : oneLiners) {
+            writer.writeLong(oneLiner.mTime.getTime());
+            writer.writeString(oneLiner.mAuthor);
+            writer.writeString(oneLiner.mFlag);
+            writer.writeString(oneLiner.mMessage);
+        }
     }
 
 
@@ -83,84 +107,64 @@ class OneLiner
 
     private static class Parser
     {
-        private OneLiner mNewOneLiner;
         private OneLiner.List mAllOneLiners;
-        private SimpleDateFormat dateFormat;
 
         public Parser()
         {
             mAllOneLiners = new OneLiner.List();
-            dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
         }
 
 
-        private class EntryListener implements ElementListener
+        public OneLiner.List parse(InputStream xmlStream) throws IOException, SAXException
         {
-            @Override
-            public void start(Attributes attributes)
-            {
-                mNewOneLiner = new OneLiner();
-                String timeString = attributes.getValue("time");
-                if(timeString != null) {
-                    try {
-                        mNewOneLiner.mTime = dateFormat.parse(timeString);
-                    } catch(ParseException e) {
-                        Log.w(TAG, String.format("Unable to parse time \"%s\"", timeString));
+            PullParser parser = PullParser.obtain();
+            try {
+                parser.start(xmlStream, "oneliner");
+                int depth = parser.getDepth();
+                while(parser.nextChild(depth)) {
+                    if(parser.getName().equals("entry")) {
+                        mAllOneLiners.add(parseEntry(parser));
+                    } else {
+                        parser.skip();
                     }
                 }
+            } catch(XmlPullParserException e) {
+                throw PullParser.wrap(e);
+            } finally {
+                parser.finish();
             }
 
-            @Override
-            public void end()
-            {
-                mAllOneLiners.add(mNewOneLiner);
-            }
+            return mAllOneLiners;
         }
 
-        private class AuthorListener implements TextElementListener
+
+        private OneLiner parseEntry(PullParser parser) throws IOException, XmlPullParserException
         {
-            @Override
-            public void start(Attributes attributes)
-            {
-                String flagString = attributes.getValue("flag");
-                if(flagString != null) {
-                    mNewOneLiner.mFlag = flagString;
+            OneLiner newOneLiner = new OneLiner();
+            String timeString = parser.getAttribute("time");
+            if(timeString != null) {
+                Date time = parser.parseDate(timeString, "time", TAG);
+                if(time != null) {
+                    newOneLiner.mTime = time;
                 }
             }
 
-            @Override
-            public void end(String body)
-            {
-                mNewOneLiner.mAuthor = body;
-            }
-        }
-
-        private class MessageListener implements EndTextElementListener
-        {
-            @Override
-            public void end(String body)
-            {
-                mNewOneLiner.mMessage = body;
+            int depth = parser.getDepth();
+            while(parser.nextChild(depth)) {
+                String name = parser.getName();
+                if(name.equals("author")) {
+                    String flagString = parser.getAttribute("flag");
+                    if(flagString != null) {
+                        newOneLiner.mFlag = flagString;
+                    }
+                    newOneLiner.mAuthor = parser.readText();
+                } else if(name.equals("message")) {
+                    newOneLiner.mMessage = parser.readText();
+                } else {
+                    parser.skip();
+                }
             }
-        }
-
-
-        public OneLiner.List parse(String xmlData) throws SAXException
-        {
-            RootElement root = new RootElement("oneliner");
-
-            Element entry = root.getChild("entry");
-            entry.setElementListener(new EntryListener());
-
-            Element author = entry.getChild("author");
-            author.setTextElementListener(new AuthorListener());
-
-            Element message = entry.getChild("message");
-            message.setEndTextElementListener(new MessageListener());
-
-            Xml.parse(xmlData, root.getContentHandler());
-
-            return mAllOneLiners;
+            return newOneLiner;
         }
     }
 }
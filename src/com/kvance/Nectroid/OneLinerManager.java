@@ -15,6 +15,8 @@
 
 package com.kvance.Nectroid;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Date;
 
 import org.xml.sax.SAXException;
@@ -31,6 +33,9 @@ public class OneLinerManager extends AutoRefreshDocManager<OneLiner.List>
     private Date mTimestamp;
     private long mLastUpdateTime;
 
+    // Fraction of the refresh period a refresh may come early, to share a wakeup
+    private static final int ONELINER_TOLERANCE_DIVISOR = 4;
+
     private static final String TAG = "NectroidOneLinersManager";
 
 
@@ -49,42 +54,106 @@ public class OneLinerManager extends AutoRefreshDocManager<OneLiner.List>
     }
 
 
+    /** The oneliners are mostly refreshed in the background, so they can wait. */
+    @Override
+    public FetchScheduler.Priority getPriority()
+    {
+        return FetchScheduler.Priority.BACKGROUND;
+    }
+
+
     /** A cached document was retrieved. */
     @Override
     public void onCachedCopyRetrieved(Context context)
     {
-        // Retrieve the timestamp from the prefs.
-        mTimestamp = Prefs.getOneLinerUpdateTime(context);
+        // Retrieve the timestamp saved with it.
+        mTimestamp = Cache.readTimestamp(getDocId(), context);
     }
 
 
-    /** A new document was downloaded. */
+    /** A new document is being downloaded. */
     @Override
     public void onNewCopyRetrieved(FetchUrl.Result fetchResult, Context context)
     {
-        // Save the timestamp to the prefs.
         mTimestamp = fetchResult.getTimestamp();
-        Prefs.setOneLinerUpdateTime(mTimestamp, context);
         mLastUpdateTime = System.currentTimeMillis();
     }
 
 
+    /** The new document was cached. */
+    @Override
+    public void onNewCopyCommitted(FetchUrl.Result fetchResult, Context context)
+    {
+        // Save the timestamp with the cached copy.
+        Cache.writeTimestamp(getDocId(), mTimestamp, context);
+    }
+
+
+    /** The cached document is still current. */
+    @Override
+    public void onCachedCopyRevalidated(FetchUrl.Result fetchResult, Context context)
+    {
+        // The oneliners are as fresh as if they'd just been downloaded.
+        onNewCopyRetrieved(fetchResult, context);
+        onNewCopyCommitted(fetchResult, context);
+        if(mOneLiners != null) {
+            mOneLiners.setTimestamp(mTimestamp);
+        }
+    }
+
+
+    /** Return the oneliners parsed from the cached document. */
+    @Override
+    public OneLiner.List getParsedDocument()
+    {
+        return mOneLiners;
+    }
+
+
     /** Parse an XML file into a OneLiner list. */
     @Override
-    public OneLiner.List parseDocument(String xmlData, Context context)
+    public OneLiner.List parseDocument(InputStream xmlStream, Context context) throws IOException
     {
+        OneLiner.List oneLiners;
         try {
-            mOneLiners = OneLiner.listFromXml(xmlData);
+            oneLiners = OneLiner.listFromXml(xmlStream);
         } catch(SAXException e) {
-            mOneLiners = null;
+            oneLiners = null;
         }
 
         // Update the timestamp.
-        if(mOneLiners != null) {
-            mOneLiners.setTimestamp(mTimestamp);
+        if(oneLiners != null) {
+            oneLiners.setTimestamp(mTimestamp);
         }
 
-        return mOneLiners;
+        return oneLiners;
+    }
+
+
+    /** Make the parsed oneliners current. */
+    @Override
+    public OneLiner.List installDocument(OneLiner.List result, Context context)
+    {
+        mOneLiners = result;
+        return result;
+    }
+
+
+    /** Load the oneliners from a snapshot of the cached document. */
+    @Override
+    public OneLiner.List readSnapshot(Snapshot.Reader reader, Context context) throws IOException
+    {
+        OneLiner.List oneLiners = OneLiner.listFromSnapshot(reader);
+        oneLiners.setTimestamp(mTimestamp);
+        return oneLiners;
+    }
+
+
+    @Override
+    public boolean writeSnapshot(OneLiner.List result, Snapshot.Writer writer) throws IOException
+    {
+        OneLiner.writeSnapshot(result, writer);
+        return true;
     }
 
 
@@ -152,9 +221,11 @@ public class OneLinerManager extends AutoRefreshDocManager<OneLiner.List>
     {
         int refreshPeriod = Prefs.getOneLinerRefreshPeriod(context);
         long delay;
+        long earliestDelay;
 
         if(mOneLiners == null) {
             delay = 0;
+            earliestDelay = 0;
 
         } else if(refreshPeriod > 0) {
             // The next refresh should happen refreshPeriod seconds after the last update.
@@ -168,20 +239,23 @@ public class OneLinerManager extends AutoRefreshDocManager<OneLiner.List>
                 delay = 0;
             }
 
+            // Refresh up to a quarter period early if something else is being refreshed.
+            earliestDelay = delay - (1000L * refreshPeriod / ONELINER_TOLERANCE_DIVISOR);
+
         } else {
             // Auto-refresh disabled.
-            mHandler.removeCallbacks(autoUpdateOneLiners);
+            RefreshPlanner.cancel(this);
             return;
         }
 
-        mHandler.removeCallbacks(autoUpdateOneLiners);
-        mHandler.postDelayed(autoUpdateOneLiners, delay);
+        // Nobody reads the oneliners with the screen off, so they can wait.
+        RefreshPlanner.schedule(this, earliestDelay, delay, true, autoUpdateOneLiners);
     }
 
     @Override
     protected void unscheduleNextRefresh(Context context)
     {
-        mHandler.removeCallbacks(autoUpdateOneLiners);
+        RefreshPlanner.cancel(this);
     }
 
     private Runnable autoUpdateOneLiners = new Runnable() {
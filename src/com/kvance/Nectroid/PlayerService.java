@@ -21,8 +21,10 @@ import java.net.URL;
 
 import android.app.Notification;
 import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.media.MediaPlayer;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
@@ -63,6 +65,9 @@ public class PlayerService extends ForegroundService
     /** MP3Streamer used for Android 1.5 */
     private MP3Streamer mMP3Streamer;
 
+    /** Type of the network the stream is using, or -1 if there's no connection */
+    private int mNetworkType;
+
 
     ///
     /// Service event handlers
@@ -140,6 +145,7 @@ public class PlayerService extends ForegroundService
 
         // Clean up the other player.
         if(mMP3Streamer != null) {
+            unregisterReceiver(mConnectivityReceiver);
             mMP3Streamer.cancel();
         }
 
@@ -179,6 +185,7 @@ public class PlayerService extends ForegroundService
     public void onPrepared(MediaPlayer mp)
     {
         // Start playing immediately.
+        Log.i(TAG, "MediaPlayer prepared; starting playback.");
         mPlayerManager.setPlayerState(State.PLAYING);
         mp.start();
     }
@@ -206,6 +213,40 @@ public class PlayerService extends ForegroundService
     }
 
 
+    ///
+    /// Connectivity event handlers
+    ///
+
+    private BroadcastReceiver mConnectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent)
+        {
+            NetworkInfo netInfo = getActiveNetworkInfo(context);
+            if(netInfo == null || !netInfo.isConnected()) {
+                // Keep playing from the buffer; we'll reconnect when a network comes back.
+                Log.i(TAG, "Lost network connection");
+                mNetworkType = -1;
+
+            } else if(netInfo.getType() != mNetworkType) {
+                // The stream's connection went away with the old network, so don't wait for it
+                // to time out.
+                Log.i(TAG, String.format("Switched to %s network; reconnecting",
+                            netInfo.getTypeName()));
+                mNetworkType = netInfo.getType();
+                mMP3Streamer.reconnect();
+
+                // Keep the new wi-fi connection active.
+                if(mNetworkType == ConnectivityManager.TYPE_WIFI && mWifiLock == null) {
+                    WifiManager wiman = (WifiManager)context.getSystemService(
+                            Context.WIFI_SERVICE);
+                    mWifiLock = wiman.createWifiLock(WifiManager.WIFI_MODE_FULL, TAG);
+                    mWifiLock.acquire();
+                }
+            }
+        }
+    };
+
+
     ///
     /// ForegroundService methods
     ///
@@ -262,6 +303,12 @@ public class PlayerService extends ForegroundService
                 mMP3Streamer.setErrorListener(this);
                 mMP3Streamer.setBufferingListener(this);
                 mMP3Streamer.start();
+
+                // Reconnect the stream when the device switches networks.
+                NetworkInfo netInfo = getActiveNetworkInfo(this);
+                mNetworkType = (netInfo != null) ? netInfo.getType() : -1;
+                registerReceiver(mConnectivityReceiver,
+                        new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
             }
 
         } else {
@@ -320,11 +367,16 @@ public class PlayerService extends ForegroundService
 
 
     private static boolean isWifiConnected(Context context)
+    {
+        NetworkInfo netInfo = getActiveNetworkInfo(context);
+        return (netInfo != null) && (netInfo.getType() == ConnectivityManager.TYPE_WIFI);
+    }
+
+
+    private static NetworkInfo getActiveNetworkInfo(Context context)
     {
         ConnectivityManager conman = (ConnectivityManager)context.getSystemService(
                 Context.CONNECTIVITY_SERVICE);
-        NetworkInfo netInfo = conman.getActiveNetworkInfo();
-
-        return (netInfo != null) && (netInfo.getType() == ConnectivityManager.TYPE_WIFI);
+        return conman.getActiveNetworkInfo();
     }
 }
@@ -15,45 +15,48 @@
 
 package com.kvance.Nectroid;
 
-import java.text.ParseException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 
-import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
+import org.xmlpull.v1.XmlPullParserException;
 
 import android.content.Context;
-import android.sax.Element;
-import android.sax.EndElementListener;
-import android.sax.EndTextElementListener;
-import android.sax.RootElement;
-import android.sax.StartElementListener;
-import android.sax.TextElementListener;
 import android.util.Log;
-import android.util.Xml;
 
 
-/** A playlist has a current song, a history, and an upcoming list. */
+/** A playlist has a current song, a history, and an upcoming list.
+ *
+ * Playlists are immutable, so one parsed in a background thread can be used from any thread.
+ * The time each song in the queue ends is worked out once, up front, so finding the song at a
+ * given time is a binary search.
+ */
 class Playlist
 {
     /** A single song in a playlist */
-    public class Entry
+    public static class Entry
     {
-        private int mId;
-        private int mLength; // in seconds
-        private String mTitle;
-        private List<IdString> mArtists;
-        private IdString mRequester;
-        private Date mRequestTime;
-
-        public Entry()
+        private final int mId;
+        private final int mLength; // in seconds
+        private final String mTitle;
+        private final List<IdString> mArtists;
+        private final IdString mRequester;
+        private final long mRequestTime; // in epoch millis
+
+        public Entry(int id, int length, String title, List<IdString> artists,
+                IdString requester, long requestTime)
         {
-            mTitle = new String("UNKNOWN");
-            mArtists = new ArrayList<IdString>();
-            mRequester = new IdString(0, "UNKNOWN");
-            mRequestTime = new Date(0);
+            mId = id;
+            mLength = length;
+            mTitle = title;
+            mArtists = Collections.unmodifiableList(artists);
+            mRequester = requester;
+            mRequestTime = requestTime;
         }
 
         public String songLink(Context ctx)
@@ -81,7 +84,7 @@ class Playlist
         public String getTitle() { return mTitle; }
         public List<IdString> getArtists() { return mArtists; }
         public IdString getRequester() { return mRequester; }
-        public Date getRequestTime() { return mRequestTime; }
+        public long getRequestTime() { return mRequestTime; }
 
         @Override
         public String toString()
@@ -92,7 +95,7 @@ class Playlist
                         "<Entry title=\"%s\" id=%d length=%d requester=(%d, \"%s\") " +
                         "requestTime=\"%s\" artists=[",
                         mTitle, mId, mLength, mRequester.mId, mRequester.mString,
-                        dateFormat.format(mRequestTime)));
+                        dateFormat.format(new Date(mRequestTime))));
             for(int i = 0; i < mArtists.size(); i++) {
                 IdString artist = mArtists.get(i);
                 sb.append(String.format("(%d, \"%s\")", artist.mId, artist.mString));
@@ -124,10 +127,10 @@ class Playlist
         }
     }
 
-    public class IdString
+    public static class IdString
     {
-        private int mId;
-        private String mString;
+        private final int mId;
+        private final String mString;
 
         public IdString(int id, String string)
         {
@@ -140,10 +143,10 @@ class Playlist
     }
 
     /** A playlist entry, and the time left on that entry */
-    public class EntryAndTimeLeft
+    public static class EntryAndTimeLeft
     {
-        private Entry entry;
-        private int timeLeft; // in seconds
+        private final Entry entry;
+        private final int timeLeft; // in seconds
 
         public EntryAndTimeLeft(Entry entry, int timeLeft)
         {
@@ -156,29 +159,72 @@ class Playlist
     };
 
 
-    private Date mTimeBase; // when this playlist was retrieved
-    private Entry mCurrentEntry; // the current entry, as of mTimeBase
-    private int mTimeLeft; // time left in the current song, in seconds
+    /** What's in a playlist, while it's being read. */
+    private static class Contents
+    {
+        public int mTimeLeft;
+        public Entry mCurrentEntry = newUnknownEntry();
+        public ArrayList<Entry> mQueue = new ArrayList<Entry>();
+        public ArrayList<Entry> mHistory = new ArrayList<Entry>();
+    }
+
+
+    private final long mTimeBase; // when this playlist was retrieved, in epoch millis
+    private final Entry mCurrentEntry; // the current entry, as of mTimeBase
+    private final int mTimeLeft; // time left in the current song, in seconds
+    private final List<Entry> mQueue;
+    private final List<Entry> mHistory;
 
-    List<Entry> mQueue;
-    List<Entry> mHistory;
+    // When each song ends, in seconds after mTimeBase: the current entry, then the queue.
+    private final int[] mEndTimes;
 
     private static final String TAG = "NectroidPlaylist";
 
 
     public Playlist(Date timeBase)
     {
-        mTimeBase = timeBase;
-        mCurrentEntry = new Entry();
-        mTimeLeft = 0;
-        mQueue = new ArrayList<Entry>();
-        mHistory = new ArrayList<Entry>();
+        this(timeBase, new Contents());
+    }
+
+    public Playlist(InputStream xmlStream, Date timeBase) throws IOException, SAXException
+    {
+        this(xmlStream, timeBase, new InternPool());
+    }
+
+    /** Parse a playlist, reusing the names in pool where they haven't changed. */
+    public Playlist(InputStream xmlStream, Date timeBase, InternPool pool)
+        throws IOException, SAXException
+    {
+        this(timeBase, new Parser(pool).parse(xmlStream));
+    }
+
+    /** Read a playlist written by writeSnapshot(). */
+    public Playlist(Snapshot.Reader reader, Date timeBase) throws IOException
+    {
+        this(timeBase, readContents(reader));
     }
 
-    public Playlist(String xmlData, Date timeBase) throws SAXException
+    private Playlist(Date timeBase, Contents contents)
     {
-        this(timeBase);
-        new Parser().parse(xmlData);
+        this((timeBase == null) ? 0L : timeBase.getTime(), contents);
+    }
+
+    private Playlist(long timeBase, Contents contents)
+    {
+        mTimeBase = timeBase;
+        mCurrentEntry = contents.mCurrentEntry;
+        mTimeLeft = contents.mTimeLeft;
+        mQueue = Collections.unmodifiableList(contents.mQueue);
+        mHistory = Collections.unmodifiableList(contents.mHistory);
+
+        // Songs of unknown length are skipped over.
+        mEndTimes = new int[1 + mQueue.size()];
+        int endTime = Math.max(mTimeLeft, 0);
+        mEndTimes[0] = endTime;
+        for(int i = 0; i < mQueue.size(); i++) {
+            endTime += Math.max(mQueue.get(i).mLength, 0);
+            mEndTimes[i + 1] = endTime;
+        }
     }
 
 
@@ -189,13 +235,46 @@ class Playlist
     /** Return the total length of the queue, in seconds, including the currently playing song. */
     public int lengthInSeconds()
     {
-        int result = mTimeLeft;
-        for(Entry entry : mQueue) {
-            if(entry.mLength > 0) {
-                result += entry.mLength;
+        return mEndTimes[mEndTimes.length - 1];
+    }
+
+
+    /** Return the position of the song playing at this time, or -1 if the queue has run out.
+     *
+     * Position 0 is the current entry, and position n is queue entry n-1.
+     *
+     * @param time the time in seconds relative to the start of this playlist
+     */
+    public int positionAtTime(int time)
+    {
+        // Find the first song that ends after this time.
+        int low = 0;
+        int high = mEndTimes.length;
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(mEndTimes[mid] <= time) {
+                low = mid + 1;
+            } else {
+                high = mid;
             }
         }
-        return result;
+        return (low < mEndTimes.length) ? low : -1;
+    }
+
+
+    /** Return the entry at a position returned by positionAtTime(). */
+    public Entry getEntryAt(int position)
+    {
+        return (position == 0) ? mCurrentEntry : mQueue.get(position - 1);
+    }
+
+
+    /** Return when the song at a position ends, in seconds relative to the start of this
+     * playlist.
+     */
+    public int getEndTimeAt(int position)
+    {
+        return mEndTimes[position];
     }
 
 
@@ -204,32 +283,46 @@ class Playlist
      */
     public EntryAndTimeLeft atTime(int time)
     {
-        EntryAndTimeLeft result = null;
-
-        if(time < mTimeLeft) {
-            // Still on the current song.
-            result = new EntryAndTimeLeft(mCurrentEntry, mTimeLeft - time);
-        } else {
-            // Past the current song, walk the queue til we find it.
-            time -= mTimeLeft;
-            for(Entry entry : mQueue) {
-                if(time < entry.mLength) {
-                    result = new EntryAndTimeLeft(entry, entry.mLength - time);
-                    break;
-                }
-                time -= entry.mLength;
-            }
+        int position = positionAtTime(time);
+        if(position == -1) {
+            return null;
         }
-
-        return result;
+        return new EntryAndTimeLeft(getEntryAt(position), mEndTimes[position] - time);
     }
-    
+
     /** Return the entry for the song at the current system time. */
     public EntryAndTimeLeft atNow()
     {
-        long timeInMillis = System.currentTimeMillis() - mTimeBase.getTime();
-        int timeInSeconds = (int)(timeInMillis / 1000L);
-        return atTime(timeInSeconds);
+        return atTime(timeNow());
+    }
+
+    /** Return the current system time, in seconds relative to the start of this playlist. */
+    public int timeNow()
+    {
+        long timeInMillis = System.currentTimeMillis() - mTimeBase;
+        return (int)(timeInMillis / 1000L);
+    }
+
+
+    /** Return a copy of this playlist with different Entry objects for the same songs. */
+    public Playlist withEntries(Entry currentEntry, List<Entry> queue, List<Entry> history)
+    {
+        Contents contents = new Contents();
+        contents.mTimeLeft = mTimeLeft;
+        contents.mCurrentEntry = currentEntry;
+        contents.mQueue.addAll(queue);
+        contents.mHistory.addAll(history);
+        return new Playlist(mTimeBase, contents);
+    }
+
+
+    /** Save this playlist to a snapshot.  The time base isn't saved. */
+    public void writeSnapshot(Snapshot.Writer writer) throws IOException
+    {
+        writer.writeInt(mTimeLeft);
+        writeEntry(mCurrentEntry, writer);
+        writeEntries(mQueue, writer);
+        writeEntries(mHistory, writer);
     }
 
 
@@ -237,7 +330,8 @@ class Playlist
     /// Getters
     ///
 
-    public Date getTimeBase() { return mTimeBase; }
+    /** Return when this playlist was retrieved, in epoch millis, or 0 if that's unknown. */
+    public long getTimeBase() { return mTimeBase; }
     public Entry getCurrentEntry() { return mCurrentEntry; }
     public int getTimeLeft() { return mTimeLeft; }
     public List<Entry> getQueue() { return mQueue; }
@@ -245,19 +339,104 @@ class Playlist
 
 
     ///
-    /// XML parser
+    /// Utility methods
     ///
 
-    private class Parser
+    private static Entry newUnknownEntry()
     {
-        private SimpleDateFormat dateFormat;
+        return new Entry(0, 0, "UNKNOWN", new ArrayList<IdString>(),
+                new IdString(0, "UNKNOWN"), 0L);
+    }
 
-        private Entry mNewEntry;
 
+    ///
+    /// Snapshot methods
+    ///
 
-        public Parser()
+    private static Contents readContents(Snapshot.Reader reader) throws IOException
+    {
+        Contents contents = new Contents();
+        contents.mTimeLeft = reader.readInt();
+        contents.mCurrentEntry = readEntry(reader);
+        readEntries(reader, contents.mQueue);
+        readEntries(reader, contents.mHistory);
+        return contents;
+    }
+
+    private static Entry readEntry(Snapshot.Reader reader) throws IOException
+    {
+        int id = reader.readInt();
+        int length = reader.readInt();
+        String title = reader.readString();
+        int numArtists = reader.readCount();
+        ArrayList<IdString> artists = new ArrayList<IdString>(numArtists);
+        for(int i = 0; i < numArtists; i++) {
+            artists.add(readIdString(reader));
+        }
+        IdString requester = readIdString(reader);
+        long requestTime = reader.readLong();
+        return new Entry(id, length, title, artists, requester, requestTime);
+    }
+
+    private static void readEntries(Snapshot.Reader reader, List<Entry> entries)
+        throws IOException
+    {
+        int numEntries = reader.readCount();
+        for(int i = 0; i < numEntries; i++) {
+            entries.add(readEntry(reader));
+        }
+    }
+
+    private static IdString readIdString(Snapshot.Reader reader) throws IOException
+    {
+        int id = reader.readInt();
+        return new IdString(id, reader.readString());
+    }
+
+    private static void writeEntry(Entry entry, Snapshot.Writer writer) throws IOException
+    {
+        writer.writeInt(entry.mId);
+        writer.writeInt(entry.mLength);
+        writer.writeString(entry.mTitle);
+        writer.writeInt(entry.mArtists.size());
+        for(IdString artist : entry.mArtists) {
+            writeIdString(artist, writer);
+        }
+        writeIdString(entry.mRequester, writer);
+        writer.writeLong(entry.mRequestTime);
+    }
+
+    private static void writeEntries(List<Entry> entries, Snapshot.Writer writer)
+        throws IOException
+    {
+        writer.writeInt(entries.size());
+        for(Entry entry : entries) {
+            writeEntry(entry, writer);
+        }
+    }
+
+    private static void writeIdString(IdString idString, Snapshot.Writer writer)
+        throws IOException
+    {
+        writer.writeInt(idString.mId);
+        writer.writeString(idString.mString);
+    }
+
+
+    ///
+    /// XML parser
+    ///
+
+    private static class Parser
+    {
+        private PullParser mParser;
+        private Contents mContents;
+        private InternPool mPool;
+
+
+        public Parser(InternPool pool)
         {
-            dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+            mPool = pool;
         }
 
 
@@ -266,166 +445,123 @@ class Playlist
          * @param value the string to parse as an integer
          * @param description a description of the string to print in an error message
          */
-        private int parseIntOrMinusOne(String value, String description)
+        private int parseIntOrMinusOne(CharSequence value, String description)
         {
             // Same code in Stream XML parser
             return Stream.Parser.parseIntOrMinusOne(value, description, TAG);
         }
 
 
-        private class EntryStartListener implements StartElementListener
+        public Contents parse(InputStream xmlStream) throws IOException, SAXException
         {
-            public void start(Attributes attributes)
-            {
-                mNewEntry = new Entry();
-                String dateString = attributes.getValue("request_time");
-                if(dateString != null) {
-                    try {
-                        mNewEntry.mRequestTime = dateFormat.parse(dateString);
-                    } catch(ParseException e) {
-                        Log.w(TAG, String.format("Cannot parse request_time=\"%s\"", dateString));
+            mParser = PullParser.obtain();
+            mContents = new Contents();
+            try {
+                mParser.start(xmlStream, "playlist");
+                int depth = mParser.getDepth();
+                while(mParser.nextChild(depth)) {
+                    String name = mParser.getName();
+                    if(name.equals("now")) {
+                        parseNow();
+                    } else if(name.equals("queue")) {
+                        parseEntries(mContents.mQueue);
+                    } else if(name.equals("history")) {
+                        parseEntries(mContents.mHistory);
+                    } else {
+                        mParser.skip();
                     }
                 }
+            } catch(XmlPullParserException e) {
+                throw PullParser.wrap(e);
+            } finally {
+                mParser.finish();
+                mParser = null;
             }
+            return mContents;
         }
 
-        private class TimeLeftListener implements EndTextElementListener
-        {
-            public void end(String body)
-            {
-                mTimeLeft = parseIntOrMinusOne(body, "time left");
-            }
-        }
 
-        private class ArtistTextListener implements TextElementListener
+        private void parseNow() throws IOException, XmlPullParserException
         {
-            private int mId = -1;
-
-            public void start(Attributes attributes)
-            {
-                String idString = attributes.getValue("id");
-                mId = parseIntOrMinusOne(idString, "artist id");
-            }
-
-            public void end(String body)
-            {
-                IdString artist = new IdString(mId, body);
-                mNewEntry.mArtists.add(artist);
+            int depth = mParser.getDepth();
+            while(mParser.nextChild(depth)) {
+                String name = mParser.getName();
+                if(name.equals("timeleft")) {
+                    mContents.mTimeLeft = parseIntOrMinusOne(mParser.readChars(), "time left");
+                } else if(name.equals("entry")) {
+                    mContents.mCurrentEntry = parseEntry();
+                } else {
+                    mParser.skip();
+                }
             }
         }
 
-        private class RequesterTextListener implements TextElementListener
-        {
-            private int mId = -1;
-
-            public void start(Attributes attributes)
-            {
-                String idString = attributes.getValue("id");
-                mId = parseIntOrMinusOne(idString, "requester id");
-            }
 
-            public void end(String body)
-            {
-                mNewEntry.mRequester = new IdString(mId, body);
+        private void parseEntries(List<Entry> entries) throws IOException, XmlPullParserException
+        {
+            int depth = mParser.getDepth();
+            while(mParser.nextChild(depth)) {
+                if(mParser.getName().equals("entry")) {
+                    entries.add(parseEntry());
+                } else {
+                    mParser.skip();
+                }
             }
         }
 
-        private class SongTextListener implements TextElementListener
-        {
-            private int mId = -1;
-            private int mLength = -1;
-
-            public void start(Attributes attributes)
-            {
-                String idString = attributes.getValue("id");
-                mId = parseIntOrMinusOne(idString, "song id");
-                String lengthString = attributes.getValue("length");
-                mLength = parseSongLengthOrMinusOne(lengthString);
-            }
 
-            public void end(String body)
-            {
-                mNewEntry.mId = mId;
-                mNewEntry.mLength = mLength;
-                mNewEntry.mTitle = body;
+        private Entry parseEntry() throws IOException, XmlPullParserException
+        {
+            int id = 0;
+            int length = 0;
+            String title = "UNKNOWN";
+            ArrayList<IdString> artists = new ArrayList<IdString>();
+            IdString requester = new IdString(0, "UNKNOWN");
+            long requestTime = 0L;
+
+            String timeString = mParser.getAttribute("request_time");
+            if(timeString != null) {
+                long time = mParser.parseTime(timeString, "request_time", TAG);
+                if(time != FieldDecoder.INVALID) {
+                    requestTime = time;
+                }
             }
 
-            private int parseSongLengthOrMinusOne(String value)
-            {
-                int result = -1;
-                if(value != null) {
-                    String[] minAndSec = value.split(":", 2);
-                    if(minAndSec.length == 2) {
-                        int minutes = parseIntOrMinusOne(minAndSec[0], "song minutes");
-                        int seconds = parseIntOrMinusOne(minAndSec[1], "song secands");
-                        if(minutes > -1 && seconds > -1) {
-                            result = 60*minutes + seconds;
-                        } else {
-                            Log.w(TAG, String.format("Invalid song length \"%s\"", value));
-                        }
-                    } else {
-                        Log.w(TAG, String.format("Song length \"%s\" missing colon", value));
-                    }
+            int depth = mParser.getDepth();
+            while(mParser.nextChild(depth)) {
+                String name = mParser.getName();
+                if(name.equals("artist")) {
+                    int artistId = parseIntOrMinusOne(mParser.getAttribute("id"), "artist id");
+                    artists.add(mPool.getArtist(artistId, mParser.readChars()));
+                } else if(name.equals("song")) {
+                    id = parseIntOrMinusOne(mParser.getAttribute("id"), "song id");
+                    length = parseSongLengthOrMinusOne(mParser.getAttribute("length"));
+                    title = mPool.getSongTitle(id, mParser.readChars());
+                } else if(name.equals("requester")) {
+                    int userId = parseIntOrMinusOne(mParser.getAttribute("id"), "requester id");
+                    requester = mPool.getRequester(userId, mParser.readChars());
                 } else {
-                    Log.w(TAG, "Missing song length");
+                    mParser.skip();
                 }
-                return result;
             }
+            return new Entry(id, length, title, artists, requester, requestTime);
         }
 
 
-        public void parse(String xmlData) throws SAXException
+        private int parseSongLengthOrMinusOne(String value)
         {
-            RootElement root = new RootElement("playlist");
-
-            Element now = root.getChild("now");
-            Element timeleft = now.getChild("timeleft");
-            timeleft.setEndTextElementListener(new TimeLeftListener());
-
-            // Deal with entries from all 3 kinds of parents: now, queue, history.
-            Element nowEntry = now.getChild("entry");
-            EntryStartListener entryStartListener = new EntryStartListener();
-            nowEntry.setStartElementListener(entryStartListener);
-            nowEntry.setEndElementListener(new EndElementListener() {
-                public void end() {
-                    mCurrentEntry = mNewEntry;
-                }
-            });
-
-            Element queue = root.getChild("queue");
-            Element queueEntry = queue.getChild("entry");
-            queueEntry.setStartElementListener(entryStartListener);
-            queueEntry.setEndElementListener(new EndElementListener() {
-                public void end() {
-                    mQueue.add(mNewEntry);
-                }
-            });
-
-            Element history = root.getChild("history");
-            Element historyEntry = history.getChild("entry");
-            historyEntry.setStartElementListener(entryStartListener);
-            historyEntry.setEndElementListener(new EndElementListener() {
-                public void end() {
-                    mHistory.add(mNewEntry);
+            int result = -1;
+            if(value != null) {
+                long seconds = FieldDecoder.decodeDuration(value);
+                if(seconds != FieldDecoder.INVALID && seconds <= Integer.MAX_VALUE) {
+                    result = (int)seconds;
+                } else {
+                    Log.w(TAG, String.format("Invalid song length \"%s\"", value));
                 }
-            });
-
-            // Apply <entry> sub-element listeners to all 3 kinds of entries.
-            ArtistTextListener artistTextListener = new ArtistTextListener();
-            SongTextListener songTextListener = new SongTextListener();
-            RequesterTextListener requesterTextListener = new RequesterTextListener();
-            for(Element parent : new Element[] {nowEntry, queueEntry, historyEntry}) {
-                Element artist = parent.getChild("artist");
-                artist.setTextElementListener(artistTextListener);
-
-                Element song = parent.getChild("song");
-                song.setTextElementListener(songTextListener);
-
-                Element requester = parent.getChild("requester");
-                requester.setTextElementListener(requesterTextListener);
+            } else {
+                Log.w(TAG, "Missing song length");
             }
-
-            Xml.parse(xmlData, root.getContentHandler());
+            return result;
         }
     }
 }
@@ -215,12 +215,17 @@ public class PlaylistActivity extends ListActivity
         setProgressBarIndeterminateVisibility(true);
     }
 
-    public void onTaskFinished(Object manager, Object result)
+    public void onTaskFinished(Object manager, Object result, boolean isStale)
     {
         Playlist playlist = (Playlist)result;
         mPlaylist = playlist;
-        mListAdapter.setPlaylist(playlist);
+        mListAdapter.setPlaylist(playlist, mPlaylistManager.getDiff(playlist));
         updatePlaylistPosition();
+        setProgressBarIndeterminateVisibility(isStale);
+    }
+
+    public void onTaskRevalidated(Object manager)
+    {
         setProgressBarIndeterminateVisibility(false);
     }
 
@@ -238,7 +243,7 @@ public class PlaylistActivity extends ListActivity
 
     public void onSongChanged(Playlist.EntryAndTimeLeft ent)
     {
-        updatePlaylistPosition(ent);
+        updatePlaylistPosition();
     }
 
 
@@ -247,32 +252,18 @@ public class PlaylistActivity extends ListActivity
     ///
 
     /** Find our current position in the playlist and update the GUI. */
-    private void updatePlaylistPosition(Playlist.EntryAndTimeLeft ent)
-    {
-        int queueOffset;
-
-        java.util.List<Playlist.Entry> queue = mPlaylist.getQueue();
-        if(ent == null) {
-            // We passed the end of the queue!
-            queueOffset = queue.size();
-        } else {
-            // Find the song after the current one.  That's our queue offset.
-            Playlist.Entry currentEntry = ent.getEntry();
-
-            if(mPlaylist.getCurrentEntry() == currentEntry) {
-                queueOffset = 0;
-            } else {
-                queueOffset = queue.indexOf(currentEntry) + 1;
-            }
-        }
-
-        mListAdapter.setQueueOffset(queueOffset);
-    }
-
     private void updatePlaylistPosition()
     {
-        if(mPlaylist != null) {
-            updatePlaylistPosition(mPlaylist.atNow());
+        Playlist playlist = mPlaylist;
+        if(playlist != null) {
+            // Position 0 is the current entry and position n is queue entry n-1, so the position
+            // is our queue offset.
+            int queueOffset = playlist.positionAtTime(playlist.timeNow());
+            if(queueOffset == -1) {
+                // We passed the end of the queue!
+                queueOffset = playlist.getQueue().size();
+            }
+            mListAdapter.setQueueOffset(queueOffset);
         }
     }
 }
@@ -46,19 +46,41 @@ abstract class PlaylistAdapter extends BaseAdapter
      */
     public void setQueueOffset(int newOffset)
     {
-        mQueueOffset = newOffset;
-        notifyDataSetChanged();
+        if(newOffset != mQueueOffset) {
+            mQueueOffset = newOffset;
+            notifyDataSetChanged();
+        }
     }
 
 
     public void setPlaylist(Playlist playlist)
     {
+        setPlaylist(playlist, null);
+    }
+
+
+    /** Show a new version of the playlist.
+     *
+     * If diff says the part of the playlist this adapter shows hasn't changed since the playlist
+     * it's showing now, the list isn't redrawn.
+     *
+     * @param diff how playlist differs from the one it replaced, or null if that's unknown
+     */
+    public void setPlaylist(Playlist playlist, PlaylistDiff diff)
+    {
+        boolean changed = (diff == null || diff.getPrevious() != mPlaylist || isChangedBy(diff));
         mPlaylist = playlist;
-        mQueueOffset = 0;
-        notifyDataSetChanged();
+        if(changed) {
+            mQueueOffset = 0;
+            notifyDataSetChanged();
+        }
     }
 
 
+    /** Return true if diff changes the entries this adapter shows. */
+    protected abstract boolean isChangedBy(PlaylistDiff diff);
+
+
     ///
     /// Adapter methods
     ///
@@ -88,13 +110,18 @@ abstract class PlaylistAdapter extends BaseAdapter
             view = (TextView)convertView;
         }
 
+        // Entries that didn't change are the same objects across refreshes, so a view that's
+        // still showing this entry doesn't need its text rebuilt.
         Playlist.Entry entry = (Playlist.Entry)getItem(position);
-        String text = entry.getTitle();
-        if(entry.getArtists().size() > 0)
-            text += " by " + entry.getArtists().get(0).getString();
-        if(entry.getArtists().size() > 1)
-            text += ", et al.";
-        view.setText(text);
+        if(view.getTag() != entry) {
+            String text = entry.getTitle();
+            if(entry.getArtists().size() > 0)
+                text += " by " + entry.getArtists().get(0).getString();
+            if(entry.getArtists().size() > 1)
+                text += ", et al.";
+            view.setText(text);
+            view.setTag(entry);
+        }
 
         return view;
     }
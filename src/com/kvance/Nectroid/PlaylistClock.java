@@ -0,0 +1,140 @@
+// This file is part of Nectroid.
+//
+// Nectroid is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Nectroid is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with Nectroid.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.kvance.Nectroid;
+
+import java.util.Date;
+
+import android.util.Log;
+
+
+/** Estimates how the server's playlist clock relates to ours.
+ *
+ * A playlist's <timeleft> was true when the server generated it, which was some time before the
+ * response reached us.  That latency is estimated from the fetch timings.
+ *
+ * The server's songs also don't end exactly when their lengths say (there are gaps between
+ * songs, and the lengths are rounded).  Each new playlist is compared with what the previous one
+ * predicted, and the error is smoothed into a drift rate and a typical deviation from it.
+ *
+ * All times are in milliseconds.
+ *
+ * The estimates are updated in the fetch thread and read in the UI thread, so it's synchronized.
+ */
+class PlaylistClock
+{
+    private double mLatency;        // one-way latency
+    private double mDrift;          // ms the server falls behind per second of playback
+    private double mDeviation;      // typical prediction error after the drift correction
+    private boolean mHaveLatency;
+    private boolean mHaveDrift;
+
+    // Weight of each new sample in the smoothed estimates
+    private static final double ALPHA = 0.25;
+
+    // Observations over less time than this are mostly rounding error
+    private static final long MIN_OBSERVATION_TIME = 10000;
+
+    // Errors larger than this mean the queue changed, not the clock
+    private static final long MAX_PREDICTION_ERROR = 30000;
+
+    // Limits on the margin added after a predicted song boundary
+    private static final long MIN_MARGIN = 1000;
+    private static final long MAX_MARGIN = 15000;
+
+    private static final String TAG = "NectroidPlaylistClock";
+
+
+    ///
+    /// Public interface
+    ///
+
+    /** Return the time base for a newly downloaded playlist, and update the latency estimate.
+     *
+     * This is when the server most likely generated it: when the response arrived, minus the
+     * latency.
+     */
+    public synchronized Date getTimeBase(FetchUrl.Result fetchResult)
+    {
+        FetchUrl.Timings timings = fetchResult.getTimings();
+        if(timings != null && timings.getFirstByteMillis() > 0) {
+            // The server answers about halfway through the round trip.
+            double latency = timings.getFirstByteMillis() / 2.0;
+            mLatency = mHaveLatency ? (mLatency + ALPHA * (latency - mLatency)) : latency;
+            mHaveLatency = true;
+        }
+        return new Date(fetchResult.getTimestamp().getTime() - (long)mLatency);
+    }
+
+
+    /** Compare a newly fetched playlist with what the previous one predicted. */
+    public synchronized void observe(Playlist previous, Playlist current)
+    {
+        if(previous == null || previous.getTimeBase() == 0L || current.getTimeBase() == 0L) {
+            return;
+        }
+
+        long elapsed = current.getTimeBase() - previous.getTimeBase();
+        if(elapsed < MIN_OBSERVATION_TIME) {
+            return;
+        }
+
+        // What did the previous playlist say would be playing now?
+        Playlist.EntryAndTimeLeft predicted = previous.atTime((int)(elapsed / 1000L));
+        Playlist.Entry currentEntry = current.getCurrentEntry();
+        if(predicted == null || predicted.getEntry().getId() != currentEntry.getId()) {
+            return;
+        }
+        long predictedTimeLeft = 1000L * predicted.getTimeLeft() - (elapsed % 1000L);
+        long error = 1000L * current.getTimeLeft() - predictedTimeLeft;
+        if(Math.abs(error) > MAX_PREDICTION_ERROR) {
+            return;
+        }
+
+        double drift = error / (elapsed / 1000.0);
+        if(mHaveDrift) {
+            double deviation = Math.abs(error - mDrift * elapsed / 1000.0);
+            mDrift += ALPHA * (drift - mDrift);
+            mDeviation += ALPHA * (deviation - mDeviation);
+        } else {
+            mDrift = drift;
+            mDeviation = Math.abs(error);
+            mHaveDrift = true;
+        }
+        Log.d(TAG, String.format("Prediction error %d ms over %d s; drift %.1f ms/s, " +
+                    "deviation %.0f ms, latency %.0f ms", error, elapsed / 1000L, mDrift,
+                    mDeviation, mLatency));
+    }
+
+
+    /** Return when a point in a playlist should happen, in System.currentTimeMillis() time.
+     *
+     * @param playlistTime seconds after the playlist's time base
+     */
+    public synchronized long predict(Playlist playlist, int playlistTime)
+    {
+        long playbackMillis = 1000L * playlistTime;
+        return playlist.getTimeBase() + playbackMillis +
+            (long)(mDrift * playlistTime);
+    }
+
+
+    /** Return how long after a predicted song boundary it's safe to assume it has passed. */
+    public synchronized long getMargin()
+    {
+        long margin = (long)(mLatency + 2 * mDeviation);
+        return Math.max(MIN_MARGIN, Math.min(margin, MAX_MARGIN));
+    }
+}
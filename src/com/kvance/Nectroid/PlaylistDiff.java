@@ -0,0 +1,305 @@
+// This file is part of Nectroid.
+//
+// Nectroid is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Nectroid is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with Nectroid.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.kvance.Nectroid;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+
+/** The differences between a playlist and the one it replaced.
+ *
+ * Entries are matched by song id and request time.  Each match in the new playlist whose title,
+ * length, artists and requester are also the same is replaced with the previous playlist's Entry
+ * object, so anything showing an entry can tell it hasn't changed by comparing references.
+ * Usually only one song has moved from the queue to now to the history, and everything else is
+ * reused.
+ *
+ * An entry that was edited counts as removed and inserted again.
+ */
+class PlaylistDiff
+{
+    /** The changes to one list in the playlist. */
+    public static class ListDiff
+    {
+        private int mInserted; // entries that weren't in the previous list
+        private int mRemoved; // entries from the previous list that are gone
+        private int mMoved; // entries still in the list, but out of their previous order
+
+        public int getInserted() { return mInserted; }
+        public int getRemoved() { return mRemoved; }
+        public int getMoved() { return mMoved; }
+
+        public boolean isEmpty()
+        {
+            return (mInserted == 0 && mRemoved == 0 && mMoved == 0);
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("+%d -%d ~%d", mInserted, mRemoved, mMoved);
+        }
+    }
+
+
+    /** What entries are matched by. */
+    private static class Key
+    {
+        private int mId;
+        private long mRequestTime;
+
+        public Key(Playlist.Entry entry)
+        {
+            mId = entry.getId();
+            mRequestTime = entry.getRequestTime();
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            if(!(other instanceof Key)) {
+                return false;
+            }
+            Key otherKey = (Key)other;
+            return (mId == otherKey.mId && mRequestTime == otherKey.mRequestTime);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * mId + (int)(mRequestTime ^ (mRequestTime >>> 32));
+        }
+    }
+
+
+    private Playlist mPrevious;
+    private Playlist mPlaylist;
+    private boolean mCurrentChanged;
+    private ListDiff mQueueDiff;
+    private ListDiff mHistoryDiff;
+
+
+    private PlaylistDiff() {}
+
+
+    ///
+    /// Public interface
+    ///
+
+    /** Compare a newly parsed playlist with the one it replaces.
+     *
+     * @return the differences; getPlaylist() is the new playlist, reusing the previous entries
+     */
+    public static PlaylistDiff compare(Playlist previous, Playlist next)
+    {
+        // Pool the previous entries.  The same song can be in the playlist more than once, so
+        // each key has a list of entries, used up in order.
+        HashMap<Key, ArrayList<Playlist.Entry>> pool =
+            new HashMap<Key, ArrayList<Playlist.Entry>>();
+        addToPool(pool, previous.getCurrentEntry());
+        for(Playlist.Entry entry : previous.getQueue()) {
+            addToPool(pool, entry);
+        }
+        for(Playlist.Entry entry : previous.getHistory()) {
+            addToPool(pool, entry);
+        }
+
+        Playlist.Entry currentEntry = takeFromPool(pool, next.getCurrentEntry());
+        List<Playlist.Entry> queue = takeAllFromPool(pool, next.getQueue());
+        List<Playlist.Entry> history = takeAllFromPool(pool, next.getHistory());
+
+        PlaylistDiff diff = new PlaylistDiff();
+        diff.mPrevious = previous;
+        diff.mPlaylist = next.withEntries(currentEntry, queue, history);
+        diff.mCurrentChanged = (currentEntry != previous.getCurrentEntry());
+        diff.mQueueDiff = compareLists(previous.getQueue(), queue);
+        diff.mHistoryDiff = compareLists(previous.getHistory(), history);
+        return diff;
+    }
+
+
+    /** Return true if nothing in the playlist changed. */
+    public boolean isEmpty()
+    {
+        return (!mCurrentChanged && mQueueDiff.isEmpty() && mHistoryDiff.isEmpty());
+    }
+
+
+    @Override
+    public String toString()
+    {
+        return String.format("<PlaylistDiff current %s, queue %s, history %s>",
+                mCurrentChanged ? "changed" : "unchanged", mQueueDiff, mHistoryDiff);
+    }
+
+
+    ///
+    /// Getters
+    ///
+
+    /** Return the playlist this diff was taken against. */
+    public Playlist getPrevious() { return mPrevious; }
+
+    /** Return the new playlist. */
+    public Playlist getPlaylist() { return mPlaylist; }
+
+    public boolean isCurrentChanged() { return mCurrentChanged; }
+    public ListDiff getQueueDiff() { return mQueueDiff; }
+    public ListDiff getHistoryDiff() { return mHistoryDiff; }
+
+
+    ///
+    /// Utility methods
+    ///
+
+    private static void addToPool(HashMap<Key, ArrayList<Playlist.Entry>> pool,
+            Playlist.Entry entry)
+    {
+        Key key = new Key(entry);
+        ArrayList<Playlist.Entry> entries = pool.get(key);
+        if(entries == null) {
+            entries = new ArrayList<Playlist.Entry>(1);
+            pool.put(key, entries);
+        }
+        entries.add(entry);
+    }
+
+
+    /** Return the previous entry matching this one, or the entry itself if there isn't one. */
+    private static Playlist.Entry takeFromPool(HashMap<Key, ArrayList<Playlist.Entry>> pool,
+            Playlist.Entry entry)
+    {
+        ArrayList<Playlist.Entry> entries = pool.get(new Key(entry));
+        if(entries != null) {
+            for(int i = 0; i < entries.size(); i++) {
+                if(isSameEntry(entries.get(i), entry)) {
+                    return entries.remove(i);
+                }
+            }
+        }
+        return entry;
+    }
+
+
+    /** Return true if two entries with the same key would also be shown the same way. */
+    private static boolean isSameEntry(Playlist.Entry a, Playlist.Entry b)
+    {
+        if(a.getLength() != b.getLength() || !equal(a.getTitle(), b.getTitle()) ||
+                !isSameIdString(a.getRequester(), b.getRequester())) {
+            return false;
+        }
+
+        List<Playlist.IdString> artistsA = a.getArtists();
+        List<Playlist.IdString> artistsB = b.getArtists();
+        if(artistsA.size() != artistsB.size()) {
+            return false;
+        }
+        for(int i = 0; i < artistsA.size(); i++) {
+            if(!isSameIdString(artistsA.get(i), artistsB.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    private static boolean isSameIdString(Playlist.IdString a, Playlist.IdString b)
+    {
+        if(a == b) {
+            // Usually the same object from the InternPool.
+            return true;
+        } else if(a == null || b == null) {
+            return false;
+        }
+        return (a.getId() == b.getId() && equal(a.getString(), b.getString()));
+    }
+
+
+    private static boolean equal(String a, String b)
+    {
+        return (a == null) ? (b == null) : a.equals(b);
+    }
+
+
+    private static List<Playlist.Entry> takeAllFromPool(
+            HashMap<Key, ArrayList<Playlist.Entry>> pool, List<Playlist.Entry> entries)
+    {
+        ArrayList<Playlist.Entry> result = new ArrayList<Playlist.Entry>(entries.size());
+        for(Playlist.Entry entry : entries) {
+            result.add(takeFromPool(pool, entry));
+        }
+        return result;
+    }
+
+
+    /** Compare two versions of a list, whose common entries are the same objects. */
+    private static ListDiff compareLists(List<Playlist.Entry> previous,
+            List<Playlist.Entry> next)
+    {
+        IdentityHashMap<Playlist.Entry, Integer> previousIndexes =
+            new IdentityHashMap<Playlist.Entry, Integer>();
+        for(int i = 0; i < previous.size(); i++) {
+            previousIndexes.put(previous.get(i), i);
+        }
+
+        // The previous indexes of the kept entries, in their new order.
+        int[] keptIndexes = new int[next.size()];
+        int numKept = 0;
+        for(Playlist.Entry entry : next) {
+            Integer index = previousIndexes.get(entry);
+            if(index != null) {
+                keptIndexes[numKept++] = index;
+            }
+        }
+
+        ListDiff diff = new ListDiff();
+        diff.mInserted = next.size() - numKept;
+        diff.mRemoved = previous.size() - numKept;
+        diff.mMoved = numKept - longestIncreasingSubsequence(keptIndexes, numKept);
+        return diff;
+    }
+
+
+    /** Return the length of the longest increasing subsequence of values[0:count].
+     *
+     * The entries outside it are the ones that have to move to get from one order to the other.
+     */
+    private static int longestIncreasingSubsequence(int[] values, int count)
+    {
+        // tails[i] is the smallest value that ends an increasing subsequence of length i+1.
+        int[] tails = new int[count];
+        int length = 0;
+        for(int i = 0; i < count; i++) {
+            int low = 0;
+            int high = length;
+            while(low < high) {
+                int mid = (low + high) >>> 1;
+                if(tails[mid] < values[i]) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            tails[low] = values[i];
+            if(low == length) {
+                length++;
+            }
+        }
+        return length;
+    }
+}
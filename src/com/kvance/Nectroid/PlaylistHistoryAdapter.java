@@ -15,30 +15,21 @@
 
 package com.kvance.Nectroid;
 
-import java.util.List;
-
 import android.content.Context;
 
 
 class PlaylistHistoryAdapter extends PlaylistAdapter
 {
-    List<Playlist.Entry> mHistory;
-    List<Playlist.Entry> mQueue;
-
     public PlaylistHistoryAdapter(Playlist playlist, Context context)
     {
         super(playlist, context);
-        setPlaylist(playlist);
     }
 
     @Override
-    public void setPlaylist(Playlist playlist)
+    protected boolean isChangedBy(PlaylistDiff diff)
     {
-        super.setPlaylist(playlist);
-        if(playlist != null) {
-            mHistory = playlist.getHistory();
-            mQueue = playlist.getQueue();
-        }
+        // The songs played from the queue are shown on top of the history.
+        return !diff.isEmpty();
     }
     
     ///
@@ -68,11 +59,11 @@ class PlaylistHistoryAdapter extends PlaylistAdapter
         // ...
         int realPosition = position - mQueueOffset;
         if(realPosition > -1) {
-            return mHistory.get(realPosition);
+            return mPlaylist.getHistory().get(realPosition);
         } else if(realPosition == -1) {
             return mPlaylist.getCurrentEntry();
         } else { // realPosition < -1
-            return mQueue.get((0 - realPosition) - 2);
+            return mPlaylist.getQueue().get((0 - realPosition) - 2);
         }
     }
 }
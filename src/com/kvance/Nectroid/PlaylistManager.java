@@ -15,6 +15,8 @@
 
 package com.kvance.Nectroid;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Date;
 import java.util.HashSet;
 
@@ -44,15 +46,21 @@ public class PlaylistManager extends AutoRefreshDocManager<Playlist>
     private HashSet<SongListener> mSongListeners;
 
     private Date mTimeBase;
-    private Playlist mPlaylist;
+    private volatile Playlist mPlaylist; // parsed in the fetch thread, read in the UI thread
+    private volatile PlaylistDiff mDiff; // how mPlaylist differs from the one before it
+    private Playlist mPreviousPlaylist;
+    private boolean mNewCopy;
     private long mLastUpdateTime;
-
-    // Milliseconds before we're considered "almost done"
-    private static final long ALMOST_DONE_TIME = 25000;
+    private volatile PlaylistClock mClock; // replaced in the UI thread, used in the fetch thread
+    private InternPool mInternPool; // names from recent playlists, shared by the next parse
 
     // Minimum time between auto-refreshes (in ms)
     private static final long MIN_AUTO_REFRESH_TIME = 30000;
 
+    // How much earlier than planned a refresh may happen, to share a wakeup with another one
+    // (in ms)
+    private static final long REFRESH_TOLERANCE = 10000;
+
     private static final String TAG = "Nectroid";
 
 
@@ -61,6 +69,8 @@ public class PlaylistManager extends AutoRefreshDocManager<Playlist>
         super(applicationContext);
         mSongListeners = new HashSet<SongListener>();
         mLastUpdateTime = 0L;
+        mClock = new PlaylistClock();
+        mInternPool = new InternPool();
     }
 
 
@@ -72,39 +82,112 @@ public class PlaylistManager extends AutoRefreshDocManager<Playlist>
     }
 
 
+    /** The queue is what the user is looking at, so it's fetched first. */
+    @Override
+    public FetchScheduler.Priority getPriority()
+    {
+        return FetchScheduler.Priority.USER_VISIBLE;
+    }
+
+
     /** A cached document was retrieved. */
     @Override
     public void onCachedCopyRetrieved(Context context)
     {
-        // Retrieve the timestamp from the prefs.
-        mTimeBase = Prefs.getPlaylistUpdateTime(context);
+        // Retrieve the timestamp saved with it.
+        mTimeBase = Cache.readTimestamp(getDocId(), context);
+        mNewCopy = false;
     }
 
 
-    /** A new document was downloaded. */
+    /** A new document is being downloaded. */
     @Override
     public void onNewCopyRetrieved(FetchUrl.Result fetchResult, Context context)
     {
-        // Save the timestamp to the prefs.
-        mTimeBase = fetchResult.getTimestamp();
-        Prefs.setPlaylistUpdateTime(mTimeBase, context);
+        // Parse it relative to when it was sent, corrected for the time the response took to
+        // get here.
+        mTimeBase = mClock.getTimeBase(fetchResult);
+        mLastUpdateTime = System.currentTimeMillis();
+
+        // Keep the old playlist around to see how well it predicted this one.
+        mPreviousPlaylist = mPlaylist;
+        mNewCopy = true;
+    }
+
+
+    /** The new document was cached. */
+    @Override
+    public void onNewCopyCommitted(FetchUrl.Result fetchResult, Context context)
+    {
+        // Save the time base with the cached copy.
+        Cache.writeTimestamp(getDocId(), mTimeBase, context);
+    }
+
+
+    /** The cached document is still current. */
+    @Override
+    public void onCachedCopyRevalidated(FetchUrl.Result fetchResult, Context context)
+    {
+        // The song times in the document are still relative to when it was first downloaded, so
+        // go back to that time base, even if a new copy that was thrown away had another one.
+        // Only the refresh timer starts over.
+        mTimeBase = Cache.readTimestamp(getDocId(), context);
         mLastUpdateTime = System.currentTimeMillis();
+        mPreviousPlaylist = null;
+        mNewCopy = false;
+    }
+
+
+    /** Return the playlist parsed from the cached document. */
+    @Override
+    public Playlist getParsedDocument()
+    {
+        return mPlaylist;
     }
 
 
     /** Parse an XML file into a Playlist object. */
     @Override
-    public Playlist parseDocument(String xmlData, Context context)
+    public Playlist parseDocument(InputStream xmlStream, Context context) throws IOException
     {
         try {
-            mPlaylist = new Playlist(xmlData, mTimeBase);
-            return mPlaylist;
+            return new Playlist(xmlStream, mTimeBase, mInternPool);
         } catch(SAXException e) {
             return null;
         }
     }
 
 
+    /** Make a parsed playlist current, and see how well the last one predicted it. */
+    @Override
+    public Playlist installDocument(Playlist result, Context context)
+    {
+        Playlist playlist = replacePlaylist(result);
+        if(mNewCopy) {
+            mClock.observe(mPreviousPlaylist, playlist);
+            mPreviousPlaylist = null;
+            mNewCopy = false;
+        }
+        return playlist;
+    }
+
+
+    /** Load the playlist from a snapshot of the cached document. */
+    @Override
+    public Playlist readSnapshot(Snapshot.Reader reader, Context context) throws IOException
+    {
+        return new Playlist(reader, mTimeBase);
+    }
+
+
+    @Override
+    public boolean writeSnapshot(Playlist result, Snapshot.Writer writer) throws IOException
+    {
+        result.writeSnapshot(writer);
+        return true;
+    }
+
+
     @Override
     public void onParserSuccess(Playlist result, Context context)
     {
@@ -117,6 +200,16 @@ public class PlaylistManager extends AutoRefreshDocManager<Playlist>
     }
 
 
+    @Override
+    public void onStaleResult(Playlist result, Context context)
+    {
+        // The cached playlist is still worth showing the current song from.
+        if(mSongListeners.size() > 0) {
+            notifyNewSong.run();
+        }
+    }
+
+
     ///
     /// Public interface
     ///
@@ -140,10 +233,11 @@ public class PlaylistManager extends AutoRefreshDocManager<Playlist>
 
     public Playlist.EntryAndTimeLeft getCurrentSong()
     {
-        if(mPlaylist == null) {
+        Playlist playlist = mPlaylist;
+        if(playlist == null) {
             return null;
         } else {
-            return mPlaylist.atNow();
+            return playlist.atNow();
         }
     }
 
@@ -154,6 +248,9 @@ public class PlaylistManager extends AutoRefreshDocManager<Playlist>
         if(mUpdateTask == null && mSongListeners.isEmpty()) {
             mPlaylist = null;
         }
+        // The diff keeps the previous playlist around too.  The names can all be parsed again.
+        mDiff = null;
+        mInternPool.clear();
     }
 
 
@@ -163,7 +260,11 @@ public class PlaylistManager extends AutoRefreshDocManager<Playlist>
         cancelUpdate();
         mTimeBase = null;
         mPlaylist = null;
+        mDiff = null;
+        mPreviousPlaylist = null;
+        mInternPool.clear();
         mLastUpdateTime = 0L;
+        mClock = new PlaylistClock();
     }
 
 
@@ -174,6 +275,39 @@ public class PlaylistManager extends AutoRefreshDocManager<Playlist>
     public Playlist getPlaylist() { return mPlaylist; }
 
 
+    /** Return how playlist differs from the one it replaced, or null if that's unknown. */
+    public PlaylistDiff getDiff(Playlist playlist)
+    {
+        PlaylistDiff diff = mDiff;
+        if(diff != null && diff.getPlaylist() == playlist) {
+            return diff;
+        } else {
+            return null;
+        }
+    }
+
+
+    ///
+    /// Utility methods
+    ///
+
+    /** Make a newly read playlist current, reusing the entries it shares with the old one. */
+    private Playlist replacePlaylist(Playlist playlist)
+    {
+        Playlist previous = mPlaylist;
+        if(previous != null) {
+            PlaylistDiff diff = PlaylistDiff.compare(previous, playlist);
+            Log.d(TAG, diff.toString());
+            playlist = diff.getPlaylist();
+            mDiff = diff;
+        } else {
+            mDiff = null;
+        }
+        mPlaylist = playlist;
+        return playlist;
+    }
+
+
     ///
     /// Song updates
     ///
@@ -181,8 +315,9 @@ public class PlaylistManager extends AutoRefreshDocManager<Playlist>
 
     private void startSongUpdates()
     {
-        if(mPlaylist != null) {
-            Playlist.EntryAndTimeLeft ent = mPlaylist.atNow();
+        Playlist playlist = mPlaylist;
+        if(playlist != null) {
+            Playlist.EntryAndTimeLeft ent = playlist.atNow();
             if(ent != null) {
                 scheduleSongUpdate(ent);
             }
@@ -209,7 +344,8 @@ public class PlaylistManager extends AutoRefreshDocManager<Playlist>
 
     private Runnable notifyNewSong = new Runnable() {
         public void run() {
-            Playlist.EntryAndTimeLeft ent = mPlaylist.atNow();
+            Playlist playlist = mPlaylist;
+            Playlist.EntryAndTimeLeft ent = (playlist == null) ? null : playlist.atNow();
             if(ent != null) {
                 // Notify all listeners of the new song.
                 for(SongListener listener : mSongListeners) {
@@ -225,7 +361,7 @@ public class PlaylistManager extends AutoRefreshDocManager<Playlist>
 
     private void stopPlaylistAutoUpdate()
     {
-        mHandler.removeCallbacks(autoUpdatePlaylist);
+        RefreshPlanner.cancel(this);
     }
 
 
@@ -236,32 +372,57 @@ public class PlaylistManager extends AutoRefreshDocManager<Playlist>
     @Override
     protected void scheduleNextRefresh(Context context)
     {
-        // How much time has elapsed since the playlist's timebase?
+        // The queue is sure to have changed once a song ends, and the client's view of what's
+        // playing is only wrong after that.  Requests can be added at any time, though, so this
+        // is when a refresh is most needed, not the only time it's worth doing.  Refresh just
+        // after the last song in the queue starts, or after the current song ends if that's all
+        // there is.
         long now = System.currentTimeMillis();
-        long timeElapsed = now - mPlaylist.getTimeBase().getTime();
+        long boundary = 0;
+        long lastBoundary = 0;
+
+        // The fetch thread can replace the playlist while this runs.
+        Playlist playlist = mPlaylist;
+        int numPositions = (playlist == null) ? 0 : playlist.getQueue().size() + 1;
+        for(int position = 0; position < numPositions; position++) {
+            // Songs of unknown length end when the one before them does.
+            int playlistTime = playlist.getEndTimeAt(position);
+            if(position > 0 && playlistTime == playlist.getEndTimeAt(position - 1)) {
+                continue;
+            }
+            long time = mClock.predict(playlist, playlistTime);
+            if(time > now) {
+                boundary = lastBoundary;
+                lastBoundary = time;
+            }
+        }
+        if(boundary == 0) {
+            boundary = lastBoundary;
+        }
 
-        // Playlist length is in seconds, so multiply by 1000.
-        long totalLength = mPlaylist.lengthInSeconds() * 1000L;
-        long delay = totalLength - timeElapsed - ALMOST_DONE_TIME;
-        delay = Math.max(delay, 0);    // An old queue may have finished in the past
+        // An old queue may have finished in the past.
+        long delay = 0;
+        if(boundary != 0) {
+            delay = boundary - now + mClock.getMargin();
+        }
 
         // Apply a minimum delay, so we're not constantly reloading when there's an empty queue.
-        long nextUpdateTime = now + delay;
-        long timeBetweenUpdates = nextUpdateTime - mLastUpdateTime;
-        if(timeBetweenUpdates < MIN_AUTO_REFRESH_TIME) {
-            delay = MIN_AUTO_REFRESH_TIME - timeBetweenUpdates;
-        }
+        delay = Math.max(delay, mLastUpdateTime + MIN_AUTO_REFRESH_TIME - now);
+
+        // Refreshing a little early can still pick up new requests, and lets the oneliner refresh
+        // share the wakeup.  It's not allowed too soon after the last one.
+        long earliestDelay = Math.max(delay - REFRESH_TOLERANCE,
+                mLastUpdateTime + MIN_AUTO_REFRESH_TIME - now);
 
-        // Remove any old auto-update callbacks before posting this one.
-        mHandler.removeCallbacks(autoUpdatePlaylist);
-        mHandler.postDelayed(autoUpdatePlaylist, delay);
+        // The queue is needed for the song notifications, even when the screen is off.
+        RefreshPlanner.schedule(this, earliestDelay, delay, false, autoUpdatePlaylist);
     }
 
 
     @Override
     protected void unscheduleNextRefresh(Context context)
     {
-        mHandler.removeCallbacks(autoUpdatePlaylist);
+        RefreshPlanner.cancel(this);
     }
 
 
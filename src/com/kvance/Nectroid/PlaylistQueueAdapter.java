@@ -15,29 +15,21 @@
 
 package com.kvance.Nectroid;
 
-import java.util.List;
-
 import android.content.Context;
 
 
 class PlaylistQueueAdapter extends PlaylistAdapter
 {
-    List<Playlist.Entry> mQueue;
-
-
     public PlaylistQueueAdapter(Playlist playlist, Context context)
     {
         super(playlist, context);
-        setPlaylist(playlist);
     }
 
+
     @Override
-    public void setPlaylist(Playlist playlist)
+    protected boolean isChangedBy(PlaylistDiff diff)
     {
-        super.setPlaylist(playlist);
-        if(playlist != null) {
-            mQueue = playlist.getQueue();
-        }
+        return !diff.getQueueDiff().isEmpty();
     }
 
 
@@ -59,6 +51,6 @@ class PlaylistQueueAdapter extends PlaylistAdapter
     @Override
     public Object getItem(int position)
     {
-        return mQueue.get(position + mQueueOffset);
+        return mPlaylist.getQueue().get(position + mQueueOffset);
     }
 }
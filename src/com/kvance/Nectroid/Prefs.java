@@ -17,9 +17,6 @@ package com.kvance.Nectroid;
 
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 
 import android.content.Context;
 import android.content.SharedPreferences;
@@ -32,20 +29,13 @@ class Prefs
     public static final String PREFS_NAME = "Nectroid";
 
     // Preference keys
-    public static final String PLAYLIST_UPDATE_TIME_KEY = "playlist_update_time";
-    public static final String ONELINER_UPDATE_TIME_KEY = "oneliner_update_time";
     public static final String ONELINER_REFRESH_PERIOD_KEY = "oneliner_refresh_period";
     public static final String STREAM_URL_KEY = "stream_url";
     public static final String STREAM_ID_KEY = "stream_id";
     public static final String USE_SCROBBLER_KEY = "use_scrobbler";
     public static final String SITE_ID_KEY = "site_id";
-    public static final String CACHED_SITE_ID_KEY = "cached_site_id";
     public static final String USE_SW_DECODER_KEY = "use_sw_decoder";
 
-    // Timestamp formatter
-    private static final SimpleDateFormat timestampFormat = new SimpleDateFormat(
-            "yyyy-MM-dd HH:mm:ss");
-
     // Defaults
     public static final int DEFAULT_ONELINER_REFRESH_PERIOD = 60;
     public static final boolean DEFAULT_USE_SCROBBLER = true;
@@ -59,11 +49,6 @@ class Prefs
     /// Getters
     ///
 
-    public static Date getPlaylistUpdateTime(Context context)
-    {
-        return getDate(PLAYLIST_UPDATE_TIME_KEY, context, "playlist update time");
-    }
-
     public static int getOneLinerRefreshPeriod(Context context)
     {
         Integer retval = getIntFromString(ONELINER_REFRESH_PERIOD_KEY, context,
@@ -74,11 +59,6 @@ class Prefs
         return retval;
     }
 
-    public static Date getOneLinerUpdateTime(Context context)
-    {
-        return getDate(ONELINER_UPDATE_TIME_KEY, context, "oneliner update time");
-    }
-
     public static boolean getUseScrobbler(Context context)
     {
         return sp(context).getBoolean(USE_SCROBBLER_KEY, DEFAULT_USE_SCROBBLER);
@@ -89,11 +69,6 @@ class Prefs
         return sp(context).getInt(SITE_ID_KEY, DEFAULT_SITE_ID);
     }
 
-    public static int getCachedSiteId(Context context)
-    {
-        return sp(context).getInt(CACHED_SITE_ID_KEY, DEFAULT_SITE_ID);
-    }
-
     public static boolean getUseSWDecoder(Context context)
     {
         return sp(context).getBoolean(USE_SW_DECODER_KEY, DEFAULT_USE_SW_DECODER);
@@ -128,21 +103,11 @@ class Prefs
     /// Setters
     ///
 
-    public static void setPlaylistUpdateTime(Date timeBase, Context context)
-    {
-        setDate(PLAYLIST_UPDATE_TIME_KEY, timeBase, context);
-    }
-
     public static void setOneLinerRefreshPeriod(int period, Context context)
     {
         setIntFromString(ONELINER_REFRESH_PERIOD_KEY, period, context);
     }
 
-    public static void setOneLinerUpdateTime(Date timestamp, Context context)
-    {
-        setDate(ONELINER_UPDATE_TIME_KEY, timestamp, context);
-    }
-
     public static void setUseScrobbler(Context context, boolean useScrobbler)
     {
         esp(context).putBoolean(USE_SCROBBLER_KEY, useScrobbler).commit();
@@ -153,11 +118,6 @@ class Prefs
         esp(context).putInt(SITE_ID_KEY, id).commit();
     }
 
-    public static void setCachedSiteId(Context context, int id)
-    {
-        esp(context).putInt(CACHED_SITE_ID_KEY, id).commit();
-    }
-
     public static void setUseSWDecoder(Context context, boolean useSWDecoder)
     {
         esp(context).putBoolean(USE_SW_DECODER_KEY, useSWDecoder).commit();
@@ -177,11 +137,6 @@ class Prefs
     /// Clearers
     ///
 
-    public static void clearOneLinerUpdateTime(Context context)
-    {
-        esp(context).remove(ONELINER_UPDATE_TIME_KEY).commit();
-    }
-
     public static void clearStream(Context context)
     {
         SharedPreferences.Editor e = esp(context);
@@ -208,35 +163,6 @@ class Prefs
     }
 
 
-    /** Get a date as a string preference. */
-    private static Date getDate(String key, Context context, String description)
-    {
-        Date retval = null;
-        String dateString = sp(context).getString(key, null);
-        if(dateString != null) {
-            try {
-                retval = timestampFormat.parse(dateString);
-            } catch(ParseException e) {
-                Log.w(TAG, String.format("Invalid %s \"%s\"", description, dateString));
-            }
-        }
-        return retval;
-    }
-
-    /** Set a date as a string preference. */
-    private static void setDate(String key, Date date, Context context)
-    {
-        String dateString;
-        if(date == null) {
-            dateString = null;
-        } else {
-            dateString = timestampFormat.format(date);
-        }
-
-        esp(context).putString(key, dateString).commit();
-    }
-
-
     private static Integer getIntFromString(String key, Context context, String description)
     {
         Integer retval = null;
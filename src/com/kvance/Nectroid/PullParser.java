@@ -0,0 +1,236 @@
+// This file is part of Nectroid.
+//
+// Nectroid is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Nectroid is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with Nectroid.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.kvance.Nectroid;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Date;
+
+import org.xml.sax.SAXException;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import android.util.Log;
+import android.util.Xml;
+
+
+/** State shared by the XML parsers for the demovibes documents.
+ *
+ * A few of these are pooled, so the pull parser (and its read buffer), the field decoder and the
+ * text buffer are reused from one parse to the next instead of being built every time.  The
+ * FetchScheduler's threads come and go, so the pool isn't per thread.  Take one with obtain(),
+ * and finish() gives it back.
+ *
+ * The documents are read in a single pass: the model parsers walk the elements they know with
+ * nextChild(), and skip() everything else.
+ */
+class PullParser
+{
+    private XmlPullParser mParser;
+    private FieldDecoder mDecoder;
+    private StringBuilder mText;
+
+    // Parsers not in use, guarded by itself.  There's one for each fetch that can run at once.
+    private static final ArrayList<PullParser> mPool = new ArrayList<PullParser>();
+    private static final int MAX_POOL_SIZE = 3;
+
+
+    private PullParser()
+    {
+        mParser = Xml.newPullParser();
+        mDecoder = new FieldDecoder();
+        mText = new StringBuilder();
+    }
+
+
+    ///
+    /// Public interface
+    ///
+
+    /** Return an unused parser.  Give it back by calling finish(). */
+    public static PullParser obtain()
+    {
+        synchronized(mPool) {
+            int size = mPool.size();
+            if(size > 0) {
+                return mPool.remove(size - 1);
+            }
+        }
+        return new PullParser();
+    }
+
+
+    /** Start parsing a UTF-8 document, and move to its root element.
+     *
+     * @throws XmlPullParserException if the root element isn't called rootName
+     */
+    public void start(InputStream xmlStream, String rootName)
+        throws IOException, XmlPullParserException
+    {
+        mDecoder.checkTimeZone();
+        mParser.setInput(xmlStream, "UTF-8");
+        int eventType = mParser.getEventType();
+        while(eventType != XmlPullParser.START_TAG) {
+            if(eventType == XmlPullParser.END_DOCUMENT) {
+                throw new XmlPullParserException("Missing root element");
+            }
+            eventType = mParser.next();
+        }
+        if(!rootName.equals(mParser.getName())) {
+            throw new XmlPullParserException(String.format(
+                        "Root element \"%s\" should be \"%s\"", mParser.getName(), rootName));
+        }
+    }
+
+
+    /** Let go of the document's stream, and return this parser to the pool.
+     *
+     * Call this when the parse is done, even if it failed, and don't use the parser after.
+     */
+    public void finish()
+    {
+        try {
+            mParser.setInput((Reader)null);
+        } catch(XmlPullParserException e) {
+            // Nothing to release, then.
+        }
+        mText.setLength(0);
+
+        synchronized(mPool) {
+            if(mPool.size() < MAX_POOL_SIZE) {
+                mPool.add(this);
+            }
+        }
+    }
+
+
+    /** Return the depth of the current element, to pass to nextChild(). */
+    public int getDepth()
+    {
+        return mParser.getDepth();
+    }
+
+
+    /** Move to the next child of the element at depth.
+     *
+     * Each child returned must be read completely (with readText() or skip(), or by walking its
+     * own children) before calling this again.
+     *
+     * @return false when the element has no more children
+     */
+    public boolean nextChild(int depth) throws IOException, XmlPullParserException
+    {
+        while(true) {
+            int eventType = mParser.next();
+            if(eventType == XmlPullParser.START_TAG) {
+                return true;
+            } else if(eventType == XmlPullParser.END_TAG && mParser.getDepth() == depth) {
+                return false;
+            } else if(eventType == XmlPullParser.END_DOCUMENT) {
+                throw new XmlPullParserException("Unexpected end of document");
+            }
+        }
+    }
+
+
+    /** Return the name of the current element. */
+    public String getName()
+    {
+        return mParser.getName();
+    }
+
+
+    /** Return an attribute of the current element, or null if it doesn't have one. */
+    public String getAttribute(String name)
+    {
+        return mParser.getAttributeValue(null, name);
+    }
+
+
+    /** Return the text in the current element, and move to its end.
+     *
+     * Text inside child elements is included, like android.sax does.
+     */
+    public String readText() throws IOException, XmlPullParserException
+    {
+        return readChars().toString();
+    }
+
+    /** Like readText(), but return this parser's own buffer.
+     *
+     * The characters are only valid until the next read, so this is for text that's decoded
+     * right away instead of kept.
+     */
+    public CharSequence readChars() throws IOException, XmlPullParserException
+    {
+        mText.setLength(0);
+        int depth = mParser.getDepth();
+        while(true) {
+            int eventType = mParser.next();
+            if(eventType == XmlPullParser.TEXT) {
+                mText.append(mParser.getText());
+            } else if(eventType == XmlPullParser.END_TAG && mParser.getDepth() == depth) {
+                return mText;
+            } else if(eventType == XmlPullParser.END_DOCUMENT) {
+                throw new XmlPullParserException("Unexpected end of document");
+            }
+        }
+    }
+
+
+    /** Move to the end of the current element, ignoring everything in it. */
+    public void skip() throws IOException, XmlPullParserException
+    {
+        int depth = mParser.getDepth();
+        while(nextChild(depth)) {
+            skip();
+        }
+    }
+
+
+    /** Parse a demovibes date into epoch millis, or log a warning and return
+     * FieldDecoder.INVALID if it's invalid.
+     *
+     * @param description a description of the string to print in an error message
+     */
+    public long parseTime(String value, String description, String tag)
+    {
+        long millis = mDecoder.decodeTimestamp(value);
+        if(millis == FieldDecoder.INVALID) {
+            Log.w(tag, String.format("Cannot parse %s \"%s\"", description, value));
+        }
+        return millis;
+    }
+
+    /** Parse a demovibes date, or return null and log a warning if it's invalid.
+     *
+     * @param description a description of the string to print in an error message
+     */
+    public Date parseDate(String value, String description, String tag)
+    {
+        long millis = parseTime(value, description, tag);
+        return (millis == FieldDecoder.INVALID) ? null : new Date(millis);
+    }
+
+
+    /** Wrap a pull parser error in the exception the document managers expect. */
+    public static SAXException wrap(XmlPullParserException e)
+    {
+        return new SAXException(e);
+    }
+}
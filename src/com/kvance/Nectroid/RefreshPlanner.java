@@ -0,0 +1,209 @@
+// This file is part of Nectroid.
+//
+// Nectroid is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Nectroid is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with Nectroid.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.kvance.Nectroid;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+
+/** Plans the auto-refreshes of all document managers, so they share network wakeups.
+ *
+ * Each manager schedules its next refresh as a window: the earliest time it's worth refreshing,
+ * and the latest time it should happen.  The planner wakes up at the first deadline and runs
+ * every refresh whose window has opened by then, so the radio powers up once for all of them.
+ *
+ * Refreshes that are only useful while the user is looking can be deferred while the screen is
+ * off.  They won't wake the radio on their own until MAX_SCREEN_OFF_DELAY has passed, but they
+ * still join any other refresh that happens.
+ *
+ * Nothing runs while the device is offline.  When it reconnects, every refresh whose window has
+ * opened runs at once.
+ *
+ * All methods must be called from the UI thread.
+ */
+class RefreshPlanner
+{
+    private static class Request
+    {
+        public long mEarliest; // in SystemClock.uptimeMillis() time
+        public long mLatest;
+        public boolean mDeferWhileScreenOff;
+        public Runnable mRefresh;
+    }
+
+    private static HashMap<Object, Request> mRequests = new HashMap<Object, Request>();
+    private static Handler mHandler;
+    private static boolean mScreenOn = true;
+    private static long mScreenOffTime;
+
+    // Longest a deferrable refresh waits past its deadline while the screen is off, in ms
+    private static final long MAX_SCREEN_OFF_DELAY = 15 * 60 * 1000;
+
+    private static final String TAG = "NectroidRefreshPlanner";
+
+
+    ///
+    /// Public interface
+    ///
+
+    /** Start following the screen and connection state. */
+    public static void start(Context appContext)
+    {
+        IntentFilter filter = new IntentFilter(Intent.ACTION_SCREEN_OFF);
+        filter.addAction(Intent.ACTION_SCREEN_ON);
+        appContext.registerReceiver(mScreenReceiver, filter);
+        ConnectivityMonitor.addListener(mConnectivityListener);
+    }
+
+    /** Stop following the screen and connection state. */
+    public static void stop(Context appContext)
+    {
+        appContext.unregisterReceiver(mScreenReceiver);
+        ConnectivityMonitor.removeListener(mConnectivityListener);
+    }
+
+
+    /** Schedule a refresh, replacing any refresh already scheduled for this owner.
+     *
+     * @param earliestDelay milliseconds from now before which the refresh isn't worth doing
+     * @param latestDelay milliseconds from now by which the refresh should have happened
+     * @param deferWhileScreenOff true if the refresh can wait while the screen is off
+     */
+    public static void schedule(Object owner, long earliestDelay, long latestDelay,
+            boolean deferWhileScreenOff, Runnable refresh)
+    {
+        long now = SystemClock.uptimeMillis();
+        Request request = new Request();
+        request.mLatest = now + Math.max(latestDelay, 0);
+        request.mEarliest = Math.min(now + Math.max(earliestDelay, 0), request.mLatest);
+        request.mDeferWhileScreenOff = deferWhileScreenOff;
+        request.mRefresh = refresh;
+        mRequests.put(owner, request);
+        replan();
+    }
+
+
+    /** Cancel the refresh scheduled for this owner, if any. */
+    public static void cancel(Object owner)
+    {
+        if(mRequests.remove(owner) != null) {
+            replan();
+        }
+    }
+
+
+    ///
+    /// Utility methods
+    ///
+
+    /** Return when a request should wake the planner, given the screen state. */
+    private static long getDeadline(Request request)
+    {
+        if(request.mDeferWhileScreenOff && !mScreenOn) {
+            return Math.max(request.mLatest, mScreenOffTime + MAX_SCREEN_OFF_DELAY);
+        } else {
+            return request.mLatest;
+        }
+    }
+
+
+    /** Set the wakeup for the earliest deadline. */
+    private static void replan()
+    {
+        if(mHandler == null) {
+            mHandler = new Handler();
+        }
+        mHandler.removeCallbacks(mWakeup);
+        if(!ConnectivityMonitor.isConnected()) {
+            // Suspended until the network comes back.
+            return;
+        }
+
+        long wakeup = Long.MAX_VALUE;
+        for(Request request : mRequests.values()) {
+            wakeup = Math.min(wakeup, getDeadline(request));
+        }
+        if(wakeup != Long.MAX_VALUE) {
+            mHandler.postAtTime(mWakeup, wakeup);
+        }
+    }
+
+
+    /** Run every refresh whose window is open, then plan the next wakeup. */
+    private static Runnable mWakeup = new Runnable() {
+        public void run() {
+            long now = SystemClock.uptimeMillis();
+            ArrayList<Runnable> refreshes = new ArrayList<Runnable>();
+            ArrayList<Object> owners = new ArrayList<Object>(mRequests.keySet());
+            for(Object owner : owners) {
+                Request request = mRequests.get(owner);
+                if(request.mEarliest <= now) {
+                    mRequests.remove(owner);
+                    refreshes.add(request.mRefresh);
+                }
+            }
+            if(refreshes.size() > 1) {
+                Log.d(TAG, String.format("Batching %d refreshes", refreshes.size()));
+            }
+
+            // The refreshes may schedule the next ones, so update the plan first.
+            replan();
+            for(Runnable refresh : refreshes) {
+                refresh.run();
+            }
+        }
+    };
+
+
+    private static ConnectivityMonitor.Listener mConnectivityListener =
+        new ConnectivityMonitor.Listener() {
+        public void onConnectivityChanged(boolean connected)
+        {
+            if(connected && !mRequests.isEmpty()) {
+                // Catch up on everything that came due while offline, in one burst.
+                mHandler.removeCallbacks(mWakeup);
+                mHandler.post(mWakeup);
+            } else {
+                replan();
+            }
+        }
+    };
+
+
+    private static BroadcastReceiver mScreenReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent)
+        {
+            if(Intent.ACTION_SCREEN_OFF.equals(intent.getAction())) {
+                mScreenOn = false;
+                mScreenOffTime = SystemClock.uptimeMillis();
+                replan();
+            } else if(Intent.ACTION_SCREEN_ON.equals(intent.getAction())) {
+                // Anything deferred past its deadline runs now.
+                mScreenOn = true;
+                replan();
+            }
+        }
+    };
+}
@@ -44,6 +44,24 @@ class RingBuffer
 
     public native int length();
 
+    /** Copy up to length 16-bit samples into dest at offset.  Return the number copied. */
+    public native int read(short[] dest, int offset, int length);
+
+    /** After running dry, make the reader wait until this many bytes are buffered again. */
+    public native void setRefillLength(int length);
+
+    /** Return the number of times the reader has run dry. */
+    public native int getUnderruns();
+
+    /** Block until at least length bytes are buffered.  Return true if aborted. */
+    public native boolean waitForLength(int length);
+
+    /** Block until at least space bytes can be written.  Return true if aborted. */
+    public native boolean waitForSpace(int space);
+
+    /** Wake any waiting threads, and make all future waits return immediately. */
+    public native void abort();
+
 
     ///
     /// Native interface
@@ -116,8 +116,11 @@ public class SettingsActivity extends PreferenceActivity
 
             case EDIT_SITE_REQUEST:
                 if(resultCode == Activity.RESULT_OK) {
-                	// If we edited the current site, force a reload by the site manager.
+                    // The site's cached documents may be from its old URL.
                     int siteId = SiteActivity.parseSiteUri(data.getData());
+                    Cache.clearSite(siteId, this);
+
+                	// If we edited the current site, force a reload by the site manager.
                     if(siteId == Prefs.getSiteId(this)) {
                     	((NectroidApplication)getApplication()).getSiteManager().refreshCurrentSite();
                     }
@@ -212,6 +215,7 @@ public class SettingsActivity extends PreferenceActivity
                 // Execute the deletion.
                 DbDataHelper wdata = new DbDataHelper(wdb);
                 wdata.deleteSite(mSiteIdToDelete);
+                Cache.clearSite(mSiteIdToDelete, SettingsActivity.this);
 
                 // If we deleted the current site, select some other site.
                 int currentSiteId = Prefs.getSiteId(SettingsActivity.this);
@@ -0,0 +1,210 @@
+// This file is part of Nectroid.
+//
+// Nectroid is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Nectroid is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with Nectroid.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.kvance.Nectroid;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.LayeredSocketFactory;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+
+import android.os.SystemClock;
+
+
+/** The HTTP client shared by all document fetches.
+ *
+ * The queue, streams and oneliner documents all come from the current site's host, so the client
+ * keeps a small pool of keep-alive connections to it instead of connecting (and for https,
+ * handshaking) for every fetch.  Every request has bounded timeouts.
+ *
+ * The connections are made through timing socket factories, which record how long the DNS lookup
+ * and connect took for the request that opened them.
+ */
+class SiteHttpClient
+{
+    private static DefaultHttpClient mClient;
+
+    // Timings for the request running on each thread
+    private static final ThreadLocal<FetchUrl.Timings> mTimings =
+        new ThreadLocal<FetchUrl.Timings>();
+
+    // Timeouts, in milliseconds
+    private static final int CONNECT_TIMEOUT = 15000;
+    private static final int READ_TIMEOUT = 20000;
+    private static final long POOL_TIMEOUT = 10000;
+
+    // Pooled connections.  There are at most three documents in flight at once.
+    private static final int MAX_CONNECTIONS_PER_HOST = 3;
+    private static final int MAX_CONNECTIONS = 4;
+
+    // Pooled connections idle for longer than this have probably been closed by the server.
+    private static final long MAX_IDLE_TIME = 30000;
+
+    private static final int SOCKET_BUFFER_SIZE = 8*1024;
+
+
+    ///
+    /// Public interface
+    ///
+
+    /** Execute a request with the shared client, recording connection timings if it opens a new
+     * connection.
+     *
+     * The caller has to consume the response entity (or abort the request) to return the
+     * connection to the pool.
+     */
+    public static HttpResponse execute(HttpUriRequest request, FetchUrl.Timings timings)
+        throws IOException
+    {
+        DefaultHttpClient client = getClient();
+        client.getConnectionManager().closeIdleConnections(MAX_IDLE_TIME, TimeUnit.MILLISECONDS);
+
+        mTimings.set(timings);
+        try {
+            return client.execute(request);
+        } finally {
+            mTimings.remove();
+        }
+    }
+
+
+    /** Close all pooled connections.
+     *
+     * Call this when changing sites; the next request will start a new pool.
+     */
+    public static synchronized void shutdown()
+    {
+        if(mClient != null) {
+            mClient.getConnectionManager().shutdown();
+            mClient = null;
+        }
+    }
+
+
+    ///
+    /// Utility methods
+    ///
+
+    private static synchronized DefaultHttpClient getClient()
+    {
+        if(mClient == null) {
+            HttpParams params = new BasicHttpParams();
+            HttpConnectionParams.setConnectionTimeout(params, CONNECT_TIMEOUT);
+            HttpConnectionParams.setSoTimeout(params, READ_TIMEOUT);
+            HttpConnectionParams.setSocketBufferSize(params, SOCKET_BUFFER_SIZE);
+            HttpConnectionParams.setStaleCheckingEnabled(params, true);
+            HttpProtocolParams.setUseExpectContinue(params, false);
+            ConnManagerParams.setTimeout(params, POOL_TIMEOUT);
+            ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+            ConnManagerParams.setMaxConnectionsPerRoute(params,
+                    new ConnPerRouteBean(MAX_CONNECTIONS_PER_HOST));
+
+            SchemeRegistry schemes = new SchemeRegistry();
+            schemes.register(new Scheme("http",
+                        new TimedSocketFactory(PlainSocketFactory.getSocketFactory()), 80));
+            schemes.register(new Scheme("https",
+                        new TimedLayeredSocketFactory(SSLSocketFactory.getSocketFactory()), 443));
+
+            ClientConnectionManager manager = new ThreadSafeClientConnManager(params, schemes);
+            mClient = new DefaultHttpClient(manager, params);
+        }
+        return mClient;
+    }
+
+
+    /** Socket factory that times the DNS lookup and connect for the current request.
+     *
+     * The connect time includes the TLS handshake for https.
+     */
+    private static class TimedSocketFactory implements SocketFactory
+    {
+        protected SocketFactory mFactory;
+
+        public TimedSocketFactory(SocketFactory factory)
+        {
+            mFactory = factory;
+        }
+
+        public Socket createSocket() throws IOException
+        {
+            return mFactory.createSocket();
+        }
+
+        public Socket connectSocket(Socket sock, String host, int port, InetAddress localAddress,
+                int localPort, HttpParams params)
+            throws IOException, UnknownHostException, ConnectTimeoutException
+        {
+            FetchUrl.Timings timings = mTimings.get();
+
+            // Resolve the host first so the lookup can be timed on its own.  The factory's own
+            // lookup is then answered from the resolver cache.
+            long start = SystemClock.elapsedRealtime();
+            InetAddress.getByName(host);
+            long resolved = SystemClock.elapsedRealtime();
+            Socket result = mFactory.connectSocket(sock, host, port, localAddress, localPort,
+                    params);
+            long connected = SystemClock.elapsedRealtime();
+
+            if(timings != null) {
+                timings.mNewConnection = true;
+                timings.mDnsMillis = resolved - start;
+                timings.mConnectMillis = connected - resolved;
+            }
+            return result;
+        }
+
+        public boolean isSecure(Socket sock) throws IllegalArgumentException
+        {
+            return mFactory.isSecure(sock);
+        }
+    }
+
+
+    /** Timing socket factory that can also layer TLS over a proxy tunnel. */
+    private static class TimedLayeredSocketFactory extends TimedSocketFactory
+        implements LayeredSocketFactory
+    {
+        public TimedLayeredSocketFactory(LayeredSocketFactory factory)
+        {
+            super(factory);
+        }
+
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose)
+            throws IOException, UnknownHostException
+        {
+            return ((LayeredSocketFactory)mFactory).createSocket(socket, host, port, autoClose);
+        }
+    }
+}
@@ -79,9 +79,6 @@ class SiteManager implements SharedPreferences.OnSharedPreferenceChangeListener
     /** Refresh the current site, notifying all listeners of the change. */
     public void refreshCurrentSite()
     {
-        // Clear the cache.
-        Cache.clear(mContext);
-
         // Get the new site object.
         int siteId = Prefs.getSiteId(mContext);
         mCurrentSite = getSiteFromDb(siteId);
@@ -0,0 +1,198 @@
+// This file is part of Nectroid.
+//
+// Nectroid is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Nectroid is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with Nectroid.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.kvance.Nectroid;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+
+/** Compact binary copy of a parsed document.
+ *
+ * Decoding a snapshot is much quicker than parsing the XML again, so the cache keeps one next to
+ * each document for cold starts.  The layout is:
+ *
+ *   int     MAGIC
+ *   int     VERSION
+ *   int     document ID (Cache.DocId ordinal)
+ *   int     number of strings
+ *   strings each an int length and that many bytes of UTF-8
+ *   ...     the document's own fields, with strings as indexes into the table (-1 for null)
+ *
+ * All values are big-endian.  Each string is stored once, however often it's used.
+ *
+ * Bump VERSION whenever a model changes what it writes.  Snapshots from other versions are
+ * ignored and the XML is parsed instead.
+ */
+class Snapshot
+{
+    public static final int MAGIC = 0x4e534e50; // "NSNP"
+    public static final int VERSION = 1;
+
+
+    /** Builds a snapshot in memory. */
+    public static class Writer
+    {
+        private ByteArrayOutputStream mBodyBytes;
+        private DataOutputStream mBody;
+        private HashMap<String, Integer> mStringIndexes;
+        private ArrayList<String> mStrings;
+
+        public Writer()
+        {
+            mBodyBytes = new ByteArrayOutputStream();
+            mBody = new DataOutputStream(mBodyBytes);
+            mStringIndexes = new HashMap<String, Integer>();
+            mStrings = new ArrayList<String>();
+        }
+
+        public void writeInt(int value) throws IOException
+        {
+            mBody.writeInt(value);
+        }
+
+        public void writeLong(long value) throws IOException
+        {
+            mBody.writeLong(value);
+        }
+
+        public void writeString(String value) throws IOException
+        {
+            if(value == null) {
+                mBody.writeInt(-1);
+            } else {
+                Integer index = mStringIndexes.get(value);
+                if(index == null) {
+                    index = mStrings.size();
+                    mStrings.add(value);
+                    mStringIndexes.put(value, index);
+                }
+                mBody.writeInt(index);
+            }
+        }
+
+        /** Write the finished snapshot for this document. */
+        public void writeTo(OutputStream out, Cache.DocId docId) throws IOException
+        {
+            DataOutputStream dataOut = new DataOutputStream(out);
+            dataOut.writeInt(MAGIC);
+            dataOut.writeInt(VERSION);
+            dataOut.writeInt(docId.ordinal());
+            dataOut.writeInt(mStrings.size());
+            for(String string : mStrings) {
+                byte[] bytes = string.getBytes("UTF-8");
+                dataOut.writeInt(bytes.length);
+                dataOut.write(bytes);
+            }
+            mBody.flush();
+            mBodyBytes.writeTo(dataOut);
+            dataOut.flush();
+        }
+    }
+
+
+    /** Decodes a snapshot from a buffer, usually a memory-mapped file.
+     *
+     * Truncated or corrupt data is reported as an IOException.
+     */
+    public static class Reader
+    {
+        private ByteBuffer mBuffer;
+        private String[] mStrings;
+
+        /** Return a reader for this document's snapshot, or null if the buffer holds a snapshot
+         * for a different document or version.
+         */
+        public static Reader open(ByteBuffer buffer, Cache.DocId docId) throws IOException
+        {
+            Reader reader = new Reader(buffer);
+            if(reader.readInt() != MAGIC || reader.readInt() != VERSION ||
+                    reader.readInt() != docId.ordinal()) {
+                return null;
+            }
+            reader.readStringTable();
+            return reader;
+        }
+
+        private Reader(ByteBuffer buffer)
+        {
+            mBuffer = buffer;
+        }
+
+        public int readInt() throws IOException
+        {
+            try {
+                return mBuffer.getInt();
+            } catch(BufferUnderflowException e) {
+                throw new EOFException("Truncated snapshot");
+            }
+        }
+
+        public long readLong() throws IOException
+        {
+            try {
+                return mBuffer.getLong();
+            } catch(BufferUnderflowException e) {
+                throw new EOFException("Truncated snapshot");
+            }
+        }
+
+        public String readString() throws IOException
+        {
+            int index = readInt();
+            if(index == -1) {
+                return null;
+            } else if(index < 0 || index >= mStrings.length) {
+                throw new IOException(String.format("Bad string index %d in snapshot", index));
+            }
+            return mStrings[index];
+        }
+
+        /** Read a count of items, making sure it's plausible for the remaining data. */
+        public int readCount() throws IOException
+        {
+            int count = readInt();
+            if(count < 0 || count > mBuffer.remaining()) {
+                throw new IOException(String.format("Bad count %d in snapshot", count));
+            }
+            return count;
+        }
+
+        private void readStringTable() throws IOException
+        {
+            mStrings = new String[readCount()];
+            byte[] bytes = new byte[256];
+            for(int i = 0; i < mStrings.length; i++) {
+                int length = readCount();
+                if(length > bytes.length) {
+                    bytes = new byte[length];
+                }
+                try {
+                    mBuffer.get(bytes, 0, length);
+                    mStrings[i] = new String(bytes, 0, length, "UTF-8");
+                } catch(BufferUnderflowException e) {
+                    throw new EOFException("Truncated snapshot");
+                }
+            }
+        }
+    }
+}
@@ -15,23 +15,19 @@
 
 package com.kvance.Nectroid;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 
-import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
+import org.xmlpull.v1.XmlPullParserException;
 
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
-import android.sax.Element;
-import android.sax.ElementListener;
-import android.sax.EndTextElementListener;
-import android.sax.RootElement;
-import android.sax.TextElementListener;
 import android.util.Log;
-import android.util.Xml;
 
 
 /** A stream descriptor */
@@ -112,9 +108,9 @@ class Stream
     private static final String TAG = "NectroidStream";
 
 
-    public static List listFromXml(String xmlData) throws SAXException
+    public static List listFromXml(InputStream xmlStream) throws IOException, SAXException
     {
-        return (new Parser()).parse(xmlData);
+        return (new Parser()).parse(xmlStream);
     }
 
 
@@ -171,13 +167,63 @@ class Stream
     }
 
 
+    /** Read a list written by writeSnapshot(). */
+    public static List listFromSnapshot(Snapshot.Reader reader) throws IOException
+    {
+        int count = reader.readCount();
+        List streams = new List();
+        streams.ensureCapacity(count);
+        for(int i = 0; i < count; i++) {
+            Stream newStream = new Stream();
+            newStream.mId = reader.readInt();
+            String newUrl = reader.readString();
+            newStream.mName = reader.readString();
+            newStream.mCountry = reader.readString();
+            newStream.mBitrate = reader.readInt();
+            int newTypeCode = reader.readInt();
+            newStream.mTypeName = reader.readString();
+
+            if(newUrl != null) {
+                try {
+                    newStream.mUrl = new URL(newUrl);
+                } catch(MalformedURLException e) {
+                    throw new IOException(String.format("Bad stream URL \"%s\" in snapshot",
+                                newUrl));
+                }
+            }
+            if(newTypeCode < 0 || newTypeCode >= Type.values().length) {
+                throw new IOException(String.format("Bad stream type %d in snapshot",
+                            newTypeCode));
+            }
+            newStream.mType = Type.values()[newTypeCode];
+
+            streams.add(newStream);
+        }
+        return streams;
+    }
+
+
+    public static void writeSnapshot(List streams, Snapshot.Writer writer) throws IOException
+    {
+        writer.writeInt(streams.size());
+        for(Stream stream : streams) {
+            writer.writeInt(stream.mId);
+            writer.writeString((stream.mUrl == null) ? null : stream.mUrl.toString());
+            writer.writeString(stream.mName);
+            writer.writeString(stream.mCountry);
+            writer.writeInt(stream.mBitrate);
+            writer.writeInt(stream.mType.ordinal());
+            writer.writeString(stream.mTypeName);
+        }
+    }
+
+
     /*
      * XML parsing stuff
      */
 
     public static class Parser
     {
-        private Stream mNewStream;
         private List mAllStreams;
 
         public Parser()
@@ -191,13 +237,14 @@ class Stream
          * @param value the string to parse as an integer
          * @param description a description of the string to print in an error message
          */
-        public static int parseIntOrMinusOne(String value, String description, String tag)
+        public static int parseIntOrMinusOne(CharSequence value, String description, String tag)
         {
             int result = -1;
             if(value != null) {
-                try {
-                    result = Integer.parseInt(value);
-                } catch(NumberFormatException e) {
+                long decoded = FieldDecoder.decodeInt(value);
+                if(decoded != FieldDecoder.INVALID) {
+                    result = (int)decoded;
+                } else {
                     Log.w(tag, String.format("Could not parse %s \"%s\" as integer", description,
                                 value));
                 }
@@ -207,130 +254,91 @@ class Stream
             return result;
         }
 
-        public static int parseIntOrMinusOne(String value, String description)
+        public static int parseIntOrMinusOne(CharSequence value, String description)
         {
             return parseIntOrMinusOne(value, description, TAG);
         }
 
 
-        private class StreamListener implements ElementListener
+        public List parse(InputStream xmlStream) throws IOException, SAXException
         {
-            @Override
-            public void start(Attributes attributes)
-            {
-                mNewStream = new Stream();
-                String idString = attributes.getValue("id");
-                if(idString != null) {
-                    mNewStream.mId = parseIntOrMinusOne(idString, "stream id");
+            PullParser parser = PullParser.obtain();
+            try {
+                parser.start(xmlStream, "streams");
+                int depth = parser.getDepth();
+                while(parser.nextChild(depth)) {
+                    if(parser.getName().equals("stream")) {
+                        mAllStreams.add(parseStream(parser));
+                    } else {
+                        parser.skip();
+                    }
                 }
+            } catch(XmlPullParserException e) {
+                throw PullParser.wrap(e);
+            } finally {
+                parser.finish();
             }
 
-            @Override
-            public void end()
-            {
-                mAllStreams.add(mNewStream);
-            }
-        }
-
-        private class UrlListener implements EndTextElementListener
-        {
-            @Override
-            public void end(String body)
-            {
-                try {
-                    mNewStream.mUrl = new URL(body);
-                } catch(MalformedURLException e) {
-                    Log.w(TAG, String.format("Malformed stream URL \"%s\"", body));
-                }
-            }
+            return mAllStreams;
         }
 
-        private class NameListener implements EndTextElementListener
-        {
-            @Override
-            public void end(String body)
-            {
-                mNewStream.mName = body;
-            }
-        }
 
-        private class CountryListener implements EndTextElementListener
+        private Stream parseStream(PullParser parser) throws IOException, XmlPullParserException
         {
-            @Override
-            public void end(String body)
-            {
-                mNewStream.mCountry = body;
+            Stream newStream = new Stream();
+            String idString = parser.getAttribute("id");
+            if(idString != null) {
+                newStream.mId = parseIntOrMinusOne(idString, "stream id");
             }
-        }
 
-        private class BitrateListener implements EndTextElementListener
-        {
-            @Override
-            public void end(String body)
-            {
-                mNewStream.mBitrate = parseIntOrMinusOne(body, "stream bitrate");
-            }
-        }
-
-        private class TypeListener implements TextElementListener
-        {
-            @Override
-            public void start(Attributes attributes)
-            {
-                String typeCode = attributes.getValue("v");
-                if(typeCode == null) {
-                    Log.w(TAG, String.format("Stream %d missing type code", mNewStream.mId));
-                    mNewStream.mType = Type.UNKNOWN;
-                } else if(typeCode.equals("M")) {
-                    mNewStream.mType = Type.MP3;
-                } else if(typeCode.equals("O")) {
-                    mNewStream.mType = Type.OGG;
-                } else if(typeCode.equals("A")) {
-                    mNewStream.mType = Type.AAC;
-                } else if(typeCode.equals("S")) {
-                    mNewStream.mType = Type.SHOUTCAST;
+            int depth = parser.getDepth();
+            while(parser.nextChild(depth)) {
+                String name = parser.getName();
+                if(name.equals("url")) {
+                    String body = parser.readText();
+                    try {
+                        newStream.mUrl = new URL(body);
+                    } catch(MalformedURLException e) {
+                        Log.w(TAG, String.format("Malformed stream URL \"%s\"", body));
+                    }
+                } else if(name.equals("name")) {
+                    newStream.mName = parser.readText();
+                } else if(name.equals("country")) {
+                    newStream.mCountry = parser.readText();
+                } else if(name.equals("bitrate")) {
+                    newStream.mBitrate = parseIntOrMinusOne(parser.readChars(), "stream bitrate");
+                } else if(name.equals("type")) {
+                    newStream.mType = parseType(parser.getAttribute("v"), newStream.mId);
+                    String body = parser.readText();
+                    // No need to remember the type name for known types
+                    if(newStream.mType == Type.UNKNOWN) {
+                        newStream.mTypeName = body;
+                    }
                 } else {
-                    Log.w(TAG, String.format("Unknown stream type code \"%s\"", typeCode));
-                    mNewStream.mType = Type.UNKNOWN;
-                }
-            }
-
-            @Override
-            public void end(String body)
-            {
-                // No need to remember the type name for known types
-                if(mNewStream.mType == Type.UNKNOWN) {
-                    mNewStream.mTypeName = body;
+                    parser.skip();
                 }
             }
+            return newStream;
         }
 
 
-        public List parse(String xmlData) throws SAXException
+        private Type parseType(String typeCode, int streamId)
         {
-            RootElement root = new RootElement("streams");
-
-            Element stream = root.getChild("stream");
-            stream.setElementListener(new StreamListener());
-
-            Element url = stream.getChild("url");
-            url.setEndTextElementListener(new UrlListener());
-
-            Element name = stream.getChild("name");
-            name.setEndTextElementListener(new NameListener());
-
-            Element country = stream.getChild("country");
-            country.setEndTextElementListener(new CountryListener());
-
-            Element bitrate = stream.getChild("bitrate");
-            bitrate.setEndTextElementListener(new BitrateListener());
-
-            Element type = stream.getChild("type");
-            type.setTextElementListener(new TypeListener());
-
-            Xml.parse(xmlData, root.getContentHandler());
-
-            return mAllStreams;
+            if(typeCode == null) {
+                Log.w(TAG, String.format("Stream %d missing type code", streamId));
+                return Type.UNKNOWN;
+            } else if(typeCode.equals("M")) {
+                return Type.MP3;
+            } else if(typeCode.equals("O")) {
+                return Type.OGG;
+            } else if(typeCode.equals("A")) {
+                return Type.AAC;
+            } else if(typeCode.equals("S")) {
+                return Type.SHOUTCAST;
+            } else {
+                Log.w(TAG, String.format("Unknown stream type code \"%s\"", typeCode));
+                return Type.UNKNOWN;
+            }
         }
     }
 }
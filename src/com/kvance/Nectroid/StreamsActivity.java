@@ -85,7 +85,7 @@ public class StreamsActivity extends ListActivity implements BackgroundTaskListe
         }
         if(mStreams == null || mStreams.size() == 0) {
             mEmptyTextView.setText(R.string.loading_streams);
-            mStreamsManager.update(this, true);
+            mStreamsManager.update(this, BaseDocManager.UpdateMode.STALE_WHILE_REVALIDATE);
         }
 
         // Set up the list GUI.
@@ -150,14 +150,19 @@ public class StreamsActivity extends ListActivity implements BackgroundTaskListe
         setProgressBarIndeterminateVisibility(true);
     }
 
-    public void onTaskFinished(Object manager, Object result)
+    public void onTaskFinished(Object manager, Object result, boolean isStale)
     {
         mStreams = (Stream.List)result;
         mListAdapter.setStreams(mStreams);
-        setProgressBarIndeterminateVisibility(false);
+        setProgressBarIndeterminateVisibility(isStale);
         mEmptyTextView.setText(R.string.no_streams);
     }
 
+    public void onTaskRevalidated(Object manager)
+    {
+        setProgressBarIndeterminateVisibility(false);
+    }
+
     public void onTaskCancelled(Object manager)
     {
         setProgressBarIndeterminateVisibility(false);
@@ -15,6 +15,8 @@
 
 package com.kvance.Nectroid;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
 
 import org.xml.sax.SAXException;
@@ -42,11 +44,10 @@ public class StreamsManager extends CachedDocManager<Stream.List>
 
     /** Parse an XML file into a Stream list. */
     @Override
-    public Stream.List parseDocument(String xmlData, Context context)
+    public Stream.List parseDocument(InputStream xmlStream, Context context) throws IOException
     {
         try {
-            mStreams = Stream.listFromXml(xmlData);
-            return mStreams;
+            return Stream.listFromXml(xmlStream);
         } catch(SAXException e) {
             Log.w(TAG, "Failed to parse streams.", e);
             return null;
@@ -54,6 +55,39 @@ public class StreamsManager extends CachedDocManager<Stream.List>
     }
 
 
+    /** Make the parsed streams current. */
+    @Override
+    public Stream.List installDocument(Stream.List result, Context context)
+    {
+        mStreams = result;
+        return result;
+    }
+
+
+    /** Return the streams parsed from the cached document. */
+    @Override
+    public Stream.List getParsedDocument()
+    {
+        return mStreams;
+    }
+
+
+    /** Load the streams from a snapshot of the cached document. */
+    @Override
+    public Stream.List readSnapshot(Snapshot.Reader reader, Context context) throws IOException
+    {
+        return Stream.listFromSnapshot(reader);
+    }
+
+
+    @Override
+    public boolean writeSnapshot(Stream.List result, Snapshot.Writer writer) throws IOException
+    {
+        Stream.writeSnapshot(result, writer);
+        return true;
+    }
+
+
     /** Update the streams database with this new info. */
     @Override
     public void onParserSuccess(Stream.List result, Context context)
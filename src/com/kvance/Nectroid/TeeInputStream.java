@@ -0,0 +1,115 @@
+// This file is part of Nectroid.
+//
+// Nectroid is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Nectroid is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with Nectroid.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.kvance.Nectroid;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+
+/** An InputStream that copies everything read from it to an OutputStream.
+ *
+ * Used to write a document to the cache while it's being parsed.  Closing this stream doesn't
+ * close either of the other two.
+ */
+class TeeInputStream extends FilterInputStream
+{
+    private OutputStream mCopy;
+    private long mLength;
+
+
+    public TeeInputStream(InputStream in, OutputStream copy)
+    {
+        super(in);
+        mCopy = copy;
+    }
+
+
+    ///
+    /// Public interface
+    ///
+
+    /** Return the number of bytes read so far. */
+    public long getLength()
+    {
+        return mLength;
+    }
+
+
+    /** Read (and copy) whatever is left in the stream. */
+    public void drain() throws IOException
+    {
+        byte[] buffer = new byte[4*1024];
+        while(read(buffer, 0, buffer.length) != -1) {
+        }
+    }
+
+
+    ///
+    /// InputStream methods
+    ///
+
+    @Override
+    public int read() throws IOException
+    {
+        int result = in.read();
+        if(result != -1) {
+            mCopy.write(result);
+            mLength++;
+        }
+        return result;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException
+    {
+        int result = in.read(buffer, offset, length);
+        if(result > 0) {
+            mCopy.write(buffer, offset, result);
+            mLength += result;
+        }
+        return result;
+    }
+
+    @Override
+    public long skip(long n) throws IOException
+    {
+        // Skipped bytes still have to be copied.
+        byte[] buffer = new byte[(int)Math.min(n, 4*1024)];
+        long skipped = 0;
+        while(skipped < n) {
+            int result = read(buffer, 0, (int)Math.min(n - skipped, buffer.length));
+            if(result == -1) {
+                break;
+            }
+            skipped += result;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+        return false;
+    }
+
+    @Override
+    public void close()
+    {
+        // The caller closes the source and the copy.
+    }
+}
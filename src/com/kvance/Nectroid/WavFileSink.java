@@ -0,0 +1,162 @@
+// This file is part of Nectroid.
+//
+// Nectroid is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Nectroid is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with Nectroid.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.kvance.Nectroid;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import android.util.Log;
+
+
+/** AudioSink that records its audio to a WAV file, for checking the decoder's output.
+ *
+ * A WAV file can only hold one format, so each format change after the first starts a new file,
+ * named after the original with a numeric suffix.
+ */
+class WavFileSink implements AudioSink
+{
+    private File mFile;
+    private int mFileCount;
+    private RandomAccessFile mOutput;
+    private int mDataLength;
+    private byte[] mBytes;
+
+    private static final int HEADER_SIZE = 44;
+
+    private static final String TAG = "WavFileSink";
+
+
+    WavFileSink(File file)
+    {
+        mFile = file;
+        mBytes = new byte[0];
+    }
+
+
+    ///
+    /// AudioSink
+    ///
+
+    public boolean open(int sampleRate, int channels)
+    {
+        close();
+
+        File file = mFile;
+        if(mFileCount > 0) {
+            file = new File(mFile.getPath() + "." + mFileCount);
+        }
+        mFileCount++;
+
+        try {
+            mOutput = new RandomAccessFile(file, "rw");
+            mOutput.setLength(0);
+            mDataLength = 0;
+
+            // Write the header now.  The lengths are filled in by close().
+            byte[] header = new byte[HEADER_SIZE];
+            putAscii(header, 0, "RIFF");
+            putAscii(header, 8, "WAVE");
+            putAscii(header, 12, "fmt ");
+            putInt(header, 16, 16);                         // fmt chunk size
+            putShort(header, 20, 1);                        // PCM
+            putShort(header, 22, channels);
+            putInt(header, 24, sampleRate);
+            putInt(header, 28, sampleRate * channels * 2);  // byte rate
+            putShort(header, 32, channels * 2);             // block align
+            putShort(header, 34, 16);                       // bits per sample
+            putAscii(header, 36, "data");
+            mOutput.write(header);
+        } catch(IOException e) {
+            Log.e(TAG, "Failed to open " + file, e);
+            close();
+            return false;
+        }
+        return true;
+    }
+
+
+    public int write(short[] samples, int offset, int length)
+    {
+        if(mOutput == null) {
+            Log.e(TAG, "Tried to write to a closed WAV file");
+            return -1;
+        }
+
+        if(mBytes.length < length * 2) {
+            mBytes = new byte[length * 2];
+        }
+        for(int i = 0; i < length; i++) {
+            putShort(mBytes, i * 2, samples[offset + i]);
+        }
+
+        try {
+            mOutput.write(mBytes, 0, length * 2);
+        } catch(IOException e) {
+            Log.e(TAG, "Failed to write samples", e);
+            return -1;
+        }
+        mDataLength += length * 2;
+        return length;
+    }
+
+
+    public void close()
+    {
+        if(mOutput != null) {
+            try {
+                // Fill in the RIFF and data chunk lengths.
+                byte[] length = new byte[4];
+                putInt(length, 0, HEADER_SIZE - 8 + mDataLength);
+                mOutput.seek(4);
+                mOutput.write(length);
+                putInt(length, 0, mDataLength);
+                mOutput.seek(HEADER_SIZE - 4);
+                mOutput.write(length);
+                mOutput.close();
+            } catch(IOException e) {
+                Log.e(TAG, "Failed to finish WAV file", e);
+            }
+            mOutput = null;
+        }
+    }
+
+
+    ///
+    /// Utility methods
+    ///
+
+    private static void putAscii(byte[] dest, int offset, String value)
+    {
+        for(int i = 0; i < value.length(); i++) {
+            dest[offset + i] = (byte)value.charAt(i);
+        }
+    }
+
+    /** Store a little-endian 16-bit value. */
+    private static void putShort(byte[] dest, int offset, int value)
+    {
+        dest[offset] = (byte)value;
+        dest[offset + 1] = (byte)(value >> 8);
+    }
+
+    /** Store a little-endian 32-bit value. */
+    private static void putInt(byte[] dest, int offset, int value)
+    {
+        putShort(dest, offset, value);
+        putShort(dest, offset + 2, value >> 16);
+    }
+}
@@ -0,0 +1,231 @@
+// This file is part of Nectroid.
+//
+// Nectroid is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Nectroid is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with Nectroid.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.kvance.Nectroid;
+
+import java.lang.reflect.Method;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+
+
+/** Times FieldDecoder against the SimpleDateFormat and String.split() code it replaced, and
+ * counts the bytes each allocates.
+ *
+ * FieldDecoder only needs java.util, so this runs on a desktop JVM:
+ *
+ *     $ javac -d /tmp/fieldbench src/com/kvance/Nectroid/FieldDecoder.java \
+ *           tests/src/com/kvance/Nectroid/FieldDecoderBenchmark.java
+ *     $ java -cp /tmp/fieldbench com.kvance.Nectroid.FieldDecoderBenchmark
+ *
+ * The timestamps look like a playlist's history: a few requests in each hour.  Allocations are
+ * read from com.sun.management.ThreadMXBean, through reflection so this still builds with the
+ * rest of the tests; on a JVM without it they're reported as "?".
+ */
+public class FieldDecoderBenchmark
+{
+    private static final int NUM_VALUES = 1000;
+    private static final int ROUNDS = 200;
+
+
+    /** Nanoseconds and bytes allocated per value in a timed loop. */
+    private static class Cost
+    {
+        public long mNanos;
+        public long mBytes;
+    }
+
+
+    // ThreadMXBean.getThreadAllocatedBytes(long), or null if this JVM doesn't have it
+    private static Object mThreadBean;
+    private static Method mGetAllocatedBytes;
+
+
+    public static void main(String[] args) throws ParseException
+    {
+        String[] timestamps = new String[NUM_VALUES];
+        String[] durations = new String[NUM_VALUES];
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(2012, Calendar.MARCH, 4, 21, 13, 45);
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        for(int i = 0; i < NUM_VALUES; i++) {
+            timestamps[i] = dateFormat.format(calendar.getTime());
+            calendar.add(Calendar.SECOND, -797);
+            durations[i] = String.format("%d:%02d", i % 11, (i * 7) % 60);
+        }
+
+        // Check they agree before timing them.
+        FieldDecoder decoder = new FieldDecoder();
+        for(int i = 0; i < NUM_VALUES; i++) {
+            if(decoder.decodeTimestamp(timestamps[i]) !=
+                    dateFormat.parse(timestamps[i]).getTime() ||
+                    FieldDecoder.decodeDuration(durations[i]) != splitDuration(durations[i])) {
+                throw new AssertionError("Mismatch at " + i);
+            }
+        }
+
+        findAllocationCounter();
+
+        // Run everything twice, and report the second run after the JIT has warmed up.
+        for(int run = 0; run < 2; run++) {
+            Cost sdf = timeSimpleDateFormat(timestamps);
+            Cost decoded = timeDecodeTimestamp(timestamps);
+            Cost split = timeSplitDuration(durations);
+            Cost decodedDuration = timeDecodeDuration(durations);
+            if(run == 1) {
+                report("timestamp", "SimpleDateFormat", sdf, "decodeTimestamp", decoded);
+                report("duration", "split+parseInt", split, "decodeDuration", decodedDuration);
+            }
+        }
+    }
+
+
+    ///
+    /// Timed loops; each returns its cost per value
+    ///
+
+    private static Cost timeSimpleDateFormat(String[] values) throws ParseException
+    {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        long sum = 0;
+        long startBytes = allocatedBytes();
+        long start = System.nanoTime();
+        for(int round = 0; round < ROUNDS; round++) {
+            for(String value : values) {
+                sum += dateFormat.parse(value).getTime();
+            }
+        }
+        return perValue(start, startBytes, values.length, sum);
+    }
+
+
+    private static Cost timeDecodeTimestamp(String[] values)
+    {
+        FieldDecoder decoder = new FieldDecoder();
+        long sum = 0;
+        long startBytes = allocatedBytes();
+        long start = System.nanoTime();
+        for(int round = 0; round < ROUNDS; round++) {
+            for(String value : values) {
+                sum += decoder.decodeTimestamp(value);
+            }
+        }
+        return perValue(start, startBytes, values.length, sum);
+    }
+
+
+    private static Cost timeSplitDuration(String[] values)
+    {
+        long sum = 0;
+        long startBytes = allocatedBytes();
+        long start = System.nanoTime();
+        for(int round = 0; round < ROUNDS; round++) {
+            for(String value : values) {
+                sum += splitDuration(value);
+            }
+        }
+        return perValue(start, startBytes, values.length, sum);
+    }
+
+
+    private static Cost timeDecodeDuration(String[] values)
+    {
+        long sum = 0;
+        long startBytes = allocatedBytes();
+        long start = System.nanoTime();
+        for(int round = 0; round < ROUNDS; round++) {
+            for(String value : values) {
+                sum += FieldDecoder.decodeDuration(value);
+            }
+        }
+        return perValue(start, startBytes, values.length, sum);
+    }
+
+
+    ///
+    /// Utility methods
+    ///
+
+    /** The song length parsing from before FieldDecoder. */
+    private static long splitDuration(String value)
+    {
+        String[] minAndSec = value.split(":", 2);
+        return 60 * Integer.parseInt(minAndSec[0]) + Integer.parseInt(minAndSec[1]);
+    }
+
+
+    private static Cost perValue(long start, long startBytes, int numValues, long sum)
+    {
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - startBytes;
+        if(sum == 42) {
+            // Keep the results alive.
+            System.out.println();
+        }
+
+        Cost cost = new Cost();
+        long count = (long)ROUNDS * numValues;
+        cost.mNanos = elapsed / count;
+        cost.mBytes = (startBytes < 0) ? -1 : allocated / count;
+        return cost;
+    }
+
+
+    /** Look up the allocation counter, if this JVM has one. */
+    private static void findAllocationCounter()
+    {
+        try {
+            Class<?> factory = Class.forName("java.lang.management.ManagementFactory");
+            mThreadBean = factory.getMethod("getThreadMXBean").invoke(null);
+            Class<?> beanClass = Class.forName("com.sun.management.ThreadMXBean");
+            mGetAllocatedBytes = beanClass.getMethod("getThreadAllocatedBytes", long.class);
+            if(allocatedBytes() < 0) {
+                mGetAllocatedBytes = null;
+            }
+        } catch(Exception e) {
+            mGetAllocatedBytes = null;
+        }
+    }
+
+
+    /** Return the bytes this thread has allocated so far, or -1 if that isn't known. */
+    private static long allocatedBytes()
+    {
+        if(mGetAllocatedBytes == null) {
+            return -1;
+        }
+        try {
+            long id = Thread.currentThread().getId();
+            return (Long)mGetAllocatedBytes.invoke(mThreadBean, id);
+        } catch(Exception e) {
+            return -1;
+        }
+    }
+
+
+    private static void report(String what, String oldName, Cost oldCost, String newName,
+            Cost newCost)
+    {
+        System.out.println(String.format("%-10s %-17s %5d ns %6s B   %-16s %5d ns %6s B   %.1fx",
+                    what, oldName, oldCost.mNanos, bytes(oldCost), newName, newCost.mNanos,
+                    bytes(newCost), (double)oldCost.mNanos / newCost.mNanos));
+    }
+
+
+    private static String bytes(Cost cost)
+    {
+        return (cost.mBytes < 0) ? "?" : Long.toString(cost.mBytes);
+    }
+}
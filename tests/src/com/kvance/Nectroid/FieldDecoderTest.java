@@ -0,0 +1,125 @@
+// This file is part of Nectroid.
+//
+// Nectroid is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Nectroid is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with Nectroid.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.kvance.Nectroid;
+
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+
+
+public class FieldDecoderTest extends TestCase
+{
+    private FieldDecoder mDecoder;
+    private SimpleDateFormat mDateFormat;
+
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        mDecoder = new FieldDecoder();
+        mDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    }
+
+
+    public void testTimestampMatchesSimpleDateFormat() throws Exception
+    {
+        String[] values = {
+            "2012-03-04 21:13:45",
+            "2012-03-04 21:59:59",
+            "2012-03-04 22:00:00",
+            "1999-12-31 23:59:59",
+            "2000-02-29 12:00:00",
+        };
+        for(String value : values) {
+            assertEquals(value, mDateFormat.parse(value).getTime(),
+                    mDecoder.decodeTimestamp(value));
+        }
+    }
+
+
+    public void testTimestampRollsOverLikeLenientFormat() throws Exception
+    {
+        // Out of range fields carry into the next one, as they did with SimpleDateFormat.
+        String value = "2012-02-30 24:61:00";
+        assertEquals(mDateFormat.parse(value).getTime(), mDecoder.decodeTimestamp(value));
+    }
+
+
+    public void testTimestampFollowsTimeZoneChanges() throws Exception
+    {
+        String value = "2012-03-04 21:13:45";
+        TimeZone original = TimeZone.getDefault();
+        try {
+            TimeZone.setDefault(TimeZone.getTimeZone("America/Toronto"));
+            mDecoder.checkTimeZone();
+            long toronto = mDecoder.decodeTimestamp(value);
+
+            // The hour is remembered, but not across a change of zone.
+            TimeZone.setDefault(TimeZone.getTimeZone("Europe/Helsinki"));
+            mDecoder.checkTimeZone();
+            SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+            assertEquals(dateFormat.parse(value).getTime(), mDecoder.decodeTimestamp(value));
+            assertEquals(7 * 3600 * 1000L, toronto - mDecoder.decodeTimestamp(value));
+        } finally {
+            TimeZone.setDefault(original);
+        }
+    }
+
+
+    /** Unlike SimpleDateFormat, every field must be zero padded, with nothing around it. */
+    public void testTimestampIsStrictAboutLayout() throws Exception
+    {
+        String[] values = {
+            "2012-3-4 21:13:45",        // SimpleDateFormat accepts this
+            "2012-03-04 9:13:45",       // and this
+            "2012-03-04 21:13:45 CET",  // and ignores the trailing text
+            " 2012-03-04 21:13:45",
+            "2012-03-04T21:13:45",
+            "2012/03/04 21:13:45",
+            "2012-03-04 21:13:4x",
+            "",
+        };
+        for(String value : values) {
+            assertEquals(value, FieldDecoder.INVALID, mDecoder.decodeTimestamp(value));
+        }
+    }
+
+
+    public void testDuration()
+    {
+        assertEquals(342, FieldDecoder.decodeDuration("5:42"));
+        assertEquals(59, FieldDecoder.decodeDuration("0:59"));
+        assertEquals(6000, FieldDecoder.decodeDuration("100:00"));
+        assertEquals(FieldDecoder.INVALID, FieldDecoder.decodeDuration(""));
+        assertEquals(FieldDecoder.INVALID, FieldDecoder.decodeDuration("5"));
+        assertEquals(FieldDecoder.INVALID, FieldDecoder.decodeDuration("5:"));
+        assertEquals(FieldDecoder.INVALID, FieldDecoder.decodeDuration("-1:30"));
+        assertEquals(FieldDecoder.INVALID, FieldDecoder.decodeDuration("1:3x"));
+    }
+
+
+    public void testInt()
+    {
+        assertEquals(0, FieldDecoder.decodeInt("0"));
+        assertEquals(-17, FieldDecoder.decodeInt("-17"));
+        assertEquals(Integer.MAX_VALUE, FieldDecoder.decodeInt("2147483647"));
+        assertEquals(Integer.MIN_VALUE, FieldDecoder.decodeInt("-2147483648"));
+        assertEquals(FieldDecoder.INVALID, FieldDecoder.decodeInt("2147483648"));
+        assertEquals(FieldDecoder.INVALID, FieldDecoder.decodeInt("-"));
+        assertEquals(FieldDecoder.INVALID, FieldDecoder.decodeInt("12a"));
+    }
+}
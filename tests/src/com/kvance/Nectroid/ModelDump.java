@@ -0,0 +1,121 @@
+// This file is part of Nectroid.
+//
+// Nectroid is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Nectroid is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with Nectroid.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.kvance.Nectroid;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/** Writes parsed documents out as lines of text, so two parsers' results can be compared. */
+class ModelDump
+{
+    ///
+    /// Lines for single items
+    ///
+
+    public static String idString(int id, String string)
+    {
+        return id + ":" + quote(string);
+    }
+
+
+    public static String entry(int id, int length, String title, List<String> artists,
+            String requester, long requestTime)
+    {
+        return String.format("entry id=%d length=%d title=%s artists=%s requester=%s " +
+                "requestTime=%d", id, length, quote(title), artists, requester, requestTime);
+    }
+
+
+    public static String stream(int id, URL url, String name, String country, int bitrate,
+            String type, String typeName)
+    {
+        return String.format("stream id=%d url=%s name=%s country=%s bitrate=%d type=%s " +
+                "typeName=%s", id, url, quote(name), quote(country), bitrate, type,
+                quote(typeName));
+    }
+
+
+    public static String oneLiner(long time, String author, String flag, String message)
+    {
+        return String.format("oneliner time=%d author=%s flag=%s message=%s", time,
+                quote(author), quote(flag), quote(message));
+    }
+
+
+    ///
+    /// Whole documents from the app's parsers
+    ///
+
+    public static List<String> of(Playlist playlist)
+    {
+        ArrayList<String> lines = new ArrayList<String>();
+        lines.add("timeleft " + playlist.getTimeLeft());
+        lines.add("now " + of(playlist.getCurrentEntry()));
+        for(Playlist.Entry entry : playlist.getQueue()) {
+            lines.add("queue " + of(entry));
+        }
+        for(Playlist.Entry entry : playlist.getHistory()) {
+            lines.add("history " + of(entry));
+        }
+        return lines;
+    }
+
+
+    public static List<String> of(Stream.List streams)
+    {
+        ArrayList<String> lines = new ArrayList<String>();
+        for(Stream s : streams) {
+            lines.add(stream(s.getId(), s.getUrl(), s.getName(), s.getCountry(), s.getBitrate(),
+                        s.getType().name(), s.getSavedTypeName()));
+        }
+        return lines;
+    }
+
+
+    public static List<String> of(OneLiner.List oneLiners)
+    {
+        ArrayList<String> lines = new ArrayList<String>();
+        for(OneLiner o : oneLiners) {
+            lines.add(oneLiner(o.getTime().getTime(), o.getAuthor(), o.getFlag(),
+                        o.getMessage()));
+        }
+        return lines;
+    }
+
+
+    ///
+    /// Utility methods
+    ///
+
+    private static String of(Playlist.Entry entry)
+    {
+        ArrayList<String> artists = new ArrayList<String>();
+        for(Playlist.IdString artist : entry.getArtists()) {
+            artists.add(idString(artist.getId(), artist.getString()));
+        }
+        Playlist.IdString requester = entry.getRequester();
+        return entry(entry.getId(), entry.getLength(), entry.getTitle(), artists,
+                idString(requester.getId(), requester.getString()), entry.getRequestTime());
+    }
+
+
+    private static String quote(String s)
+    {
+        return (s == null) ? "null" : "\"" + s + "\"";
+    }
+}
@@ -0,0 +1,157 @@
+// This file is part of Nectroid.
+//
+// Nectroid is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Nectroid is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with Nectroid.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.kvance.Nectroid;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+
+/** Times the old SAX parsers against the pull parsers on the fixtures in assets/.
+ *
+ * The documents are read into memory first, so only the parsing is timed.  Results go to the
+ * log with the tag NectroidParserBenchmark:
+ *
+ *     adb shell am instrument -w -e class com.kvance.Nectroid.ParserBenchmark \
+ *         com.kvance.Nectroid.tests/android.test.InstrumentationTestRunner
+ *     adb logcat -d -s NectroidParserBenchmark
+ */
+public class ParserBenchmark extends InstrumentationTestCase
+{
+    // Parses before timing starts, and parses timed
+    private static final int WARMUP = 50;
+    private static final int ITERATIONS = 500;
+
+    // The same, for the compo-night playlist with hundreds of entries
+    private static final int LARGE_WARMUP = 5;
+    private static final int LARGE_ITERATIONS = 50;
+
+    private static final String TAG = "NectroidParserBenchmark";
+
+
+    private interface Parse
+    {
+        void run(InputStream xmlStream) throws Exception;
+    }
+
+
+    public void testPlaylist() throws Exception
+    {
+        comparePlaylists("playlist.xml", WARMUP, ITERATIONS);
+    }
+
+
+    /** A long queue and history, like a compo night's. */
+    public void testLargePlaylist() throws Exception
+    {
+        comparePlaylists("playlist-large.xml", LARGE_WARMUP, LARGE_ITERATIONS);
+    }
+
+
+    public void testStreams() throws Exception
+    {
+        compare("streams.xml", new Parse() {
+            public void run(InputStream xmlStream) throws Exception {
+                SaxReferenceParsers.parseStreams(xmlStream);
+            }
+        }, new Parse() {
+            public void run(InputStream xmlStream) throws Exception {
+                Stream.listFromXml(xmlStream);
+            }
+        }, WARMUP, ITERATIONS);
+    }
+
+
+    public void testOneLiners() throws Exception
+    {
+        compare("oneliner.xml", new Parse() {
+            public void run(InputStream xmlStream) throws Exception {
+                SaxReferenceParsers.parseOneLiners(xmlStream);
+            }
+        }, new Parse() {
+            public void run(InputStream xmlStream) throws Exception {
+                OneLiner.listFromXml(xmlStream);
+            }
+        }, WARMUP, ITERATIONS);
+    }
+
+
+    ///
+    /// Utility methods
+    ///
+
+    private void comparePlaylists(String fixture, int warmup, int iterations) throws Exception
+    {
+        final InternPool pool = new InternPool();
+        compare(fixture, new Parse() {
+            public void run(InputStream xmlStream) throws Exception {
+                SaxReferenceParsers.parsePlaylist(xmlStream);
+            }
+        }, new Parse() {
+            public void run(InputStream xmlStream) throws Exception {
+                new Playlist(xmlStream, new Date(0), pool);
+            }
+        }, warmup, iterations);
+    }
+
+
+    private void compare(String fixture, Parse sax, Parse pull, int warmup, int iterations)
+        throws Exception
+    {
+        byte[] document = read(fixture);
+        long saxNanos = time(document, sax, warmup, iterations);
+        long pullNanos = time(document, pull, warmup, iterations);
+        Log.i(TAG, String.format("%s: SAX %d us, pull %d us per parse (%.2fx)", fixture,
+                    saxNanos / 1000, pullNanos / 1000, (double)saxNanos / pullNanos));
+    }
+
+
+    /** Return the mean nanoseconds per parse. */
+    private static long time(byte[] document, Parse parse, int warmup, int iterations)
+        throws Exception
+    {
+        for(int i = 0; i < warmup; i++) {
+            parse.run(new ByteArrayInputStream(document));
+        }
+        long start = System.nanoTime();
+        for(int i = 0; i < iterations; i++) {
+            parse.run(new ByteArrayInputStream(document));
+        }
+        return (System.nanoTime() - start) / iterations;
+    }
+
+
+    private byte[] read(String fixture) throws IOException
+    {
+        InputStream in = getInstrumentation().getContext().getAssets().open(fixture);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
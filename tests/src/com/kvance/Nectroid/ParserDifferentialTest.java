@@ -0,0 +1,91 @@
+// This file is part of Nectroid.
+//
+// Nectroid is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Nectroid is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with Nectroid.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.kvance.Nectroid;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.List;
+
+import android.test.InstrumentationTestCase;
+
+
+/** Checks that the pull parsers read the fixtures in assets/ the same as the old SAX parsers. */
+public class ParserDifferentialTest extends InstrumentationTestCase
+{
+    public void testPlaylist() throws Exception
+    {
+        List<String> expected = SaxReferenceParsers.parsePlaylist(open("playlist.xml"));
+        Playlist playlist = new Playlist(open("playlist.xml"), new Date(0));
+        assertLinesEqual(expected, ModelDump.of(playlist));
+    }
+
+
+    public void testPlaylistWithWarmPool() throws Exception
+    {
+        // The second parse gets its names from the intern pool.
+        List<String> expected = SaxReferenceParsers.parsePlaylist(open("playlist.xml"));
+        InternPool pool = new InternPool();
+        new Playlist(open("playlist.xml"), new Date(0), pool);
+        Playlist playlist = new Playlist(open("playlist.xml"), new Date(0), pool);
+        assertLinesEqual(expected, ModelDump.of(playlist));
+    }
+
+
+    public void testLargePlaylist() throws Exception
+    {
+        // More distinct names than the intern pool holds, so some are evicted and parsed again.
+        List<String> expected = SaxReferenceParsers.parsePlaylist(open("playlist-large.xml"));
+        InternPool pool = new InternPool();
+        new Playlist(open("playlist-large.xml"), new Date(0), pool);
+        Playlist playlist = new Playlist(open("playlist-large.xml"), new Date(0), pool);
+        assertLinesEqual(expected, ModelDump.of(playlist));
+    }
+
+
+    public void testStreams() throws Exception
+    {
+        List<String> expected = SaxReferenceParsers.parseStreams(open("streams.xml"));
+        assertLinesEqual(expected, ModelDump.of(Stream.listFromXml(open("streams.xml"))));
+    }
+
+
+    public void testOneLiners() throws Exception
+    {
+        List<String> expected = SaxReferenceParsers.parseOneLiners(open("oneliner.xml"));
+        assertLinesEqual(expected, ModelDump.of(OneLiner.listFromXml(open("oneliner.xml"))));
+    }
+
+
+    ///
+    /// Utility methods
+    ///
+
+    private InputStream open(String fixture) throws IOException
+    {
+        return getInstrumentation().getContext().getAssets().open(fixture);
+    }
+
+
+    private static void assertLinesEqual(List<String> expected, List<String> actual)
+    {
+        int count = Math.min(expected.size(), actual.size());
+        for(int i = 0; i < count; i++) {
+            assertEquals("line " + i, expected.get(i), actual.get(i));
+        }
+        assertEquals("number of lines", expected.size(), actual.size());
+    }
+}
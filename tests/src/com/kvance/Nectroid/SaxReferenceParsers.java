@@ -0,0 +1,499 @@
+// This file is part of Nectroid.
+//
+// Nectroid is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Nectroid is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with Nectroid.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.kvance.Nectroid;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+
+import android.sax.Element;
+import android.sax.ElementListener;
+import android.sax.EndElementListener;
+import android.sax.EndTextElementListener;
+import android.sax.RootElement;
+import android.sax.StartElementListener;
+import android.sax.TextElementListener;
+import android.util.Xml;
+
+
+/** The android.sax parsers the app used before the pull parsers.
+ *
+ * They're kept as a reference to check the pull parsers against, and to compare their speed.
+ * Instead of building the models (whose fields are private), they write each item out with
+ * ModelDump.  The parsing is otherwise as it was.
+ */
+class SaxReferenceParsers
+{
+    ///
+    /// Shared helpers
+    ///
+
+    private static int parseIntOrMinusOne(String value)
+    {
+        int result = -1;
+        if(value != null) {
+            try {
+                result = Integer.parseInt(value);
+            } catch(NumberFormatException e) {
+                // The old parsers logged this.
+            }
+        }
+        return result;
+    }
+
+
+    private static int parseSongLengthOrMinusOne(String value)
+    {
+        int result = -1;
+        if(value != null) {
+            String[] minAndSec = value.split(":", 2);
+            if(minAndSec.length == 2) {
+                int minutes = parseIntOrMinusOne(minAndSec[0]);
+                int seconds = parseIntOrMinusOne(minAndSec[1]);
+                if(minutes > -1 && seconds > -1) {
+                    result = 60*minutes + seconds;
+                }
+            }
+        }
+        return result;
+    }
+
+
+    ///
+    /// Playlist
+    ///
+
+    public static List<String> parsePlaylist(InputStream xmlStream)
+        throws IOException, SAXException
+    {
+        return new PlaylistParser().parse(xmlStream);
+    }
+
+
+    private static class PlaylistParser
+    {
+        private SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+        private int mTimeLeft;
+        private String mCurrentEntry = ModelDump.entry(0, 0, "UNKNOWN", new ArrayList<String>(),
+                ModelDump.idString(0, "UNKNOWN"), 0L);
+        private ArrayList<String> mQueue = new ArrayList<String>();
+        private ArrayList<String> mHistory = new ArrayList<String>();
+
+        // The entry being parsed
+        private int mId;
+        private int mLength;
+        private String mTitle;
+        private ArrayList<String> mArtists;
+        private String mRequester;
+        private long mRequestTime;
+
+
+        private String finishEntry()
+        {
+            return ModelDump.entry(mId, mLength, mTitle, mArtists, mRequester, mRequestTime);
+        }
+
+
+        private class EntryStartListener implements StartElementListener
+        {
+            public void start(Attributes attributes)
+            {
+                mId = 0;
+                mLength = 0;
+                mTitle = "UNKNOWN";
+                mArtists = new ArrayList<String>();
+                mRequester = ModelDump.idString(0, "UNKNOWN");
+                mRequestTime = 0L;
+                String dateString = attributes.getValue("request_time");
+                if(dateString != null) {
+                    try {
+                        mRequestTime = dateFormat.parse(dateString).getTime();
+                    } catch(ParseException e) {
+                        // The old parser logged this.
+                    }
+                }
+            }
+        }
+
+        private class TimeLeftListener implements EndTextElementListener
+        {
+            public void end(String body)
+            {
+                mTimeLeft = parseIntOrMinusOne(body);
+            }
+        }
+
+        private class ArtistTextListener implements TextElementListener
+        {
+            private int mArtistId = -1;
+
+            public void start(Attributes attributes)
+            {
+                mArtistId = parseIntOrMinusOne(attributes.getValue("id"));
+            }
+
+            public void end(String body)
+            {
+                mArtists.add(ModelDump.idString(mArtistId, body));
+            }
+        }
+
+        private class RequesterTextListener implements TextElementListener
+        {
+            private int mRequesterId = -1;
+
+            public void start(Attributes attributes)
+            {
+                mRequesterId = parseIntOrMinusOne(attributes.getValue("id"));
+            }
+
+            public void end(String body)
+            {
+                mRequester = ModelDump.idString(mRequesterId, body);
+            }
+        }
+
+        private class SongTextListener implements TextElementListener
+        {
+            private int mSongId = -1;
+            private int mSongLength = -1;
+
+            public void start(Attributes attributes)
+            {
+                mSongId = parseIntOrMinusOne(attributes.getValue("id"));
+                mSongLength = parseSongLengthOrMinusOne(attributes.getValue("length"));
+            }
+
+            public void end(String body)
+            {
+                mId = mSongId;
+                mLength = mSongLength;
+                mTitle = body;
+            }
+        }
+
+
+        public List<String> parse(InputStream xmlStream) throws IOException, SAXException
+        {
+            RootElement root = new RootElement("playlist");
+
+            Element now = root.getChild("now");
+            Element timeleft = now.getChild("timeleft");
+            timeleft.setEndTextElementListener(new TimeLeftListener());
+
+            // Deal with entries from all 3 kinds of parents: now, queue, history.
+            Element nowEntry = now.getChild("entry");
+            EntryStartListener entryStartListener = new EntryStartListener();
+            nowEntry.setStartElementListener(entryStartListener);
+            nowEntry.setEndElementListener(new EndElementListener() {
+                public void end() {
+                    mCurrentEntry = finishEntry();
+                }
+            });
+
+            Element queue = root.getChild("queue");
+            Element queueEntry = queue.getChild("entry");
+            queueEntry.setStartElementListener(entryStartListener);
+            queueEntry.setEndElementListener(new EndElementListener() {
+                public void end() {
+                    mQueue.add(finishEntry());
+                }
+            });
+
+            Element history = root.getChild("history");
+            Element historyEntry = history.getChild("entry");
+            historyEntry.setStartElementListener(entryStartListener);
+            historyEntry.setEndElementListener(new EndElementListener() {
+                public void end() {
+                    mHistory.add(finishEntry());
+                }
+            });
+
+            // Apply <entry> sub-element listeners to all 3 kinds of entries.
+            ArtistTextListener artistTextListener = new ArtistTextListener();
+            SongTextListener songTextListener = new SongTextListener();
+            RequesterTextListener requesterTextListener = new RequesterTextListener();
+            for(Element parent : new Element[] {nowEntry, queueEntry, historyEntry}) {
+                Element artist = parent.getChild("artist");
+                artist.setTextElementListener(artistTextListener);
+
+                Element song = parent.getChild("song");
+                song.setTextElementListener(songTextListener);
+
+                Element requester = parent.getChild("requester");
+                requester.setTextElementListener(requesterTextListener);
+            }
+
+            Xml.parse(xmlStream, Xml.Encoding.UTF_8, root.getContentHandler());
+
+            ArrayList<String> lines = new ArrayList<String>();
+            lines.add("timeleft " + mTimeLeft);
+            lines.add("now " + mCurrentEntry);
+            for(String entry : mQueue) {
+                lines.add("queue " + entry);
+            }
+            for(String entry : mHistory) {
+                lines.add("history " + entry);
+            }
+            return lines;
+        }
+    }
+
+
+    ///
+    /// Streams
+    ///
+
+    public static List<String> parseStreams(InputStream xmlStream)
+        throws IOException, SAXException
+    {
+        return new StreamsParser().parse(xmlStream);
+    }
+
+
+    private static class StreamsParser
+    {
+        private ArrayList<String> mAllStreams = new ArrayList<String>();
+
+        // The stream being parsed
+        private int mId;
+        private URL mUrl;
+        private String mName;
+        private String mCountry;
+        private int mBitrate;
+        private String mType;
+        private String mTypeName;
+
+
+        private class StreamListener implements ElementListener
+        {
+            public void start(Attributes attributes)
+            {
+                mId = 0;
+                mUrl = null;
+                mName = "UNKNOWN";
+                mCountry = "??";
+                mBitrate = 0;
+                mType = "UNKNOWN";
+                mTypeName = null;
+                String idString = attributes.getValue("id");
+                if(idString != null) {
+                    mId = parseIntOrMinusOne(idString);
+                }
+            }
+
+            public void end()
+            {
+                mAllStreams.add(ModelDump.stream(mId, mUrl, mName, mCountry, mBitrate, mType,
+                            mTypeName));
+            }
+        }
+
+        private class UrlListener implements EndTextElementListener
+        {
+            public void end(String body)
+            {
+                try {
+                    mUrl = new URL(body);
+                } catch(MalformedURLException e) {
+                    // The old parser logged this.
+                }
+            }
+        }
+
+        private class NameListener implements EndTextElementListener
+        {
+            public void end(String body)
+            {
+                mName = body;
+            }
+        }
+
+        private class CountryListener implements EndTextElementListener
+        {
+            public void end(String body)
+            {
+                mCountry = body;
+            }
+        }
+
+        private class BitrateListener implements EndTextElementListener
+        {
+            public void end(String body)
+            {
+                mBitrate = parseIntOrMinusOne(body);
+            }
+        }
+
+        private class TypeListener implements TextElementListener
+        {
+            public void start(Attributes attributes)
+            {
+                String typeCode = attributes.getValue("v");
+                if(typeCode == null) {
+                    mType = "UNKNOWN";
+                } else if(typeCode.equals("M")) {
+                    mType = "MP3";
+                } else if(typeCode.equals("O")) {
+                    mType = "OGG";
+                } else if(typeCode.equals("A")) {
+                    mType = "AAC";
+                } else if(typeCode.equals("S")) {
+                    mType = "SHOUTCAST";
+                } else {
+                    mType = "UNKNOWN";
+                }
+            }
+
+            public void end(String body)
+            {
+                // No need to remember the type name for known types
+                if(mType.equals("UNKNOWN")) {
+                    mTypeName = body;
+                }
+            }
+        }
+
+
+        public List<String> parse(InputStream xmlStream) throws IOException, SAXException
+        {
+            RootElement root = new RootElement("streams");
+
+            Element stream = root.getChild("stream");
+            stream.setElementListener(new StreamListener());
+
+            Element url = stream.getChild("url");
+            url.setEndTextElementListener(new UrlListener());
+
+            Element name = stream.getChild("name");
+            name.setEndTextElementListener(new NameListener());
+
+            Element country = stream.getChild("country");
+            country.setEndTextElementListener(new CountryListener());
+
+            Element bitrate = stream.getChild("bitrate");
+            bitrate.setEndTextElementListener(new BitrateListener());
+
+            Element type = stream.getChild("type");
+            type.setTextElementListener(new TypeListener());
+
+            Xml.parse(xmlStream, Xml.Encoding.UTF_8, root.getContentHandler());
+
+            return mAllStreams;
+        }
+    }
+
+
+    ///
+    /// OneLiners
+    ///
+
+    public static List<String> parseOneLiners(InputStream xmlStream)
+        throws IOException, SAXException
+    {
+        return new OneLinerParser().parse(xmlStream);
+    }
+
+
+    private static class OneLinerParser
+    {
+        private SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        private ArrayList<String> mAllOneLiners = new ArrayList<String>();
+
+        // The oneliner being parsed
+        private long mTime;
+        private String mAuthor;
+        private String mFlag;
+        private String mMessage;
+
+
+        private class EntryListener implements ElementListener
+        {
+            public void start(Attributes attributes)
+            {
+                mTime = 0L;
+                mAuthor = "UNKNOWN";
+                mFlag = "??";
+                mMessage = "";
+                String timeString = attributes.getValue("time");
+                if(timeString != null) {
+                    try {
+                        mTime = dateFormat.parse(timeString).getTime();
+                    } catch(ParseException e) {
+                        // The old parser logged this.
+                    }
+                }
+            }
+
+            public void end()
+            {
+                mAllOneLiners.add(ModelDump.oneLiner(mTime, mAuthor, mFlag, mMessage));
+            }
+        }
+
+        private class AuthorListener implements TextElementListener
+        {
+            public void start(Attributes attributes)
+            {
+                String flagString = attributes.getValue("flag");
+                if(flagString != null) {
+                    mFlag = flagString;
+                }
+            }
+
+            public void end(String body)
+            {
+                mAuthor = body;
+            }
+        }
+
+        private class MessageListener implements EndTextElementListener
+        {
+            public void end(String body)
+            {
+                mMessage = body;
+            }
+        }
+
+
+        public List<String> parse(InputStream xmlStream) throws IOException, SAXException
+        {
+            RootElement root = new RootElement("oneliner");
+
+            Element entry = root.getChild("entry");
+            entry.setElementListener(new EntryListener());
+
+            Element author = entry.getChild("author");
+            author.setTextElementListener(new AuthorListener());
+
+            Element message = entry.getChild("message");
+            message.setEndTextElementListener(new MessageListener());
+
+            Xml.parse(xmlStream, Xml.Encoding.UTF_8, root.getContentHandler());
+
+            return mAllOneLiners;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+#!/usr/bin/env python3
+"""Measure Nectroid's streaming against scripted network conditions."""
+#
+# This file is part of Nectroid.
+#
+# Nectroid is free software: you can redistribute it and/or modify
+# it under the terms of the GNU General Public License as published by
+# the Free Software Foundation, either version 3 of the License, or
+# (at your option) any later version.
+#
+# Nectroid is distributed in the hope that it will be useful,
+# but WITHOUT ANY WARRANTY; without even the implied warranty of
+# MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+# GNU General Public License for more details.
+#
+# You should have received a copy of the GNU General Public License
+# along with Nectroid.  If not, see <http://www.gnu.org/licenses/>.
+#
+# For each scenario this starts a streamserver.py with its impairments,
+# tells PlayerService on a device to play from it, and watches logcat and
+# the server to record:
+#
+#   ttfa        seconds from the play intent to the first audio
+#   underruns   times the software decoder ran out of MP3 data
+#   reconnect   seconds from each dropped connection to the next request
+#
+#   ./streambench.py --reverse fixture.mp3
+#   ./streambench.py --scenario jittery --scenario flaky --duration 90 \
+#       --player mediaplayer fixture.mp3
+#
+# PlayerService isn't exported, so adb needs root to start it (an emulator,
+# or "adb root" on a userdebug build).  Pick the software decoder or
+# MediaPlayer in Nectroid's settings to match --player.  The device reaches
+# the server at 10.0.2.2 on the emulator; use --reverse on a USB device, or
+# --host with the machine's LAN address.
+
+import argparse
+import re
+import subprocess
+import sys
+import threading
+import time
+
+import streamserver
+
+
+#
+# Constants
+#
+
+PACKAGE = 'com.kvance.Nectroid'
+SERVICE = PACKAGE + '/.PlayerService'
+ACTION_PLAY = PACKAGE + '.PLAY'
+EXTRA_BITRATE = PACKAGE + '.Stream.bitrate'
+
+# Log tags to watch (MP3StreamerSO is the native library's, from jni/logmacros.h)
+LOG_TAGS = ['NectroidPlayer', 'MP3Streamer', 'MP3StreamerSO', 'MP3-Buffer',
+            'MP3-Stream', 'MP3-Sink', 'AudioTrackSink']
+
+# Log messages marking the first audio, for each player
+FIRST_AUDIO = {
+    'mp3streamer': re.compile(r'AudioTrackSink.*Starting audio track'),
+    'mediaplayer': re.compile(r'NectroidPlayer.*MediaPlayer prepared'),
+}
+UNDERRUN = re.compile(r'MP3 buffer underrun #')
+ERROR = re.compile(r'Giving up on reconnecting|HTTP response not OK')
+
+# Scenarios, as arguments to streamserver.Impairment
+SCENARIOS = [
+    ('clean', {}),
+    ('burst', dict(burst=4.0, icy=True)),
+    ('slow-start', dict(latency=1.5)),
+    ('thin-pipe', {}),                  # bandwidth is set from the bitrate
+    ('jittery', dict(jitter=0.8)),
+    ('stalls', dict(stall_every=15.0, stall_for=4.0)),
+    ('flaky', dict(disconnect_after=20.0, outage=2.0)),
+    ('reset', dict(disconnect_after=20.0, reset=True)),
+    ('shoutcast', dict(icy=True, icy_status=True)),
+]
+
+
+#
+# Device control
+#
+
+class Device:
+    def __init__(self, serial=None):
+        self.adb = ['adb'] + (['-s', serial] if serial else [])
+
+    def run(self, *args):
+        return subprocess.run(self.adb + list(args), check=True,
+                              stdout=subprocess.PIPE,
+                              universal_newlines=True).stdout
+
+    def reverse(self, port):
+        self.run('reverse', 'tcp:%d' % port, 'tcp:%d' % port)
+
+    def play(self, url, bitrate):
+        self.run('shell', 'am', 'startservice', '-n', SERVICE, '-a', ACTION_PLAY,
+                 '-d', url, '--ei', EXTRA_BITRATE, str(bitrate))
+
+    def stop(self):
+        self.run('shell', 'am', 'stopservice', '-n', SERVICE)
+
+    def logcat(self):
+        """Start following the log.  Lines are timestamped as they arrive,
+        so they're on the same clock as the server's events."""
+        self.run('logcat', '-c')
+        filters = ['%s:V' % tag for tag in LOG_TAGS] + ['*:S']
+        return subprocess.Popen(self.adb + ['logcat', '-v', 'brief'] + filters,
+                                stdout=subprocess.PIPE,
+                                universal_newlines=True)
+
+
+#
+# Measurement
+#
+
+class Recorder:
+    """Collects timestamped log lines and server events for one run."""
+
+    def __init__(self):
+        self.lock = threading.Lock()
+        self.lines = []
+        self.events = []
+
+    def on_server_event(self, event, when):
+        with self.lock:
+            self.events.append((when, event))
+
+    def follow(self, proc):
+        for line in proc.stdout:
+            with self.lock:
+                self.lines.append((time.monotonic(), line.rstrip()))
+
+    def results(self, player, started):
+        with self.lock:
+            lines = list(self.lines)
+            events = list(self.events)
+
+        result = {'ttfa': None, 'underruns': 0, 'reconnects': [],
+                  'connects': 0, 'failed': False}
+        for when, line in lines:
+            if result['ttfa'] is None and FIRST_AUDIO[player].search(line):
+                result['ttfa'] = when - started
+            if UNDERRUN.search(line):
+                result['underruns'] += 1
+            if ERROR.search(line):
+                result['failed'] = True
+
+        dropped_at = None
+        for when, event in events:
+            if event == 'connect':
+                result['connects'] += 1
+                if dropped_at is not None:
+                    result['reconnects'].append(when - dropped_at)
+                    dropped_at = None
+            elif event in ('drop', 'client-closed') and dropped_at is None:
+                dropped_at = when
+        return result
+
+
+def run_scenario(device, data, bitrate, impairment, args):
+    recorder = Recorder()
+    server = streamserver.StreamServer(('0.0.0.0', args.port), data, impairment,
+                                       bitrate, recorder.on_server_event)
+    server_thread = threading.Thread(target=server.serve_forever)
+    server_thread.daemon = True
+    server_thread.start()
+
+    logcat = device.logcat()
+    log_thread = threading.Thread(target=recorder.follow, args=(logcat,))
+    log_thread.daemon = True
+    log_thread.start()
+
+    url = 'http://%s:%d/stream.mp3' % (args.host, args.port)
+    try:
+        started = time.monotonic()
+        device.play(url, bitrate)
+        time.sleep(args.duration)
+    finally:
+        device.stop()
+        time.sleep(1)
+        logcat.terminate()
+        server.shutdown()
+        server.server_close()
+
+    return recorder.results(args.player, started)
+
+
+def format_result(name, result):
+    ttfa = '%.2f' % result['ttfa'] if result['ttfa'] is not None else '-'
+    reconnects = result['reconnects']
+    if reconnects:
+        reconnect = '%.2f/%.2f' % (sum(reconnects) / len(reconnects),
+                                   max(reconnects))
+    else:
+        reconnect = '-'
+    return '%-12s %8s %9d %8d %13s %s' % (
+        name, ttfa, result['underruns'], result['connects'], reconnect,
+        'FAILED' if result['failed'] else '')
+
+
+#
+# Main
+#
+
+def main():
+    parser = argparse.ArgumentParser(description=__doc__)
+    parser.add_argument('--serial', help='adb device serial')
+    parser.add_argument('--host', default='10.0.2.2',
+                        help='server address as seen from the device')
+    parser.add_argument('--reverse', action='store_true',
+                        help='tunnel the port over adb and use 127.0.0.1')
+    parser.add_argument('--port', type=int, default=8000)
+    parser.add_argument('--player', choices=sorted(FIRST_AUDIO),
+                        default='mp3streamer')
+    parser.add_argument('--duration', type=float, default=60.0,
+                        help='seconds to play each scenario')
+    parser.add_argument('--bitrate', type=int,
+                        help='stream bitrate in kbps (default: from the file)')
+    parser.add_argument('--scenario', action='append',
+                        choices=[name for name, _ in SCENARIOS],
+                        help='scenario to run (default: all)')
+    parser.add_argument('mp3', help='MP3 file to stream')
+    args = parser.parse_args()
+
+    with open(args.mp3, 'rb') as f:
+        data = f.read()
+    bitrate = args.bitrate or streamserver.detect_bitrate(data)
+
+    device = Device(args.serial)
+    if args.reverse:
+        device.reverse(args.port)
+        args.host = '127.0.0.1'
+
+    print('%-12s %8s %9s %8s %13s' % ('scenario', 'ttfa s', 'underruns',
+                                      'connects', 'reconnect s'))
+    for name, settings in SCENARIOS:
+        if args.scenario and name not in args.scenario:
+            continue
+        settings = dict(settings)
+        if name == 'thin-pipe':
+            # Barely more than the stream needs, so any hiccup drains the buffer.
+            settings['bandwidth'] = int(bitrate * 1.1)
+        impairment = streamserver.Impairment(**settings)
+        result = run_scenario(device, data, bitrate, impairment, args)
+        print(format_result(name, result))
+        sys.stdout.flush()
+
+
+if __name__ == '__main__':
+    main()
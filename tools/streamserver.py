@@ -0,0 +1,352 @@
+#!/usr/bin/env python3
+"""Local Icecast/Shoutcast stand-in for testing Nectroid's streaming code."""
+#
+# This file is part of Nectroid.
+#
+# Nectroid is free software: you can redistribute it and/or modify
+# it under the terms of the GNU General Public License as published by
+# the Free Software Foundation, either version 3 of the License, or
+# (at your option) any later version.
+#
+# Nectroid is distributed in the hope that it will be useful,
+# but WITHOUT ANY WARRANTY; without even the implied warranty of
+# MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+# GNU General Public License for more details.
+#
+# You should have received a copy of the GNU General Public License
+# along with Nectroid.  If not, see <http://www.gnu.org/licenses/>.
+#
+# Serves an MP3 file in a loop at the pace of its bitrate, like a radio
+# station would, and can make the network misbehave on the way:
+#
+#   ./streamserver.py --port 8000 --bandwidth 96 --jitter 300 fixture.mp3
+#   ./streamserver.py --stall-every 20 --stall-for 6 --disconnect-after 45 \
+#       --outage 3 --icy fixture.mp3
+#
+# The fixtures written by jni/host's mp3bench (make -C jni/host fixtures)
+# work, as does any constant-bitrate MP3.
+
+import argparse
+import random
+import socket
+import socketserver
+import struct
+import sys
+import threading
+import time
+
+
+#
+# Constants
+#
+
+# Bitrates in kbps for MPEG-1 Layer III headers, by index
+MPEG1_L3_BITRATES = [0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224,
+                     256, 320]
+
+# How much audio to send per write, in seconds
+CHUNK_SECONDS = 0.1
+
+# Bytes of audio between ICY metadata blocks
+ICY_METAINT = 16000
+
+
+#
+# Network impairments
+#
+
+class Impairment:
+    """How badly the server should behave.  Times are in seconds."""
+
+    def __init__(self, bandwidth=0, latency=0.0, jitter=0.0, stall_every=0.0,
+                 stall_for=0.0, disconnect_after=0.0, reset=False, outage=0.0,
+                 burst=0.0, icy=False, icy_status=False):
+        # Link capacity in kbps, or 0 for unlimited
+        self.bandwidth = bandwidth
+        # Delay before answering a request
+        self.latency = latency
+        # Most extra delay added to any one write
+        self.jitter = jitter
+        # Stop sending for stall_for seconds every stall_every seconds
+        self.stall_every = stall_every
+        self.stall_for = stall_for
+        # Drop each connection after this long, with a TCP reset if asked
+        self.disconnect_after = disconnect_after
+        self.reset = reset
+        # Refuse connections for this long after a drop
+        self.outage = outage
+        # Seconds of audio sent as fast as possible on connect
+        self.burst = burst
+        # Send icy-* headers, and "ICY 200 OK" instead of an HTTP status
+        self.icy = icy
+        self.icy_status = icy_status
+
+    def describe(self):
+        parts = []
+        for name, value in sorted(vars(self).items()):
+            if value:
+                parts.append(name if value is True else '%s=%s' % (name, value))
+        return ', '.join(parts) or 'clean'
+
+
+#
+# MP3 helpers
+#
+
+def detect_bitrate(data):
+    """Return the bitrate in kbps of the first MPEG-1 Layer III frame."""
+    for i in range(len(data) - 3):
+        if data[i] == 0xff and (data[i + 1] & 0xfe) == 0xfa:
+            index = data[i + 2] >> 4
+            if 0 < index < len(MPEG1_L3_BITRATES):
+                return MPEG1_L3_BITRATES[index]
+    raise ValueError('no MPEG-1 Layer III frame header found')
+
+
+def icy_metadata(title):
+    """Encode a StreamTitle metadata block."""
+    text = ("StreamTitle='%s';" % title.replace("'", '')).encode('utf-8')
+    blocks = (len(text) + 15) // 16
+    return bytes([blocks]) + text.ljust(blocks * 16, b'\0')
+
+
+#
+# Server
+#
+
+class StreamServer(socketserver.ThreadingMixIn, socketserver.TCPServer):
+    """Threaded server that streams one MP3 file to every client.
+
+    Each connection, drop and refusal is passed to the listener as
+    listener(event, monotonic_time), so a benchmark can time reconnects
+    without trusting the device's clock.
+    """
+
+    allow_reuse_address = True
+    daemon_threads = True
+
+    def __init__(self, address, data, impairment, bitrate=None, listener=None,
+                 title='Nectroid test stream'):
+        socketserver.TCPServer.__init__(self, address, StreamHandler)
+        self.data = data
+        self.impairment = impairment
+        self.bitrate = bitrate or detect_bitrate(data)
+        self.title = title
+        self.listener = listener
+        self.refuse_until = 0.0
+        self.lock = threading.Lock()
+
+    def notify(self, event):
+        if self.listener is not None:
+            self.listener(event, time.monotonic())
+
+    def start_outage(self):
+        if self.impairment.outage:
+            with self.lock:
+                self.refuse_until = time.monotonic() + self.impairment.outage
+
+    def in_outage(self):
+        with self.lock:
+            return time.monotonic() < self.refuse_until
+
+
+class StreamHandler(socketserver.StreamRequestHandler):
+
+    def handle(self):
+        server = self.server
+        imp = server.impairment
+
+        if server.in_outage():
+            server.notify('refused')
+            return
+
+        # Read the request and headers.
+        request = self.rfile.readline().decode('latin-1').strip()
+        if not request:
+            return
+        headers = {}
+        while True:
+            line = self.rfile.readline().decode('latin-1').strip()
+            if not line:
+                break
+            name, _, value = line.partition(':')
+            headers[name.strip().lower()] = value.strip()
+        server.notify('connect')
+        log('%s: %s' % (self.client_address[0], request))
+
+        if imp.latency:
+            time.sleep(imp.latency)
+
+        metaint = 0
+        if imp.icy and headers.get('icy-metadata') == '1':
+            metaint = ICY_METAINT
+
+        try:
+            self.send_headers(metaint)
+            self.send_audio(metaint)
+        except (OSError, ConnectionError):
+            server.notify('client-closed')
+            log('%s: client went away' % self.client_address[0])
+
+    def send_headers(self, metaint):
+        server = self.server
+        imp = server.impairment
+        lines = ['ICY 200 OK' if imp.icy_status else 'HTTP/1.0 200 OK',
+                 'Content-Type: audio/mpeg',
+                 'Cache-Control: no-cache']
+        if imp.icy:
+            lines += ['icy-name: %s' % server.title,
+                      'icy-genre: Demoscene',
+                      'icy-br: %d' % server.bitrate,
+                      'icy-pub: 0']
+            if metaint:
+                lines.append('icy-metaint: %d' % metaint)
+        self.wfile.write(('\r\n'.join(lines) + '\r\n\r\n').encode('latin-1'))
+
+    def send_audio(self, metaint):
+        server = self.server
+        imp = server.impairment
+        data = server.data
+        byte_rate = server.bitrate * 1000 / 8.0
+        chunk_size = max(1, int(byte_rate * CHUNK_SECONDS))
+        burst_bytes = int(byte_rate * imp.burst)
+        link_rate = imp.bandwidth * 1000 / 8.0
+
+        start = time.monotonic()
+        link_free = start
+        next_stall = imp.stall_every or None
+        position = 0
+        sent = 0
+        until_meta = metaint
+
+        while True:
+            now = time.monotonic()
+            elapsed = now - start
+
+            if imp.disconnect_after and elapsed >= imp.disconnect_after:
+                self.drop()
+                return
+
+            if next_stall is not None and elapsed >= next_stall:
+                # The station keeps producing during a stall, so the backlog
+                # is sent as fast as the link allows afterwards.
+                server.notify('stall')
+                time.sleep(imp.stall_for)
+                next_stall += imp.stall_every + imp.stall_for
+                continue
+
+            # Wait until the station would have produced this chunk, and
+            # until the link has finished sending the last one.
+            due = start + max(0, sent - burst_bytes) / byte_rate
+            if imp.jitter:
+                due += random.uniform(0, imp.jitter)
+            wait = max(due, link_free) - now
+            if wait > 0:
+                time.sleep(wait)
+
+            chunk = data[position:position + chunk_size]
+            if len(chunk) < chunk_size:
+                chunk += data[:chunk_size - len(chunk)]
+            position = (position + chunk_size) % len(data)
+
+            if metaint:
+                chunk, until_meta = self.insert_metadata(chunk, until_meta)
+
+            self.wfile.write(chunk)
+            sent += chunk_size
+            if link_rate:
+                link_free = max(link_free, time.monotonic()) + len(chunk) / link_rate
+
+    def insert_metadata(self, chunk, until_meta):
+        """Add a metadata block every ICY_METAINT bytes of audio."""
+        metaint = ICY_METAINT
+        out = b''
+        while len(chunk) >= until_meta:
+            out += chunk[:until_meta] + icy_metadata(self.server.title)
+            chunk = chunk[until_meta:]
+            until_meta = metaint
+        return out + chunk, until_meta - len(chunk)
+
+    def drop(self):
+        server = self.server
+        if server.impairment.reset:
+            # Close with RST instead of FIN, like a NAT timing out.
+            self.connection.setsockopt(socket.SOL_SOCKET, socket.SO_LINGER,
+                                       struct.pack('ii', 1, 0))
+            self.connection.close()
+        server.start_outage()
+        server.notify('drop')
+        log('%s: dropping connection' % self.client_address[0])
+
+
+#
+# Main
+#
+
+def log(message):
+    sys.stderr.write('[%s] %s\n' % (time.strftime('%H:%M:%S'), message))
+
+
+def add_impairment_arguments(parser):
+    parser.add_argument('--bitrate', type=int,
+                        help='stream bitrate in kbps (default: from the file)')
+    parser.add_argument('--bandwidth', type=int, default=0,
+                        help='link capacity in kbps')
+    parser.add_argument('--latency', type=float, default=0.0,
+                        help='delay before the response, in ms')
+    parser.add_argument('--jitter', type=float, default=0.0,
+                        help='most extra delay per write, in ms')
+    parser.add_argument('--stall-every', type=float, default=0.0,
+                        help='seconds between stalls')
+    parser.add_argument('--stall-for', type=float, default=0.0,
+                        help='length of each stall in seconds')
+    parser.add_argument('--disconnect-after', type=float, default=0.0,
+                        help='drop each connection after this many seconds')
+    parser.add_argument('--reset', action='store_true',
+                        help='drop connections with a TCP reset')
+    parser.add_argument('--outage', type=float, default=0.0,
+                        help='refuse connections for this many seconds after a drop')
+    parser.add_argument('--burst', type=float, default=0.0,
+                        help='seconds of audio to send at once on connect')
+    parser.add_argument('--icy', action='store_true',
+                        help='send icy-* headers and in-band metadata')
+    parser.add_argument('--icy-status', action='store_true',
+                        help='answer "ICY 200 OK" like SHOUTcast 1')
+
+
+def impairment_from_args(args):
+    return Impairment(bandwidth=args.bandwidth,
+                      latency=args.latency / 1000.0,
+                      jitter=args.jitter / 1000.0,
+                      stall_every=args.stall_every,
+                      stall_for=args.stall_for,
+                      disconnect_after=args.disconnect_after,
+                      reset=args.reset,
+                      outage=args.outage,
+                      burst=args.burst,
+                      icy=args.icy,
+                      icy_status=args.icy_status)
+
+
+def main():
+    parser = argparse.ArgumentParser(description=__doc__)
+    parser.add_argument('--port', type=int, default=8000)
+    parser.add_argument('--bind', default='0.0.0.0')
+    add_impairment_arguments(parser)
+    parser.add_argument('mp3', help='MP3 file to loop')
+    args = parser.parse_args()
+
+    with open(args.mp3, 'rb') as f:
+        data = f.read()
+    imp = impairment_from_args(args)
+    server = StreamServer((args.bind, args.port), data, imp, args.bitrate)
+    log('Serving %s at %d kbps on port %d (%s)' %
+        (args.mp3, server.bitrate, args.port, imp.describe()))
+    try:
+        server.serve_forever()
+    except KeyboardInterrupt:
+        pass
+
+
+if __name__ == '__main__':
+    main()